@@ -0,0 +1,128 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A small JMH style harness. Each benchmark is invoked repeatedly for a fixed time per iteration, first
+ * for a few warmup iterations whose results are discarded, then for the measured iterations. The score
+ * is the mean throughput over the measured iterations, in units of work per second, and the error is
+ * the 99.9% confidence half-interval, assuming a normal distribution.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Results that benchmarks compute should be added to this, so that the JIT can't eliminate the work.
+     */
+    public static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationTime;
+    private final Pattern filter;
+
+    private final List<Result> results;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationTime, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationTime = iterationTime;
+        this.filter = Pattern.compile(filter == null ? ".*" : filter);
+        this.results = new ArrayList<>();
+    }
+
+    public boolean isSelected(String name) {
+        return this.filter.matcher(name).find();
+    }
+
+    /**
+     * Runs the given benchmark, if its name matches the filter, and prints its result.
+     *
+     * @param name the name of the benchmark
+     * @param unit the unit of the work returned by the benchmark, e.g. "bytes" or "songs"
+     * @param benchmark the benchmark
+     * @return the result, or null if the benchmark was filtered out
+     */
+    public Result run(String name, String unit, Benchmark benchmark) throws Exception {
+        if (!this.isSelected(name)) return null;
+
+        for (int i = 0; i < this.warmupIterations; i++) this.iteration(benchmark);
+
+        double[] scores = new double[this.measurementIterations];
+        for (int i = 0; i < this.measurementIterations; i++) scores[i] = this.iteration(benchmark);
+
+        Result result = new Result(name, unit, scores);
+        this.results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    public List<Result> getResults() {
+        return this.results;
+    }
+
+    private double iteration(Benchmark benchmark) throws Exception {
+        long work = 0;
+        long start = System.nanoTime();
+        long deadline = start + this.iterationTime * 1000000L;
+        long now;
+        do {
+            work += benchmark.run();
+            now = System.nanoTime();
+        } while (now < deadline);
+        return work / ((now - start) / 1e9);
+    }
+
+    public static String header() {
+        return String.format("%-40s %5s %14s   %12s  %s", "Benchmark", "Cnt", "Score", "Error", "Units");
+    }
+
+    @FunctionalInterface
+    public interface Benchmark {
+        /**
+         * Does one unit of the benchmarked work.
+         *
+         * @return the amount of work done, in the benchmark's unit
+         */
+        long run() throws Exception;
+    }
+
+    public static class Result {
+
+        // two-sided 99.9% quantiles of the student t distribution, for 1 to 10 degrees of freedom
+        private static final double[] T_999 = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+
+        public final String name;
+        public final String unit;
+        public final double[] scores;
+
+        public Result(String name, String unit, double[] scores) {
+            this.name = name;
+            this.unit = unit;
+            this.scores = scores;
+        }
+
+        public double getScore() {
+            double sum = 0;
+            for (double score : this.scores) sum += score;
+            return sum / this.scores.length;
+        }
+
+        public double getError() {
+            int n = this.scores.length;
+            if (n < 2) return Double.NaN;
+            double mean = this.getScore();
+            double variance = 0;
+            for (double score : this.scores) variance += (score - mean) * (score - mean);
+            variance /= n - 1;
+            double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+            return t * Math.sqrt(variance / n);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %5d %14.3f +- %12.3f  %s/s", this.name, this.scores.length, this.getScore(), this.getError(), this.unit);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import net.common.Constants;
+import net.lib.ChecksumType;
+import net.lib.Socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A Socket without a network or any threads, for benchmarking the packet path. Packets it sends are
+ * handed straight to the peer's {@link #onPacket(ByteBuffer)} on the calling thread, so one call to
+ * {@link #send(byte[], int, int)} encodes a MESSAGE, decodes and delivers it on the peer, and
+ * processes the peer's ACK. Without a peer, packets are discarded and acknowledged immediately.
+ */
+class LoopbackSocket extends Socket {
+
+    private final Object socketLock;
+
+    private LoopbackSocket peer;
+
+    private final int[] noSack;
+    private final byte[] trx;
+
+    LoopbackSocket(ChecksumType checksum) {
+        super(InetAddress.getLoopbackAddress(), 0);
+        this.socketLock = new Object();
+        this.noSack = new int[0];
+        this.trx = new byte[Constants.BUFFER_SIZE];
+
+        this.negotiateChecksum(checksum.getBit());
+        this.state.set(ESTABLISHED);
+    }
+
+    static LoopbackSocket[] pair(ChecksumType checksum) {
+        LoopbackSocket a = new LoopbackSocket(checksum);
+        LoopbackSocket b = new LoopbackSocket(checksum);
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackSocket[] {a, b};
+    }
+
+    /**
+     * Sends one MESSAGE packet, and drains whatever the peer received.
+     *
+     * @return the number of bytes the peer received
+     */
+    int send(byte[] data, int off, int len) throws IOException {
+        this.sendMessage(data, off, len);
+        if (this.peer == null) {
+            this.onAck(this.messageId.get(), 64, this.noSack, 0);
+            return len;
+        }
+        return this.peer.drain();
+    }
+
+    private int drain() throws IOException {
+        InputStream in = this.inputStream();
+        int total = 0;
+        int available;
+        while ((available = this.inputBufferAvailable()) > 0) {
+            total += in.read(this.trx, 0, Math.min(available, this.trx.length));
+        }
+        return total;
+    }
+
+    @Override
+    protected void sendTrivial(ByteBuffer packet) {
+        if (this.peer != null) this.peer.onPacket(packet);
+    }
+
+    @Override
+    protected Object getSocketLock() {
+        return this.socketLock;
+    }
+
+    @Override
+    protected DatagramSocket getSocket() {
+        return null;
+    }
+
+    @Override
+    protected ByteBuffer receivePacket() {
+        return null;
+    }
+
+    @Override
+    protected void onSyn(InetAddress remote, int port, int id) {}
+
+    @Override
+    protected void onClosed() {}
+
+    @Override
+    protected void onTimeout() {}
+}
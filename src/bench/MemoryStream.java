@@ -0,0 +1,76 @@
+package bench;
+
+import net.common.Constants;
+import net.lib.DuplexStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A DuplexStream over memory, for benchmarking the stream consumers without a transport. Reads come from
+ * a fixed byte array, which is received in full from the start, and writes go to the given OutputStream.
+ */
+class MemoryStream implements DuplexStream {
+
+    private final ByteArrayInputStream input;
+    private final OutputStream output;
+
+    private boolean closed;
+
+    MemoryStream(byte[] input, OutputStream output) {
+        this.input = new ByteArrayInputStream(input);
+        this.output = output;
+        this.closed = false;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public boolean isSendClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public boolean isReceiveClosed() {
+        return this.input.available() == 0;
+    }
+
+    @Override
+    public int outputBufferSpace() {
+        return this.closed ? 0 : Constants.BUFFER_SIZE;
+    }
+
+    @Override
+    public int inputBufferAvailable() {
+        return this.input.available();
+    }
+
+    @Override
+    public OutputStream outputStream() {
+        return this.output;
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return this.input;
+    }
+
+    @Override
+    public void setInputListener(Runnable listener) {
+        // everything is received from the start, there is never more data to announce
+    }
+
+    @Override
+    public void setOutputListener(Runnable listener) {
+        // writes go straight to the output, which never fills up
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+    }
+}
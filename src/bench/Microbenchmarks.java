@@ -0,0 +1,189 @@
+package bench;
+
+import net.common.Constants;
+import net.common.IterativeStreamingJsonSerializer;
+import net.common.JsonSerializer;
+import net.common.JsonStreamParser;
+import net.lib.ChecksumType;
+import stub.CatalogGenerator;
+import stub.SongStub;
+import utils.CountingOutputStream;
+import utils.NullOutputStream;
+import utils.RingBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+/**
+ * Microbenchmarks for the hot paths of the transport and of the catalog streams.
+ *
+ * Usage: Microbenchmarks [-songs count] [-wi warmup iterations] [-i iterations] [-t ms per iteration] [filter]
+ *
+ * The filter is a regular expression, only benchmarks whose name contains a match are run.
+ */
+public class Microbenchmarks {
+
+    private static final int[] CHUNK_SIZES = {64, 1024, 16384};
+
+    private static final JsonSerializer<SongStub> SONG_SERIALIZER = (song, gen) -> {
+        // same fields as the list-songs response of LibraryServer
+        gen.writeStartObject();
+        gen.writeStringField("title", song.getTitle());
+        gen.writeStringField("artist", song.getArtist());
+        gen.writeStringField("album", song.getAlbumTitle());
+        gen.writeNumberField("duration", song.getDuration());
+        gen.writeNumberField("id", song.getId());
+        gen.writeEndObject();
+    };
+
+    public static void main(String[] args) throws Exception {
+        int songs = 100000;
+        int warmup = 3;
+        int iterations = 5;
+        long time = 1000;
+        String filter = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-songs" : songs = Integer.parseInt(args[++i]); break;
+                case "-wi" : warmup = Integer.parseInt(args[++i]); break;
+                case "-i" : iterations = Integer.parseInt(args[++i]); break;
+                case "-t" : time = Long.parseLong(args[++i]); break;
+                default : filter = args[i];
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, time, filter);
+        System.out.println(BenchmarkRunner.header());
+
+        ringBuffer(runner);
+        checksums(runner);
+        packets(runner);
+        json(runner, songs);
+
+        System.exit(0);
+    }
+
+    /**
+     * RingBuffer throughput, with a single thread alternately writing and reading a chunk, and with
+     * a producer thread and a consumer thread.
+     */
+    private static void ringBuffer(BenchmarkRunner runner) throws Exception {
+        for (int chunk : CHUNK_SIZES) {
+            RingBuffer buffer = new RingBuffer(Constants.BUFFER_SIZE);
+            OutputStream out = buffer.getOutputStream();
+            InputStream in = buffer.getInputStream();
+            byte[] src = randomBytes(chunk);
+            byte[] dst = new byte[chunk];
+
+            runner.run("ringbuffer.roundtrip." + chunk, "bytes", () -> {
+                out.write(src, 0, chunk);
+                int read = 0;
+                while (read < chunk) read += in.read(dst, read, chunk - read);
+                return read;
+            });
+        }
+
+        for (int chunk : CHUNK_SIZES) {
+            byte[] src = randomBytes(chunk);
+            byte[] dst = new byte[chunk];
+            int total = 4 * 1024 * 1024;
+
+            runner.run("ringbuffer.spsc." + chunk, "bytes", () -> {
+                RingBuffer buffer = new RingBuffer(Constants.BUFFER_SIZE);
+                Thread producer = new Thread(() -> {
+                    try {
+                        OutputStream out = buffer.getOutputStream();
+                        for (int written = 0; written < total; written += chunk) out.write(src, 0, chunk);
+                        out.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                producer.start();
+
+                InputStream in = buffer.getInputStream();
+                long read = 0;
+                int n;
+                while ((n = in.read(dst, 0, chunk)) != -1) read += n;
+                producer.join();
+                return read;
+            });
+        }
+    }
+
+    private static void checksums(BenchmarkRunner runner) throws Exception {
+        for (ChecksumType type : ChecksumType.values()) {
+            if (!type.isAvailable()) continue;
+            for (int chunk : CHUNK_SIZES) {
+                Checksum checksum = type.newChecksum();
+                byte[] data = randomBytes(chunk);
+
+                runner.run("checksum." + type + "." + chunk, "bytes", () -> {
+                    checksum.reset();
+                    checksum.update(data, 0, data.length);
+                    BenchmarkRunner.sink += checksum.getValue();
+                    return chunk;
+                });
+            }
+        }
+    }
+
+    /**
+     * Socket.sendMessage encoding alone, and encoding followed by onPacket decoding and delivery on
+     * a peer, and processing of the peer's ACK.
+     */
+    private static void packets(BenchmarkRunner runner) throws Exception {
+        byte[] data = randomBytes(Constants.PACKET_SIZE);
+
+        for (ChecksumType type : ChecksumType.values()) {
+            if (!type.isAvailable()) continue;
+
+            LoopbackSocket sink = new LoopbackSocket(type);
+            runner.run("packet.encode." + type, "bytes", () -> sink.send(data, 0, data.length));
+
+            LoopbackSocket[] pair = LoopbackSocket.pair(type);
+            runner.run("packet.roundtrip." + type, "bytes", () -> pair[0].send(data, 0, data.length));
+        }
+    }
+
+    private static void json(BenchmarkRunner runner, int songs) throws Exception {
+        String serialize = "json.serialize.list-songs." + songs;
+        String parse = "json.parse.list-songs." + songs;
+        if (!runner.isSelected(serialize) && !runner.isSelected(parse)) return;
+
+        CatalogGenerator catalog = new CatalogGenerator(songs, 1);
+        List<SongStub> library = catalog.generate();
+
+        runner.run(serialize, "songs", () -> {
+            CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+            new IterativeStreamingJsonSerializer<>(new MemoryStream(new byte[0], out), true, library.iterator(), SONG_SERIALIZER).run();
+            BenchmarkRunner.sink += out.getCount();
+            return songs;
+        });
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        new IterativeStreamingJsonSerializer<>(new MemoryStream(new byte[0], serialized), true, library.iterator(), SONG_SERIALIZER).run();
+        byte[] response = serialized.toByteArray();
+        System.out.println("# list-songs response for " + songs + " songs is " + response.length + " bytes");
+
+        runner.run(parse, "songs", () -> {
+            long[] parsed = new long[1];
+            new JsonStreamParser(new MemoryStream(response, new NullOutputStream()), false, (socket, song) -> {
+                if (song.isObject()) parsed[0]++;
+            }, true).run();
+            if (parsed[0] != songs) throw new IllegalStateException("Parsed " + parsed[0] + " of " + songs + " songs");
+            return parsed[0];
+        });
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
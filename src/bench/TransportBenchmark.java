@@ -0,0 +1,209 @@
+package bench;
+
+import net.common.Constants;
+import net.lib.ClientSocket;
+import net.lib.NetworkEmulator;
+import net.lib.NetworkEmulator.Profile;
+import net.lib.ServerSocket;
+import net.lib.Socket;
+import net.lib.SocketStats;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a song sized payload through a {@link NetworkEmulator} under each network profile, the same way
+ * {@link net.server.SongStreamHandler} does, and reports goodput, chunk latency and retransmissions.
+ *
+ * Every chunk starts with the time at which the server wrote it, so the latency of a chunk is the time
+ * from the server handing it to its Socket to the client having read all of it.
+ *
+ * Usage: TransportBenchmark [-pacing] [size in bytes] [seed] [profile...]
+ *
+ * With -pacing, the server's sockets pace their packets, see {@link Socket#setPacing(boolean)}.
+ */
+public class TransportBenchmark {
+
+    private static final int CHUNK_SIZE = Constants.PACKET_SIZE;
+    private static final long TRANSFER_TIMEOUT = 300;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        boolean pacing = args.length > 0 && args[0].equals("-pacing");
+        if (pacing) args = Arrays.copyOfRange(args, 1, args.length);
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 5 * 1024 * 1024;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Profile[] profiles = Profile.PROFILES;
+        if (args.length > 2) {
+            profiles = new Profile[args.length - 2];
+            for (int i = 2; i < args.length; i++) profiles[i - 2] = Profile.forName(args[i]);
+        }
+
+        System.out.println("[TransportBenchmark] " + size + " bytes per transfer, seed " + seed + (pacing ? ", paced" : ""));
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %10s %8s %8s %8s %8s %8s %8s %10s",
+                "profile", "goodput", "connect", "first", "p50", "p99", "sent", "retx", "retx%", "timeouts", "dropped", "segment", "blocked"));
+
+        for (Profile profile : profiles) {
+            Result result = run(profile, size, seed, pacing);
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+    public static Result run(Profile profile, int size, long seed, boolean pacing) throws Exception {
+        CompletableFuture<Socket> served = new CompletableFuture<>();
+        ServerSocket server = new ServerSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), (socket) -> {
+            Thread thread = new Thread(() -> serve(socket, size, served));
+            thread.setName("[TransportBenchmark][server]");
+            thread.start();
+        });
+        // paths with a limited MTU drop oversized packets, so the sockets can probe for it
+        server.setPathMtuProbing(profile.mtu > 0);
+        server.setPacing(pacing);
+        server.open();
+
+        NetworkEmulator emulator = new NetworkEmulator(new InetSocketAddress(server.localAddress(), server.getPort()), profile, seed);
+        emulator.open();
+
+        Result result = new Result(profile, size);
+        try {
+            long start = System.nanoTime();
+            ClientSocket client = new ClientSocket(emulator.getAddress(), emulator.getPort());
+            client.setPathMtuProbing(profile.mtu > 0);
+            // the request is sent as early data in the SYN
+            client.outputStream().write(1);
+            client.connect();
+            result.connectTime = System.nanoTime() - start;
+
+            result.latencies = receive(client, size, start, result);
+            result.transferTime = System.nanoTime() - start - result.connectTime;
+            client.close();
+
+            // let the close handshake finish before the emulator goes away
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            while (client.getState() != Socket.CLOSED && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+            Socket socket = served.get(TRANSFER_TIMEOUT, TimeUnit.SECONDS);
+            SocketStats stats = socket.getStats();
+            result.sent = stats.getPacketsSent();
+            result.retransmits = stats.getRetransmits();
+            result.timeouts = stats.getTimeouts();
+            result.segmentSize = stats.getSegmentSize();
+            result.windowBlockedTime = stats.getWindowBlockedTime();
+            result.dropped = emulator.getDroppedCount();
+
+        } finally {
+            emulator.close();
+            server.close();
+        }
+        return result;
+    }
+
+    /**
+     * Writes size bytes in chunks of {@link #CHUNK_SIZE}, each starting with the time at which it was written.
+     */
+    private static void serve(Socket socket, int size, CompletableFuture<Socket> served) {
+        try {
+            if (socket.inputStream().read() == -1) throw new EOFException("Client closed before requesting");
+
+            OutputStream out = socket.outputStream();
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            for (int written = 0; written < size; written += CHUNK_SIZE) {
+                int len = Math.min(CHUNK_SIZE, size - written);
+                chunk.clear();
+                chunk.putLong(0, System.nanoTime());
+                out.write(chunk.array(), 0, len);
+            }
+            socket.close();
+            served.complete(socket);
+
+        } catch (IOException e) {
+            served.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Reads size bytes, and records the time from start to the first byte in the result.
+     */
+    private static long[] receive(Socket socket, int size, long start, Result result) throws IOException {
+        DataInputStream in = new DataInputStream(socket.inputStream());
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long[] latencies = new long[(size + CHUNK_SIZE - 1) / CHUNK_SIZE];
+
+        int n = 0;
+        for (int read = 0; read < size; read += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, size - read);
+            if (read == 0) {
+                chunk[0] = in.readByte();
+                result.firstByteTime = System.nanoTime() - start;
+                in.readFully(chunk, 1, len - 1);
+
+            } else {
+                in.readFully(chunk, 0, len);
+            }
+            latencies[n++] = System.nanoTime() - ByteBuffer.wrap(chunk).getLong(0);
+        }
+        if (in.read() != -1) throw new IOException("Server sent more than " + size + " bytes");
+        return latencies;
+    }
+
+    public static class Result {
+
+        public final Profile profile;
+        public final int size;
+
+        public long connectTime;
+        public long firstByteTime;
+        public long transferTime;
+        public long[] latencies;
+
+        public long sent;
+        public long retransmits;
+        public long timeouts;
+        public long dropped;
+        public int segmentSize;
+        public long windowBlockedTime;
+
+        public Result(Profile profile, int size) {
+            this.profile = profile;
+            this.size = size;
+        }
+
+        /**
+         * Returns the goodput of the transfer, in megabytes per second.
+         */
+        public double getGoodput() {
+            return this.size / (this.transferTime / 1e9) / 1e6;
+        }
+
+        /**
+         * Returns the given percentile of the chunk latencies, in milliseconds.
+         */
+        public double getLatency(double percentile) {
+            long[] sorted = this.latencies.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+
+        public double getRetransmitRatio() {
+            return this.sent == 0 ? 0 : (double) this.retransmits / this.sent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %7.2fMB/s %8.1fms %8.1fms %8.1fms %8.1fms %8d %8d %7.2f%% %8d %8d %8d %8dms",
+                    this.profile.name, this.getGoodput(), this.connectTime / 1e6, this.firstByteTime / 1e6, this.getLatency(50), this.getLatency(99),
+                    this.sent, this.retransmits, this.getRetransmitRatio() * 100, this.timeouts, this.dropped, this.segmentSize, this.windowBlockedTime);
+        }
+    }
+}
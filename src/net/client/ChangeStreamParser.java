@@ -4,18 +4,40 @@ import net.common.Constants;
 import net.common.JsonField;
 import net.common.JsonStreamParser;
 import net.connect.Session;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 
 public class ChangeStreamParser implements JsonStreamParser.Handler {
 
     private RemoteLibrary library;
 
+    private volatile int events;
+    private volatile boolean synced;
+
     public ChangeStreamParser(RemoteLibrary library) {
         this.library = library;
+        this.events = 0;
+        this.synced = false;
+    }
+
+    /**
+     * Returns the number of events received so far.
+     */
+    public int getEventCount() {
+        return this.events;
+    }
+
+    /**
+     * Returns true once the end of a sync response's snapshot was received, after which the library holds
+     * everything the server had, and only changes follow.
+     */
+    public boolean isSynced() {
+        return this.synced;
     }
 
     @Override
-    public void handle(Socket sessisocketon, JsonField field) {
+    public void handle(DuplexStream sessisocketon, JsonField field) {
+        // only called on the parser's thread
+        this.events++;
         String type = field.getProperty(Constants.EVENT_TYPE_PROPERTY).getStringValue();
         System.out.println("[ChangeStreamParser][handle] Received \"" + type + "\" event");
         switch (type) {
@@ -75,6 +97,11 @@ public class ChangeStreamParser implements JsonStreamParser.Handler {
                 System.out.format("[ChangeStreamParser][handle] Song %d removed", field.getProperty("id").getLongValue());
                 return;
 
+            case Constants.EVENT_SYNCED :
+                this.synced = true;
+                System.out.format("[ChangeStreamParser][handle] Library synced, %d songs", this.library.songs.size());
+                break;
+
             default :
                 System.err.println("[ChangeStreamParser][handler] Unrecognized event type");
         }
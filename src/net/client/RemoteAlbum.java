@@ -1,9 +1,11 @@
 package net.client;
 
+import com.fasterxml.jackson.core.JsonToken;
 import connect.Album;
 import connect.Library;
 import connect.Song;
 import javafx.collections.ObservableList;
+import net.common.JsonDecoder;
 
 public class RemoteAlbum implements Album {
 
@@ -18,6 +20,35 @@ public class RemoteAlbum implements Album {
         this.artist = artist;
     }
 
+    /**
+     * Returns a decoder for the album objects of a list-albums response, which builds RemoteAlbums straight
+     * from the parser's tokens. Unknown fields are ignored, objects missing a field are skipped.
+     *
+     * @param library the library the albums belong to
+     * @return the decoder
+     */
+    public static JsonDecoder<RemoteAlbum> decoder(RemoteLibrary library) {
+        return parser -> {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return null;
+            }
+
+            String title = null, artist = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch (name) {
+                    case "title" : title = parser.getText(); break;
+                    case "artist" : artist = parser.getText(); break;
+                    default : parser.skipChildren();
+                }
+            }
+
+            return title == null || artist == null ? null : new RemoteAlbum(library, title, artist);
+        };
+    }
+
     @Override
     public String getTitle() {
         return this.title;
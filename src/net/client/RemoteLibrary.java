@@ -4,28 +4,42 @@ import connect.Album;
 import connect.Library;
 import connect.Playlist;
 import connect.Song;
+import com.fasterxml.jackson.core.JsonToken;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import net.common.BinaryStreamParser;
 import net.common.Constants;
+import net.common.JsonDecoder;
 import net.common.JsonField;
 import net.common.JsonStreamParser;
 import net.common.JsonStreamParser.Handler;
 import net.common.SimpleJsonWriter;
+import net.common.TypedJsonStreamParser;
 import net.connect.SessionPacket;
-import net.lib.ClientSocket;
-import net.lib.Socket;
+import net.lib.ConnectionPool;
+import net.lib.DuplexStream;
 import utils.CompletableTaskExecutor;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 public class RemoteLibrary implements Library {
 
-    private InetAddress address;
-    private int port;
+    private InetSocketAddress server;
+    private ConnectionPool pool;
+    private volatile String catalogFormat;
+
+    /**
+     * Streams opened by this library and its songs, which may still be open.
+     */
+    private Set<DuplexStream> streams;
 
     protected CompletableTaskExecutor taskManager;
 
@@ -34,8 +48,10 @@ public class RemoteLibrary implements Library {
     protected ObservableList<String> artists;
 
     public RemoteLibrary(InetAddress address, int port) {
-        this.address = address;
-        this.port = port;
+        this.server = new InetSocketAddress(address, port);
+        this.pool = ConnectionPool.getDefault();
+        this.streams = ConcurrentHashMap.newKeySet();
+        this.catalogFormat = Constants.FORMAT_JSON;
 
         this.taskManager = new CompletableTaskExecutor(Runtime.getRuntime().availableProcessors(), 10);
 
@@ -46,81 +62,121 @@ public class RemoteLibrary implements Library {
         System.out.println("[RemoteLibrary] RemoteLibrary instantiated");
     }
 
+    /**
+     * Sets the encoding asked for catalog lists, {@link Constants#FORMAT_JSON} by default, or the more compact
+     * {@link Constants#FORMAT_BINARY}. Takes effect on the next {@link #connect()}.
+     *
+     * @param format the format of list responses
+     */
+    public void setCatalogFormat(String format) {
+        this.catalogFormat = format;
+    }
+
+    /**
+     * Syncs the library with the server, and keeps it in sync. The whole library, then its changes, arrive
+     * on a single stream, in the order the server made them. If the server doesn't know sync requests, the
+     * artists, albums and songs are requested separately, in the format set by {@link #setCatalogFormat(String)}.
+     */
     public void connect() throws SocketException, SocketTimeoutException {
-        // send request to get all artists
-        Socket socket = this.getConnection();
-        SimpleJsonWriter request = new SimpleJsonWriter(socket, false);
         JsonField.ObjectField packet = JsonField.emptyObject();
-        packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_LIST_ARTISTS);
-        request.que(packet);
-        request.complete();
-        this.taskManager.submit(request);
-        this.taskManager.submit(new JsonStreamParser(socket, true, (soc, art) -> {
-            if (art.isString()) {
-                this.artists.add(art.getStringValue());
-                System.out.println("[RemoteLibrary][artistParseHandler] New artist: " + art.getStringValue());
+        packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_SYNC);
+        DuplexStream socket = this.openRequest(packet, Constants.STREAM_PRIORITY_NORMAL);
+        ChangeStreamParser changes = new ChangeStreamParser(this);
+        JsonStreamParser parser = new JsonStreamParser(socket, true, changes, true) {
+            @Override
+            protected void stopped() {
+                // closed cleanly without a single event, the server didn't recognize the request, while
+                // errors and lost connections are left alone, rather than retried on a dead server
+                ParserState state = this.getState();
+                if ((state == ParserState.COMPLETE || state == ParserState.CLOSED) && changes.getEventCount() == 0) {
+                    System.err.println("[RemoteLibrary][connect] Server doesn't support sync, requesting lists");
+                    try {
+                        RemoteLibrary.this.requestLists();
+
+                    } catch (IOException e) {
+                        System.err.println("[RemoteLibrary][connect] IOException while requesting lists");
+                        e.printStackTrace();
+                    }
+                }
             }
-        }, true));
+        };
+        // the stream stays open for changes, parse events as they arrive instead of holding a thread on it
+        parser.listen(this.taskManager);
+    }
+
+    /**
+     * Requests the artists, albums and songs, and the changes made to them, each on its own stream.
+     */
+    protected void requestLists() throws SocketException, SocketTimeoutException {
+        boolean binary = Constants.FORMAT_BINARY.equals(this.catalogFormat);
+
+        // send request to get all artists, the first request goes out with the connection's SYN
+        JsonField.ObjectField packet = JsonField.emptyObject();
+        packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_LIST_ARTISTS);
+        packet.setProperty(Constants.REQUEST_FORMAT_PROPERTY, this.catalogFormat);
+        DuplexStream socket = this.openRequest(packet, Constants.STREAM_PRIORITY_NORMAL);
+        if (binary) {
+            this.taskManager.submit(new BinaryStreamParser(socket, true, (soc, art) -> {
+                String artist = art.readString();
+                this.artists.add(artist);
+                System.out.println("[RemoteLibrary][artistParseHandler] New artist: " + artist);
+            }));
+
+        } else {
+            JsonDecoder<String> artistDecoder = parser -> parser.getCurrentToken() == JsonToken.VALUE_STRING ? parser.getText() : null;
+            this.taskManager.submit(new TypedJsonStreamParser<>(socket, true, artistDecoder, (soc, artist) -> {
+                this.artists.add(artist);
+                System.out.println("[RemoteLibrary][artistParseHandler] New artist: " + artist);
+            }));
+        }
 
         // send request to get all albums
-        socket = this.getConnection();
-        //socket.debug = true;
-        request = new SimpleJsonWriter(socket, false);
         packet = JsonField.emptyObject();
         packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_LIST_ALBUMS);
-        request.que(packet);
-        request.complete();
-        this.taskManager.submit(request);
-        this.taskManager.submit(new JsonStreamParser(socket, true, (sess, alb) -> {
-            if (alb.isObject() && alb.containsKey("title") && alb.containsKey("artist")){
-                this.albums.add(new RemoteAlbum(this, alb.getProperty("title").getStringValue(), alb.getProperty("artist").getStringValue()));
-                System.out.println("[RemoteLibrary][albumParseHandler] New album: " + alb.getProperty("title").getStringValue());
-            }
+        packet.setProperty(Constants.REQUEST_FORMAT_PROPERTY, this.catalogFormat);
+        socket = this.openRequest(packet, Constants.STREAM_PRIORITY_NORMAL);
+        if (binary) {
+            this.taskManager.submit(new BinaryStreamParser(socket, true, (sess, alb) -> {
+                RemoteAlbum album = new RemoteAlbum(this, alb.readString(), alb.readSharedString());
+                this.albums.add(album);
+                System.out.println("[RemoteLibrary][albumParseHandler] New album: " + album.getTitle());
+            }));
 
-        }, true));
+        } else {
+            this.taskManager.submit(new TypedJsonStreamParser<>(socket, true, RemoteAlbum.decoder(this), (sess, album) -> {
+                this.albums.add(album);
+                System.out.println("[RemoteLibrary][albumParseHandler] New album: " + album.getTitle());
+            }));
+        }
 
         // send request to get all songs
-        socket = this.getConnection();
-        //socket.debug = true;
-        request = new SimpleJsonWriter(socket, false);
         packet = JsonField.emptyObject();
         packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_LIST_SONGS);
-        request.que(packet);
-        request.complete();
-        this.taskManager.submit(request);
-        this.taskManager.submit(new JsonStreamParser(socket, true, (sess, song) -> {
-            if (song.isObject()) {
-                if (song.containsKey("title") &&
-                    song.containsKey("artist") &&
-                    song.containsKey("album") &&
-                    song.containsKey("duration") &&
-                    song.containsKey("id")) {
-                    this.songs.add(new RemoteSong(this,
-                            song.getProperty("title").getStringValue(),
-                            song.getProperty("artist").getStringValue(),
-                            song.getProperty("album").getStringValue(),
-                            song.getProperty("duration").getLongValue(),
-                            song.getProperty("id").getLongValue()));
-                    System.out.println("[RemoteLibrary][songParseHandler] New song added to library: " + song.getProperty("title").getStringValue());
-
-                } else {
-                    System.err.println("[RemoteLibrary][SongParseHandler] Received incomplete song data");
-                }
-            }
+        packet.setProperty(Constants.REQUEST_FORMAT_PROPERTY, this.catalogFormat);
+        socket = this.openRequest(packet, Constants.STREAM_PRIORITY_NORMAL);
+        if (binary) {
+            this.taskManager.submit(new BinaryStreamParser(socket, true, (sess, song) -> {
+                // fields in the order LibraryServer writes them
+                RemoteSong remote = new RemoteSong(this, song.readString(), song.readSharedString(), song.readSharedString(),
+                        song.readVarint(), song.readLong());
+                this.songs.add(remote);
+                System.out.println("[RemoteLibrary][songParseHandler] New song added to library: " + remote.getTitle());
+            }));
 
-        }, true));
+        } else {
+            this.taskManager.submit(new TypedJsonStreamParser<>(socket, true, RemoteSong.decoder(this), (sess, song) -> {
+                this.songs.add(song);
+                System.out.println("[RemoteLibrary][songParseHandler] New song added to library: " + song.getTitle());
+            }));
+        }
 
-        socket = this.getConnection();
-        //socket.debug = true;
-        request = new SimpleJsonWriter(socket, false);
         packet = JsonField.emptyObject();
         packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_SUBSCRIBE);
-        request.que(packet);
-        request.complete();
-        this.taskManager.submit(request);
+        socket = this.openRequest(packet, Constants.STREAM_PRIORITY_NORMAL);
         JsonStreamParser parser = new JsonStreamParser(socket, true, new ChangeStreamParser(this));
         parser.debug = true;
-        this.taskManager.submit(parser);
+        // the subscription stays open, parse events as they arrive instead of holding a thread on it
+        parser.listen(this.taskManager);
         //socket.addDisconnectListener(() -> System.out.println("[RemoteLibrary] Change subscription disconnected"));
 /*
         socket = this.getConnection();
@@ -134,20 +190,64 @@ public class RemoteLibrary implements Library {
 */
     }
 
+    /**
+     * Closes the streams opened by this library and its songs. The connections they were carried by are shared
+     * with the other users of the pool, and are left to it, to close once they're idle.
+     */
     public void disconnect() {
         this.taskManager.shutdown();
+        for (DuplexStream stream : this.streams) {
+            stream.close();
+            try {
+                stream.inputStream().close();
+
+            } catch (IOException e) {
+                System.err.println("[RemoteLibrary][disconnect] IOException while closing stream");
+                e.printStackTrace();
+            }
+        }
+        this.streams.clear();
     }
 
-    protected Socket getConnection() throws SocketException, SocketTimeoutException {
-        ClientSocket socket = new ClientSocket(this.address, this.port);
-        socket.connect();
-        return socket;
+    protected DuplexStream getConnection() throws SocketException, SocketTimeoutException {
+        return this.getConnection(Constants.STREAM_PRIORITY_NORMAL);
     }
 
-    protected Socket getConnection(int sendBuffer, int receiveBuffer) throws SocketException, SocketTimeoutException {
-        ClientSocket socket = new ClientSocket(this.address, this.port, sendBuffer, receiveBuffer);
-        socket.connect();
-        return socket;
+    /**
+     * Opens a new stream to the server. Streams share the pooled connections to the server, a connection
+     * is only opened when the pooled ones are lost or already carry too many streams.
+     *
+     * @param priority the priority of the stream, see {@link Constants#STREAM_PRIORITY_NORMAL}
+     * @return the new stream
+     */
+    protected DuplexStream getConnection(int priority) throws SocketException, SocketTimeoutException {
+        return this.openRequest(null, priority);
+    }
+
+    /**
+     * Opens a new stream to the server, and sends the given request on it. If a connection has to be
+     * opened first, the request is sent as early data in its SYN packet, so the server can start
+     * answering one round trip sooner.
+     *
+     * @param request the request to send, or null to only open the stream
+     * @param priority the priority of the stream, see {@link Constants#STREAM_PRIORITY_NORMAL}
+     * @return the new stream, on which the response arrives
+     */
+    protected DuplexStream openRequest(JsonField request, int priority) throws SocketException, SocketTimeoutException {
+        try {
+            DuplexStream stream = this.pool.openStream(this.server, priority, request == null ? null : s -> SimpleJsonWriter.write(s, request));
+            this.streams.removeIf(DuplexStream::isClosed);
+            this.streams.add(stream);
+            return stream;
+
+        } catch (SocketException | SocketTimeoutException e) {
+            throw e;
+
+        } catch (IOException e) {
+            SocketException ex = new SocketException("Unable to open stream to library server");
+            ex.initCause(e);
+            throw ex;
+        }
     }
 
     @Override
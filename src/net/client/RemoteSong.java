@@ -1,12 +1,13 @@
 package net.client;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
 import connect.Library;
 import connect.Song;
 import net.common.Constants;
+import net.common.JsonDecoder;
 import net.common.JsonField;
-import net.common.SimpleJsonWriter;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -39,6 +40,45 @@ public class RemoteSong implements Song {
         this.id = id;
     }
 
+    /**
+     * Returns a decoder for the song objects of a list-songs response, which builds RemoteSongs straight from
+     * the parser's tokens. Unknown fields are ignored, objects missing a field are skipped.
+     *
+     * @param library the library the songs belong to
+     * @return the decoder
+     */
+    public static JsonDecoder<RemoteSong> decoder(RemoteLibrary library) {
+        return parser -> {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return null;
+            }
+
+            String title = null, artist = null, album = null;
+            long duration = 0, id = 0;
+            int found = 0;
+            // field names are canonicalized by the parser, so matching them doesn't allocate
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch (name) {
+                    case "title" : title = parser.getText(); found |= 1; break;
+                    case "artist" : artist = parser.getText(); found |= 2; break;
+                    case "album" : album = parser.getText(); found |= 4; break;
+                    case "duration" : duration = parser.getLongValue(); found |= 8; break;
+                    case "id" : id = parser.getLongValue(); found |= 16; break;
+                    default : parser.skipChildren();
+                }
+            }
+
+            if (found != 31) {
+                System.err.println("[RemoteSong][decoder] Received incomplete song data");
+                return null;
+            }
+            return new RemoteSong(library, title, artist, album, duration, id);
+        };
+    }
+
     public long getId() {
         return this.id;
     }
@@ -75,9 +115,14 @@ public class RemoteSong implements Song {
         Thread t = new Thread(() -> {
             System.out.println("[RemoteSong][getStream] Requesting song stream");
 
-            Socket socket = null;
+            JsonField.ObjectField packet = JsonField.emptyObject();
+            packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_STREAM_SONG);
+            packet.setProperty("id", this.getId());
+
+            DuplexStream socket = null;
             try {
-                socket = this.library.getConnection(Constants.BUFFER_SIZE, 1024 * 150);
+                // ahead of catalog streams, playback stalls if song data falls behind
+                socket = this.library.openRequest(packet, Constants.STREAM_PRIORITY_HIGH);
                 //socket.debug = Constants.FINE;
 
             } catch (SocketException e) {
@@ -89,16 +134,7 @@ public class RemoteSong implements Song {
                 e.printStackTrace();
             }
             System.out.println("[RemoteSong][getStream] Opened Socket");
-
-            SimpleJsonWriter request = new SimpleJsonWriter(socket, false);
-            JsonField.ObjectField packet = JsonField.emptyObject();
-            packet.setProperty(Constants.REQUEST_TYPE_PROPERTY, Constants.REQUEST_STREAM_SONG);
-            packet.setProperty("id", this.getId());
-            request.que(packet);
-            request.complete();
-            library.taskManager.submit(request);
-
-            System.out.println("[RemoteSong][getStream] Request sending");
+            System.out.println("[RemoteSong][getStream] Request sent");
             System.out.println("[RemoteSong][getStream] Waiting for response data");
 
             InputStream in = socket.inputStream();
@@ -0,0 +1,103 @@
+package net.common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads a binary catalog response, as written by {@link BinaryRecordWriter}. Records are read one at a
+ * time with {@link #next()}, and their fields in the order they were written.
+ */
+public class BinaryRecordReader {
+
+    private final DataInputStream in;
+
+    private byte[] record;
+    private int position;
+    private int length;
+
+    private ArrayList<String> strings;
+
+    public BinaryRecordReader(InputStream in) {
+        this.in = new DataInputStream(in);
+        this.record = new byte[256];
+        this.position = 0;
+        this.length = 0;
+        this.strings = new ArrayList<>();
+    }
+
+    /**
+     * Reads the start of the response.
+     *
+     * @return false if the stream doesn't hold a binary catalog response
+     */
+    public boolean readHeader() throws IOException {
+        return this.in.readInt() == BinaryRecordWriter.MAGIC;
+    }
+
+    /**
+     * Reads the next record, blocking until all of it was received.
+     *
+     * @return false once the empty record ending the response was read
+     * @throws EOFException if the stream ends before the response does
+     */
+    public boolean next() throws IOException {
+        long size = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = this.in.read();
+            if (b == -1) throw new EOFException("Binary response ended before its last record");
+            size |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            if (shift > 28) throw new IOException("Malformed record length");
+        }
+        if (size > Constants.BINARY_MAX_RECORD_SIZE) throw new IOException("Record of " + size + " bytes is too large");
+
+        if (size > this.record.length) this.record = new byte[(int) size];
+        this.in.readFully(this.record, 0, (int) size);
+        this.position = 0;
+        this.length = (int) size;
+        return size > 0;
+    }
+
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (this.position >= this.length) throw new EOFException("Field past the end of the record");
+            byte b = this.record[this.position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public long readLong() throws IOException {
+        long value = this.readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() throws IOException {
+        long size = this.readVarint();
+        if (size > this.length - this.position) throw new EOFException("String past the end of the record");
+        String value = new String(this.record, this.position, (int) size, StandardCharsets.UTF_8);
+        this.position += (int) size;
+        return value;
+    }
+
+    /**
+     * Reads a string written by {@link BinaryRecordWriter#writeSharedString(String)}.
+     */
+    public String readSharedString() throws IOException {
+        long index = this.readVarint();
+        if (index == 0) {
+            String value = this.readString();
+            if (this.strings.size() < Constants.BINARY_STRING_TABLE_SIZE) this.strings.add(value);
+            return value;
+        }
+
+        if (index > this.strings.size()) throw new IOException("Unknown string reference " + index);
+        return this.strings.get((int) index - 1);
+    }
+}
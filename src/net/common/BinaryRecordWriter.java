@@ -0,0 +1,135 @@
+package net.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes a binary catalog response, the compact alternative to a JSON array of elements.
+ *
+ * A response starts with {@link #MAGIC}, followed by one record per element, each prefixed with its length
+ * as a varint, and ends with an empty record. Within a record, integers are varints, and strings are a varint
+ * length followed by their UTF-8 bytes. Shared strings, meant for values repeated across records such as
+ * artist and album names, are written once, and afterwards referenced by their index in the response's
+ * string table. Readers skip any bytes left at the end of a record, so fields can be appended later.
+ */
+public class BinaryRecordWriter {
+
+    /**
+     * "SPC" and the format version.
+     */
+    static final int MAGIC = 0x53504301;
+
+    private final OutputStream out;
+
+    private byte[] record;
+    private int length;
+    private final byte[] prefix;
+
+    private HashMap<String, Integer> strings;
+
+    public BinaryRecordWriter(OutputStream out) {
+        this.out = out;
+        this.record = new byte[256];
+        this.length = 0;
+        this.prefix = new byte[5];
+        this.strings = new HashMap<>();
+    }
+
+    /**
+     * Writes the start of the response, must be called before the first record.
+     */
+    public void writeHeader() throws IOException {
+        this.out.write(MAGIC >>> 24);
+        this.out.write(MAGIC >>> 16);
+        this.out.write(MAGIC >>> 8);
+        this.out.write(MAGIC);
+    }
+
+    /**
+     * Appends an unsigned varint to the current record, 7 bits per byte, least significant first.
+     */
+    public void writeVarint(long value) {
+        this.ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            this.record[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.record[this.length++] = (byte) value;
+    }
+
+    /**
+     * Appends a signed value to the current record, zigzag encoded so small negative values stay short.
+     */
+    public void writeLong(long value) {
+        this.writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.writeVarint(bytes.length);
+        this.ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.record, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    /**
+     * Appends a string that is likely to be repeated in later records. The first time, it's written as 0
+     * followed by the string, and added to the string table, afterwards only its index in the table, plus 1,
+     * is written. Once the table is full, new strings are always written out.
+     */
+    public void writeSharedString(String value) {
+        Integer index = this.strings.get(value);
+        if (index != null) {
+            this.writeVarint(index + 1);
+            return;
+        }
+
+        this.writeVarint(0);
+        this.writeString(value);
+        if (this.strings.size() < Constants.BINARY_STRING_TABLE_SIZE) this.strings.put(value, this.strings.size());
+    }
+
+    /**
+     * Writes the current record to the stream, and starts the next one.
+     *
+     * @return the number of bytes written
+     */
+    public int endRecord() throws IOException {
+        int payload = this.length;
+        // the length prefix goes in front of the record, so encode it separately
+        byte[] prefix = this.prefix;
+        int n = 0;
+        int value = payload;
+        while ((value & ~0x7F) != 0) {
+            prefix[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        prefix[n++] = (byte) value;
+
+        this.out.write(prefix, 0, n);
+        this.out.write(this.record, 0, payload);
+        this.length = 0;
+        return n + payload;
+    }
+
+    /**
+     * Writes the empty record that ends the response.
+     */
+    public void end() throws IOException {
+        this.length = 0;
+        this.out.write(0);
+    }
+
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    private void ensure(int space) {
+        if (this.length + space > this.record.length) {
+            this.record = Arrays.copyOf(this.record, Math.max(this.record.length * 2, this.length + space));
+        }
+    }
+}
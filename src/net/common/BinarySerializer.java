@@ -0,0 +1,8 @@
+package net.common;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface BinarySerializer<T> {
+    void serialize(T t, BinaryRecordWriter out) throws IOException;
+}
@@ -0,0 +1,66 @@
+package net.common;
+
+import net.lib.DuplexStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads a binary catalog response, see {@link BinaryRecordWriter}, and passes each record to a handler,
+ * the way {@link JsonStreamParser} passes the elements of a JSON array treated as a stream.
+ */
+public class BinaryStreamParser implements Runnable {
+
+    private DuplexStream socket;
+
+    private Handler handler;
+
+    private boolean autoCloseSocket;
+
+    public boolean debug = false;
+
+    public BinaryStreamParser(DuplexStream socket, boolean autoCloseSocket, Handler handler) {
+        this.socket = socket;
+        this.autoCloseSocket = autoCloseSocket;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        try {
+            BinaryRecordReader reader = new BinaryRecordReader(this.socket.inputStream());
+            if (!reader.readHeader()) {
+                System.err.println("[BinaryStreamParser][run] Response is not in the binary format");
+
+            } else {
+                int count = 0;
+                while (reader.next()) {
+                    this.handler.handle(this.socket, reader);
+                    count++;
+                }
+                if (this.debug) System.out.println("[BinaryStreamParser][run] Read " + count + " records");
+            }
+
+        } catch (EOFException e) {
+            System.err.println("[BinaryStreamParser][run] Stream ended before the response was complete");
+
+        } catch (IOException e) {
+            System.err.println("[BinaryStreamParser][run] IOException while reading records");
+            e.printStackTrace();
+        }
+
+        this.finished();
+    }
+
+    protected void finished() {
+        if (this.autoCloseSocket) {
+            if (this.debug) System.out.println("[BinaryStreamParser][finished] Response finished, closing socket");
+            this.socket.close();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(DuplexStream socket, BinaryRecordReader record) throws IOException;
+    }
+}
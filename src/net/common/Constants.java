@@ -6,9 +6,41 @@ public class Constants {
     public static final int HEADER_OVERHEAD = 2 * 4;
     public static final int FOOTER_OVERHEAD = 8;
     public static final int PACKET_BUFFER_SIZE = PACKET_SIZE + HEADER_OVERHEAD + FOOTER_OVERHEAD;
+    // fits in a 1280 byte IPv6 minimum MTU, with room for IP options and tunnel headers
+    public static final int MIN_PACKET_SIZE = 1200 - HEADER_OVERHEAD - FOOTER_OVERHEAD;
+    public static final int MTU_PROBE_ATTEMPTS = 3;
+    // SYN packets carry 6 ints before the early data, and must fit in the smallest segment
+    public static final int MAX_EARLY_DATA = MIN_PACKET_SIZE - 6 * 4;
+    public static final int MTU_PROBE_PRECISION = 32;
     public static final long RESEND_DELAY = 4096;
+    public static final long INITIAL_RESEND_DELAY = 1000;
+    public static final long MIN_RESEND_DELAY = 50;
+    public static final long MAX_RESEND_DELAY = 8192;
     public static final long TIMEOUT_DELAY = 16384;
     public static final int BUFFER_SIZE = 1024 * 200;
+    public static final int MAX_SACK_BLOCKS = 8;
+    public static final int DUPLICATE_ACK_THRESHOLD = 3;
+    public static final int INITIAL_CONGESTION_WINDOW = 4;
+    public static final int DELAYED_ACK_PACKETS = 2;
+    public static final long DELAYED_ACK_TIMEOUT = 10;
+    // paced sockets send at this multiple of window / RTT, so pacing itself never limits the window
+    public static final double PACING_GAIN = 1.25;
+    // the longest burst a paced socket sends to catch up, in milliseconds, at least a timer tick
+    public static final long PACING_QUANTUM = 2;
+    // MESSAGE packets covered by one parity packet, at most one of them can be recovered
+    public static final int FEC_GROUP_SIZE = 8;
+    // parity packets carry 4 bytes more than the packets they cover, so segments shrink by as much
+    public static final int FEC_OVERHEAD = 4;
+    public static final int PACKET_POOL_SIZE = 32;
+    public static final int STREAM_WINDOW = 1024 * 128;
+    public static final int STREAM_FRAME_SIZE = 1024 * 16;
+    public static final int STREAM_PRIORITY_LOW = 0;
+    public static final int STREAM_PRIORITY_NORMAL = 4;
+    public static final int STREAM_PRIORITY_HIGH = 8;
+    public static final int POOL_MAX_CONNECTIONS = 2;
+    public static final int POOL_MAX_STREAMS = 32;
+    public static final long POOL_IDLE_TIMEOUT = 60000;
+    public static final int EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 
     // client package
     public static final int MIN_BUFFERED_DATA = 2048;
@@ -20,6 +52,15 @@ public class Constants {
     public static final String REQUEST_LIST_SONGS = "list-songs";
     public static final String REQUEST_STREAM_SONG = "stream-song";
     public static final String REQUEST_SUBSCRIBE = "subscribe-changes";
+    // the whole library as change events, followed by the changes made since, on the same stream
+    public static final String REQUEST_SYNC = "sync";
+    // encoding of list responses, JSON unless the request asks otherwise
+    public static final String REQUEST_FORMAT_PROPERTY = "format";
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_BINARY = "binary";
+    // strings shared by reference within one binary response, after which repeated strings are written out again
+    public static final int BINARY_STRING_TABLE_SIZE = 1 << 16;
+    public static final int BINARY_MAX_RECORD_SIZE = 1 << 20;
     // library change subscription event types
     public static final String EVENT_TYPE_PROPERTY = "type";
     public static final String EVENT_SONG_ADDED = "song-added";
@@ -28,6 +69,8 @@ public class Constants {
     public static final String EVENT_ARTIST_REMOVED = "artist-removed";
     public static final String EVENT_ALBUM_ADDED = "album-added";
     public static final String EVENT_ALBUM_REMOVED = "album-removed";
+    // ends the snapshot of a sync response
+    public static final String EVENT_SYNCED = "synced";
 
     public static final int SEVERE = 100;
     public static final int ERROR = 90;
@@ -0,0 +1,62 @@
+package net.common;
+
+import net.lib.DuplexStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Streams the elements of an iterator as a binary catalog response, see {@link BinaryRecordWriter},
+ * one record per element.
+ */
+public class IterativeStreamingBinarySerializer<T> extends StreamGenerator {
+
+    private Iterator<T> source;
+    private BinarySerializer<T> serializer;
+
+    protected BinaryRecordWriter out;
+
+    public IterativeStreamingBinarySerializer(DuplexStream socket, boolean autoClose, Iterator<T> source, BinarySerializer<T> serializer) {
+        super(socket, autoClose);
+        this.source = source;
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected void initialize() throws IOException {
+        super.initialize();
+        // records are small, hand them to the stream a frame at a time
+        this.out = new BinaryRecordWriter(new BufferedOutputStream(this.dest, Constants.STREAM_FRAME_SIZE));
+        this.out.writeHeader();
+    }
+
+    @Override
+    protected void transfer(int maxSize) throws IOException {
+        int count = 0;
+        while (count < maxSize && this.source.hasNext()) {
+            this.serializer.serialize(this.source.next(), this.out);
+            count += this.out.endRecord();
+        }
+
+        if (!this.source.hasNext()) {
+            this.out.end();
+            this.finished();
+
+        } else {
+            this.out.flush();
+        }
+    }
+
+    @Override
+    protected void finished() {
+        try {
+            if (this.out != null) this.out.flush();
+
+        } catch (IOException e) {
+            System.err.println("[IterativeStreamingBinarySerializer][finished] IOException while flushing records");
+        }
+
+        super.finished();
+    }
+}
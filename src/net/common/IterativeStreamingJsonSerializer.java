@@ -1,6 +1,6 @@
 package net.common;
 
-import net.lib.Socket;
+import net.lib.DuplexStream;
 
 import java.io.IOException;
 import java.util.Iterator;
@@ -10,7 +10,7 @@ public class IterativeStreamingJsonSerializer<T> extends JsonStreamGenerator {
     private Iterator<T> source;
     private JsonSerializer<T> serializer;
 
-    public IterativeStreamingJsonSerializer(Socket socket, boolean autoClose, Iterator<T> source, JsonSerializer<T> serializer) {
+    public IterativeStreamingJsonSerializer(DuplexStream socket, boolean autoClose, Iterator<T> source, JsonSerializer<T> serializer) {
         super(socket, autoClose);
         this.source = source;
         this.serializer = serializer;
@@ -0,0 +1,21 @@
+package net.common;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+/**
+ * Decodes one element of a JSON stream straight from the parser's tokens, without building a {@link JsonField} tree.
+ */
+@FunctionalInterface
+public interface JsonDecoder<T> {
+
+    /**
+     * Decodes the element starting at the parser's current token. When it returns, the parser must be on the
+     * element's last token, which is its only token for scalar values.
+     *
+     * @param parser the parser, on the element's first token
+     * @return the decoded element, or null if it should be skipped
+     */
+    T decode(JsonParser parser) throws IOException;
+}
@@ -4,7 +4,7 @@ import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import net.connect.Session;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 import utils.CountingOutputStream;
 
 import java.io.IOException;
@@ -17,7 +17,7 @@ public abstract class JsonStreamGenerator extends StreamGenerator {
 
     protected CountingOutputStream counter;
 
-    public JsonStreamGenerator(Socket socket, boolean autoClose) {
+    public JsonStreamGenerator(DuplexStream socket, boolean autoClose) {
         super(socket, autoClose);
     }
 
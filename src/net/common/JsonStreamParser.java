@@ -3,17 +3,21 @@ package net.common;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import net.lib.Socket;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import net.lib.DuplexStream;
 import utils.CompletableRunnable;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JsonStreamParser implements Runnable {
 
     private static JsonFactory factory = new JsonFactory();
 
-    private Socket socket;
+    private DuplexStream socket;
 
     private Handler handler;
 
@@ -27,18 +31,30 @@ public class JsonStreamParser implements Runnable {
 
     private boolean globalArrayAsStream = false;
 
+    /**
+     * Non-blocking mode, see {@link #listen(Executor)}. Scheduled is set while a parsing task is queued or running.
+     */
+    private Executor executor;
+    private ByteArrayFeeder feeder;
+    private byte[] feed;
+    private AtomicBoolean scheduled;
+
+    // set once stopped() was called
+    private AtomicBoolean stopped;
+
     public boolean debug = false;
 
-    public JsonStreamParser(Socket socket, boolean autoCloseSocket, Handler handler) {
+    public JsonStreamParser(DuplexStream socket, boolean autoCloseSocket, Handler handler) {
         this.socket = socket;
         this.autoCloseSocket = autoCloseSocket;
         this.handler = handler;
         this.state = ParserState.NEW;
         this.contextStack = new LinkedList<>();
+        this.stopped = new AtomicBoolean(false);
         //this.socket.addDisconnectListener(() -> this.state = ParserState.CLOSED);
     }
 
-    public JsonStreamParser(Socket socket, boolean autoCloseSocket, Handler handler, boolean globalArrayAsStream) {
+    public JsonStreamParser(DuplexStream socket, boolean autoCloseSocket, Handler handler, boolean globalArrayAsStream) {
         this(socket, autoCloseSocket, handler);
         this.globalArrayAsStream = globalArrayAsStream;
     }
@@ -119,6 +135,116 @@ public class JsonStreamParser implements Runnable {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        this.stop();
+    }
+
+    /**
+     * Parses the stream without ever blocking a thread, instead of {@link #run()}. Whenever data arrives, the
+     * socket's input listener queues a task on the executor, which feeds everything received so far to a
+     * non-blocking parser, hands each complete element to the handler as soon as its last byte was fed, and
+     * returns once the parser needs more input. Nothing waits on the stream in between.
+     *
+     * @param executor runs the parsing tasks, never more than one at a time for this parser
+     */
+    public void listen(Executor executor) {
+        if (this.state != ParserState.NEW) throw new IllegalStateException("JsonStreamParser was already started");
+
+        try {
+            this.parser = factory.createNonBlockingByteArrayParser();
+
+        } catch (IOException e) {
+            this.finished();
+            this.state = ParserState.ERROR;
+            System.err.println("[JsonStreamParser][listen] IOException while creating JsonParser");
+            e.printStackTrace();
+            this.stop();
+            return;
+        }
+        this.feeder = (ByteArrayFeeder) this.parser.getNonBlockingInputFeeder();
+        this.feed = new byte[Constants.STREAM_FRAME_SIZE];
+        this.executor = executor;
+        this.scheduled = new AtomicBoolean(true);
+        this.state = ParserState.READY;
+
+        this.socket.setInputListener(this::schedule);
+        try {
+            // data may have arrived before the listener was set
+            executor.execute(this::drain);
+
+        } catch (RejectedExecutionException e) {
+            System.err.println("[JsonStreamParser][listen] Executor was shut down, not parsing");
+            this.state = ParserState.ABORTED;
+            this.socket.setInputListener(null);
+            this.stop();
+        }
+    }
+
+    private void schedule() {
+        if (!this.scheduled.compareAndSet(false, true)) return;
+        try {
+            this.executor.execute(this::drain);
+
+        } catch (RejectedExecutionException e) {
+            // called on the receiving thread, which must keep going
+            System.err.println("[JsonStreamParser][schedule] Executor was shut down, stopped parsing");
+            this.state = ParserState.ABORTED;
+            this.socket.setInputListener(null);
+            this.stop();
+        }
+    }
+
+    /**
+     * Parses everything that can be parsed with the data received so far. Runs on the executor.
+     */
+    private void drain() {
+        try {
+            InputStream in = this.socket.inputStream();
+            while (this.state.isAlive()) {
+                JsonToken token = this.parser.nextToken();
+
+                if (token == JsonToken.NOT_AVAILABLE) {
+                    int amnt = Math.min(in.available(), this.feed.length);
+                    if (amnt > 0) {
+                        // data is available, so doesn't block
+                        amnt = in.read(this.feed, 0, amnt);
+                        this.feeder.feedInput(this.feed, 0, amnt);
+
+                    } else if (this.socket.isReceiveClosed()) {
+                        this.feeder.endOfInput();
+
+                    } else {
+                        // wait for the input listener, unless data arrived before it could be told to look again
+                        this.scheduled.set(false);
+                        if (in.available() == 0 && !this.socket.isReceiveClosed()) return;
+                        if (!this.scheduled.compareAndSet(false, true)) return;
+                    }
+
+                } else if (token == null) {
+                    if (this.debug) System.out.println("[JsonStreamParser][drain][" + this.state + "] Input is closed");
+                    this.finished();
+                    this.state = ParserState.CLOSED;
+
+                } else {
+                    this.processToken(token, this.parser);
+                }
+            }
+
+        } catch (IOException e) {
+            this.finished();
+            this.state = ParserState.ERROR;
+            System.err.println("[JsonStreamParser][drain] IOException while parsing input");
+            e.printStackTrace();
+
+        } catch (Exception e) {
+            // thrown by the handler, stop here rather than leave the stream unread with nobody told
+            this.finished();
+            this.state = ParserState.ERROR;
+            System.err.println("[JsonStreamParser][drain] Exception while handling input");
+            e.printStackTrace();
+        }
+
+        this.socket.setInputListener(null);
+        this.stop();
     }
 
     public ParserState getState() {
@@ -129,6 +255,18 @@ public class JsonStreamParser implements Runnable {
         this.parser = factory.createParser(this.socket.inputStream());
     }
 
+    private void stop() {
+        if (this.stopped.compareAndSet(false, true)) this.stopped();
+    }
+
+    /**
+     * Called once parsing stopped, after {@link #getState()} took its final value: COMPLETE or CLOSED once
+     * the input ended cleanly, ERROR if it couldn't be read or parsed, ABORTED if parsing was given up.
+     */
+    protected void stopped() {
+
+    }
+
     protected void finished() {
         this.state = ParserState.COMPLETE;
         //System.out.println("[JsonStreamParser][finished] JsonStreamParser finished");
@@ -243,7 +381,7 @@ public class JsonStreamParser implements Runnable {
 
     @FunctionalInterface
     public interface Handler {
-        void handle(Socket socket, JsonField field);
+        void handle(DuplexStream socket, JsonField field);
     }
 
     private class ParserContext {
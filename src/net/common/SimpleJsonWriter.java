@@ -1,8 +1,11 @@
 package net.common;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import net.connect.Session;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -13,7 +16,7 @@ public class SimpleJsonWriter extends JsonStreamGenerator {
 
     private AtomicBoolean running;
 
-    public SimpleJsonWriter(Socket socket, boolean autoClose) {
+    public SimpleJsonWriter(DuplexStream socket, boolean autoClose) {
         super(socket, autoClose);
 
         this.queueLock = new Object();
@@ -36,6 +39,8 @@ public class SimpleJsonWriter extends JsonStreamGenerator {
                     next.write(this.gen);
                     //System.out.println("[SimpleJsonWriter][transfer] Wrote a JsonField");
                 }
+                // queued fields are sent as they come, don't hold them until the generator's buffer fills
+                this.gen.flush();
             } else {
                 //System.out.println("[SimpleJsonWriter] SimpleJsonWriter finished");
                 this.finished();
@@ -49,6 +54,7 @@ public class SimpleJsonWriter extends JsonStreamGenerator {
                 this.que.addLast(field);
                 //System.out.println("[SimpletJsonWriter][que] Queued a JsonField");
             }
+            this.resume();
         } else {
             throw new IllegalStateException("SimpleJsonWriter is closed");
         }
@@ -57,5 +63,20 @@ public class SimpleJsonWriter extends JsonStreamGenerator {
     public void complete() {
         //System.out.println("[SimpleJsonWriter] Completed with " + this.que.size() + " items in queue");
         this.running.set(false);
+        this.resume();
+    }
+
+    /**
+     * Writes a single JsonField to the socket on the calling thread, without a task. Meant for short
+     * requests, which fit in the socket's send buffer, so this doesn't block.
+     *
+     * @param socket the socket to write to
+     * @param field the field to write
+     * @throws IOException if the socket is closed
+     */
+    public static void write(DuplexStream socket, JsonField field) throws IOException {
+        JsonGenerator gen = factory.createGenerator(socket.outputStream(), JsonEncoding.UTF8);
+        field.write(gen);
+        gen.flush();
     }
 }
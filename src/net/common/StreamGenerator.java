@@ -1,83 +1,175 @@
 package net.common;
 
-import net.lib.Socket;
+import net.lib.DuplexStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes generated data to a stream, as fast as the stream takes it, without ever waiting on it.
+ *
+ * A generator runs in steps on an executor. Each step transfers at most as much data as the send buffer has
+ * room for, then queues the next step, so that many generators share a few threads fairly. A generator stops
+ * being scheduled while the send buffer is full, or while it's waiting for its source, see
+ * {@link #waitingForSource()}, and is resumed by the stream's output listener once the buffer drained to half
+ * its size, or by {@link #resume()} once its source has more data.
+ */
 public abstract class StreamGenerator implements Runnable {
 
-    protected Socket socket;
+    protected DuplexStream socket;
 
-    private GeneratorState state;
+    private volatile GeneratorState state;
 
     protected OutputStream dest;
 
     private boolean autoClose = false;
 
-    public StreamGenerator(Socket socket, boolean autoClose) {
+    private Executor executor;
+    // set while a step is queued or running
+    private AtomicBoolean scheduled;
+    // set once stopped() was called
+    private AtomicBoolean stopped;
+
+    // run() waits on this between steps
+    private final Object stepLock;
+    private boolean stepPending;
+
+    public StreamGenerator(DuplexStream socket, boolean autoClose) {
         this.socket = socket;
         this.state = GeneratorState.NEW;
         this.autoClose = autoClose;
+        this.scheduled = new AtomicBoolean(false);
+        this.stopped = new AtomicBoolean(false);
+        this.stepLock = new Object();
+        this.stepPending = false;
+    }
+
+    /**
+     * Starts generating, with each step running on the given executor.
+     *
+     * @param executor runs the steps, never more than one at a time for this generator
+     */
+    public void start(Executor executor) {
+        if (this.executor != null) throw new IllegalStateException("StreamGenerator was already started");
+        this.executor = executor;
+        this.scheduled.set(true);
+        this.socket.setOutputListener(this::schedule);
+        executor.execute(this::step);
     }
 
+    /**
+     * Generates on the calling thread, until the generator is done. The thread waits in between steps.
+     */
     @Override
     public void run() {
+        this.start(step -> {
+            synchronized (this.stepLock) {
+                this.stepPending = true;
+                this.stepLock.notifyAll();
+            }
+        });
+
         try {
+            while (true) {
+                synchronized (this.stepLock) {
+                    while (!this.stepPending) this.stepLock.wait();
+                    this.stepPending = false;
+                }
+                if (!this.step()) break;
+            }
+
+        } catch (InterruptedException e) {
+            System.err.println("[StreamGenerator][run] Interrupted while waiting for the stream");
+            this.finished();
+            this.state = GeneratorState.ERROR;
+            this.stop();
+        }
+    }
+
+    /**
+     * Transfers as much data as the send buffer has room for, then queues the next step, or stops being
+     * scheduled until there is room, or data from the source.
+     *
+     * @return false once the generator is done
+     */
+    private boolean step() {
+        if (this.state == GeneratorState.NEW) {
             try {
                 this.initialize();
+                this.state = GeneratorState.READY;
 
             } catch (IOException e) {
                 this.finished();
                 this.state = GeneratorState.ERROR;
-                System.err.println("[StreamGenerator][update] IOException when initializing generator");
+                System.err.println("[StreamGenerator][step] IOException when initializing generator");
                 e.printStackTrace();
-                throw e;
             }
-            this.state = GeneratorState.READY;
-
-            while (this.state.isAlive()) {
-                if (this.socket.isClosed()) {
-                    this.state = GeneratorState.CLOSED;
-                }
+        }
 
-                if (this.state == GeneratorState.READY) {
-                    // transfer data if there is space
-                    if (this.socket.outputBufferSpace() > 0) {
-                        try {
-                            this.transfer(this.socket.outputBufferSpace());
-
-                        } catch (IOException e) {
-                            this.finished();
-                            this.state = GeneratorState.ERROR;
-                            System.err.println("[StreamGenerator][update] IOException while transferring data");
-                            e.printStackTrace();
-                            throw e;
-
-                        } catch (Exception e) {
-                            this.finished();
-                            this.state = GeneratorState.ERROR;
-                            System.err.println("[StreamGenerator][update] Non-IO related Exception while transferring data");
-                            e.printStackTrace();
-                            throw e;
-                        }
-
-                    } else {
-                        // if no space, switch to waiting
-                        this.state = GeneratorState.WAITING;
-                    }
-
-                } else if (this.state == GeneratorState.WAITING) {
-                    if (this.socket.outputBufferSpace() > 0) {
-                        Thread.sleep(250);
-                        this.state = GeneratorState.READY;
-                    }
+        if (this.state.isAlive() && this.socket.isClosed()) this.state = GeneratorState.CLOSED;
+
+        if (this.state == GeneratorState.READY) {
+            int space = this.socket.outputBufferSpace();
+            if (space > 0) {
+                try {
+                    this.transfer(space);
+
+                } catch (IOException e) {
+                    this.finished();
+                    this.state = GeneratorState.ERROR;
+                    System.err.println("[StreamGenerator][step] IOException while transferring data");
+                    e.printStackTrace();
+
+                } catch (Exception e) {
+                    this.finished();
+                    this.state = GeneratorState.ERROR;
+                    System.err.println("[StreamGenerator][step] Non-IO related Exception while transferring data");
+                    e.printStackTrace();
                 }
             }
+        }
 
-        } catch(Exception e) {
-            e.printStackTrace();
+        if (!this.state.isAlive()) {
+            this.stop();
+            return false;
         }
+
+        // stop being scheduled until the buffer drains or the source has data, unless that happened already
+        if (!this.canTransfer()) {
+            this.scheduled.set(false);
+            if (!this.canTransfer() || !this.scheduled.compareAndSet(false, true)) return true;
+        }
+        this.execute();
+        return true;
+    }
+
+    private boolean canTransfer() {
+        return (this.state == GeneratorState.READY && this.socket.outputBufferSpace() > 0) || this.socket.isClosed();
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) this.execute();
+    }
+
+    private void execute() {
+        try {
+            this.executor.execute(this::step);
+
+        } catch (RejectedExecutionException e) {
+            // may be called on the sending thread, which must keep going
+            System.err.println("[StreamGenerator][execute] Executor was shut down, stopped generating");
+            this.state = GeneratorState.CLOSED;
+            this.stop();
+        }
+    }
+
+    private void stop() {
+        if (!this.stopped.compareAndSet(false, true)) return;
+        this.socket.setOutputListener(null);
+        this.stopped();
     }
 
     protected void initialize() throws IOException {
@@ -90,10 +182,30 @@ public abstract class StreamGenerator implements Runnable {
         return this.state;
     }
 
+    /**
+     * Stops scheduling this generator until {@link #resume()} is called, because its source has no data yet.
+     */
     protected void waitingForSource() {
         this.state = GeneratorState.WAITING;
     }
 
+    /**
+     * Schedules this generator again, after its source got more data. May be called on any thread.
+     */
+    protected void resume() {
+        if (this.state == GeneratorState.WAITING) this.state = GeneratorState.READY;
+        if (this.executor != null) this.schedule();
+    }
+
+    /**
+     * Called once the generator stopped, whether it completed, failed, or its stream was closed before it
+     * could complete, in which case {@link #finished()} isn't called. Meant for releasing what the generator
+     * holds on to.
+     */
+    protected void stopped() {
+
+    }
+
     protected void finished() {
         this.state = GeneratorState.COMPLETE;
         if (this.autoClose) {
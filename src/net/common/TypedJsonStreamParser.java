@@ -0,0 +1,79 @@
+package net.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.lib.DuplexStream;
+
+import java.io.IOException;
+
+/**
+ * Reads a global JSON array as a stream of elements, like {@link JsonStreamParser} with globalArrayAsStream,
+ * but hands each element to a {@link JsonDecoder} that builds its value straight from the tokens. No
+ * {@link JsonField} tree is built, so decoding an element allocates little more than its strings.
+ */
+public class TypedJsonStreamParser<T> implements Runnable {
+
+    private static JsonFactory factory = new JsonFactory();
+
+    private DuplexStream socket;
+
+    private JsonDecoder<T> decoder;
+
+    private Handler<T> handler;
+
+    private boolean autoCloseSocket;
+
+    public boolean debug = false;
+
+    public TypedJsonStreamParser(DuplexStream socket, boolean autoCloseSocket, JsonDecoder<T> decoder, Handler<T> handler) {
+        this.socket = socket;
+        this.autoCloseSocket = autoCloseSocket;
+        this.decoder = decoder;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        try (JsonParser parser = factory.createParser(this.socket.inputStream())) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                System.err.println("[TypedJsonStreamParser][run] Response is not an array");
+
+            } else {
+                int count = 0;
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        System.err.println("[TypedJsonStreamParser][run] Stream ended before the array was complete");
+                        break;
+                    }
+
+                    T element = this.decoder.decode(parser);
+                    if (element != null) {
+                        this.handler.handle(this.socket, element);
+                        count++;
+                    }
+                }
+                if (this.debug) System.out.println("[TypedJsonStreamParser][run] Decoded " + count + " elements");
+            }
+
+        } catch (IOException e) {
+            System.err.println("[TypedJsonStreamParser][run] IOException while parsing stream");
+            e.printStackTrace();
+        }
+
+        this.finished();
+    }
+
+    protected void finished() {
+        if (this.autoCloseSocket) {
+            if (this.debug) System.out.println("[TypedJsonStreamParser][finished] Stream finished, closing socket");
+            this.socket.close();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(DuplexStream socket, T element);
+    }
+}
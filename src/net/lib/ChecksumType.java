@@ -0,0 +1,91 @@
+package net.lib;
+
+import utils.CRC64;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms that can be used for MESSAGE packets. Each Socket advertises the algorithms it
+ * supports in its SYN packet as a bit mask, and both ends use the most preferred algorithm they have in
+ * common. The checksum always takes {@link net.common.Constants#FOOTER_OVERHEAD} bytes, whatever its width.
+ */
+public enum ChecksumType {
+    CRC64   (1),
+    CRC32   (2),
+    CRC32C  (4);
+
+    final int bit;
+
+    ChecksumType(int bit) {
+        this.bit = bit;
+    }
+
+    /**
+     * Algorithms in order of preference. CRC32C and CRC32 are intrinsified by the JIT, CRC64 is the
+     * original algorithm, supported by every peer.
+     */
+    private static final ChecksumType[] PREFERENCE = {CRC32C, CRC32, CRC64};
+
+    // java.util.zip.CRC32C only exists from Java 9
+    private static final Constructor<? extends Checksum> CRC32C_CONSTRUCTOR = findCrc32c();
+
+    public int getBit() {
+        return this.bit;
+    }
+
+    public boolean isAvailable() {
+        return this != CRC32C || CRC32C_CONSTRUCTOR != null;
+    }
+
+    public Checksum newChecksum() {
+        switch (this) {
+            case CRC32C :
+                try {
+                    return CRC32C_CONSTRUCTOR.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Unable to create CRC32C checksum", e);
+                }
+            case CRC32 : return new CRC32();
+            default : return new CRC64();
+        }
+    }
+
+    /**
+     * Returns the bit mask of every algorithm available in this JVM.
+     *
+     * @return the supported algorithms bit mask
+     */
+    public static int supportedMask() {
+        int mask = 0;
+        for (ChecksumType type : values()) {
+            if (type.isAvailable()) mask |= type.bit;
+        }
+        return mask;
+    }
+
+    /**
+     * Chooses the most preferred available algorithm in the given bit mask. Falls back to CRC64 if the
+     * mask has nothing in common with the available algorithms.
+     *
+     * @param mask a bit mask of acceptable algorithms
+     * @return the chosen algorithm
+     */
+    public static ChecksumType negotiate(int mask) {
+        for (ChecksumType type : PREFERENCE) {
+            if ((mask & type.bit) != 0 && type.isAvailable()) return type;
+        }
+        return CRC64;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> findCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -4,8 +4,8 @@ import net.common.Constants;
 
 import java.io.IOException;
 import java.net.*;
-
-import static net.common.Constants.PACKET_BUFFER_SIZE;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ClientSocket extends Socket {
 
@@ -13,34 +13,67 @@ public class ClientSocket extends Socket {
 
     private DatagramSocket socket;
 
-    public ClientSocket(InetAddress remote, int port) {
-        super(remote, port);
+    private ByteBuffer inbound;
+    private DatagramPacket inboundPacket;
 
-        this.socketLock = new Object();
+    public ClientSocket(InetAddress remote, int port) {
+        this(remote, port, Constants.BUFFER_SIZE, Constants.BUFFER_SIZE);
     }
 
     public ClientSocket(InetAddress remote, int port, int sendBuffer, int receiveBuffer) {
         super(remote, port, sendBuffer, receiveBuffer);
         this.socketLock = new Object();
+
+        int connectionId;
+        do connectionId = ThreadLocalRandom.current().nextInt(); while (connectionId == 0);
+        this.connectionId = connectionId;
+
+        // only used by the receiver thread, reused for every packet
+        this.inbound = ByteBuffer.allocate(Constants.PACKET_BUFFER_SIZE);
+        this.inboundPacket = new DatagramPacket(this.inbound.array(), this.inbound.capacity());
     }
 
+    /**
+     * Connects to the remote. Data written to the output stream before connecting is sent in the SYN
+     * packet, up to {@link Constants#MAX_EARLY_DATA} bytes, so that a short request reaches the remote
+     * in the first packet, and the remote can start answering without waiting for the handshake.
+     *
+     * @throws SocketException if the socket can't be opened, or is closed while connecting
+     * @throws SocketTimeoutException if the remote doesn't answer
+     */
     public void connect() throws SocketException, SocketTimeoutException {
         this.socket = new DatagramSocket(new InetSocketAddress(0));
         this.socket.connect(this.remote, this.port);
         this.socket.setSoTimeout((int) Constants.TIMEOUT_DELAY / 2);
-        this.receiver.start();
-        this.sendSyn();
+        this.setDontFragment(Utils.setDontFragment(this.socket));
+        // SYN_SENT before sending, the remote's SYN may arrive before sendSyn returns
         this.state.set(SYN_SENT);
+        this.receiver.start();
+
+        try {
+            this.awaitAcknowledged(this.sendSyn());
+
+        } catch (SocketTimeoutException e) {
+            throw e;
+
+        } catch (IOException e) {
+            SocketException ex = new SocketException("Socket closed while connecting");
+            ex.initCause(e);
+            throw ex;
+        }
+
         //System.out.println("[ClientSocket] SYN acknowledged");
         this.sender.start();
     }
 
-    protected DatagramPacket receivePacket() throws IOException {
+    protected ByteBuffer receivePacket() throws IOException {
         if (this.state.get() == CLOSED) return null;
-        DatagramPacket packet = new DatagramPacket(new byte[PACKET_BUFFER_SIZE], PACKET_BUFFER_SIZE);
+        this.inboundPacket.setData(this.inbound.array());
         try {
-            this.socket.receive(packet);
-            return packet;
+            this.socket.receive(this.inboundPacket);
+            this.inbound.clear();
+            this.inbound.limit(this.inboundPacket.getLength());
+            return this.inbound;
 
         } catch (SocketTimeoutException e) {
             return null;
@@ -64,8 +97,10 @@ public class ClientSocket extends Socket {
     @Override
     protected void onSyn(InetAddress remote, int port, int id) {
         if (this.state.compareAndSet(SYN_SENT, ESTABLISHED)) {
-            this.sendAck(id);
+            this.enforceOrdering(id);
             System.out.println("[ClientSocket][onSyn] Connection established");
+            // data written while waiting for the remote's SYN can be sent now
+            this.wakeSender();
 
         } else {
             System.err.println("[ClientSocket][onSyn] Received unexpected SYN packet");
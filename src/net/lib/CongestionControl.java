@@ -0,0 +1,41 @@
+package net.lib;
+
+/**
+ * Decides how many packets a {@link Socket} may have in flight, independently of the window advertised
+ * by the remote. Windows are measured in packets. All methods are called while the socket holds its
+ * waitingLock, so implementations don't need their own synchronization.
+ */
+public interface CongestionControl {
+
+    /**
+     * Called when an ACK acknowledges new packets, while the socket is using its whole congestion window.
+     *
+     * @param acknowledged the number of packets that were newly acknowledged
+     * @param rtt the smoothed round trip time in milliseconds, or 0 if it hasn't been measured
+     */
+    void onAck(int acknowledged, double rtt);
+
+    /**
+     * Called when a packet is presumed lost because of duplicate ACKs. Called once per loss episode.
+     */
+    void onLoss();
+
+    /**
+     * Called when the retransmission timer expires.
+     */
+    void onTimeout();
+
+    /**
+     * Returns the congestion window, the number of packets that may be in flight.
+     *
+     * @return the congestion window
+     */
+    int getWindow();
+
+    /**
+     * Returns the slow start threshold. Below it the window grows exponentially.
+     *
+     * @return the slow start threshold
+     */
+    int getSlowStartThreshold();
+}
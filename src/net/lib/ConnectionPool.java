@@ -0,0 +1,276 @@
+package net.lib;
+
+import net.common.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps {@link MultiplexedConnection}s to remote peers open between requests, so that a request only pays
+ * for a handshake, a DatagramSocket and the socket's threads when no open connection to its peer can
+ * take another stream.
+ *
+ * Each request gets a stream of its own, which frames the request and its response, so the connection
+ * can carry the next request as soon as the stream is closed. A connection takes up to maxStreams
+ * streams at a time, and up to maxConnections connections are opened to each peer, after which streams
+ * are spread over the existing ones. Idle connections are kept alive by the sockets' POKE packets, and
+ * closed once they had no streams for idleTimeout milliseconds.
+ */
+public class ConnectionPool {
+
+    private static ConnectionPool instance;
+
+    private final int maxConnections;
+    private final int maxStreams;
+    private final long idleTimeout;
+
+    private final Object peersLock;
+    private HashMap<InetSocketAddress, Peer> peers;
+
+    private Thread evictor;
+    private volatile boolean closed;
+
+    public int debug = Constants.ERROR;
+
+    public ConnectionPool() {
+        this(Constants.POOL_MAX_CONNECTIONS, Constants.POOL_MAX_STREAMS, Constants.POOL_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Creates a ConnectionPool.
+     *
+     * @param maxConnections the most connections opened to one peer
+     * @param maxStreams the most streams carried by one connection, before another is opened
+     * @param idleTimeout how long a connection without streams is kept open, in milliseconds
+     */
+    public ConnectionPool(int maxConnections, int maxStreams, long idleTimeout) {
+        if (maxConnections < 1 || maxStreams < 1 || idleTimeout < 1) throw new IllegalArgumentException("Invalid ConnectionPool limits");
+        this.maxConnections = maxConnections;
+        this.maxStreams = maxStreams;
+        this.idleTimeout = idleTimeout;
+
+        this.peersLock = new Object();
+        this.peers = new HashMap<>();
+
+        this.evictor = null;
+        this.closed = false;
+    }
+
+    /**
+     * Returns the pool shared by every client in this process.
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if (instance == null) instance = new ConnectionPool();
+        return instance;
+    }
+
+    /**
+     * Opens a stream to the given peer, on a pooled connection if one can take it, or on a new connection.
+     * The request, if any, is written to the stream before it's returned. When a new connection is opened,
+     * the request is written before connecting, so that it's sent as early data in the SYN packet.
+     *
+     * @param peer the address of the peer
+     * @param priority the priority of the stream, see {@link Constants#STREAM_PRIORITY_NORMAL}
+     * @param request writes the request to the stream, may be null
+     * @return the new stream
+     * @throws IOException if the connection can't be opened, or the request can't be written
+     */
+    public MultiplexedStream openStream(InetSocketAddress peer, int priority, RequestWriter request) throws IOException {
+        while (true) {
+            if (this.closed) throw new IOException("ConnectionPool is closed");
+            Peer p;
+            synchronized (this.peersLock) {
+                p = this.peers.computeIfAbsent(peer, Peer::new);
+                this.startEvictor();
+            }
+
+            MultiplexedStream stream = this.openStream(p, priority, request);
+            if (stream != null) return stream;
+            // the peer was evicted or closed before it was locked, a new one takes its place
+        }
+    }
+
+    /**
+     * Opens a stream on one of the given peer's connections, or on a new connection.
+     *
+     * @return the new stream, or null if the peer was removed from the pool, and won't be pooled anymore
+     */
+    private MultiplexedStream openStream(Peer p, int priority, RequestWriter request) throws IOException {
+        // connections to one peer are opened one at a time, the next request will most likely fit on it
+        synchronized (p) {
+            synchronized (this.peersLock) {
+                if (this.peers.get(p.address) != p) return null;
+            }
+
+            MultiplexedConnection connection = p.choose();
+            if (connection != null) {
+                MultiplexedStream stream = connection.openStream(priority);
+                if (request != null) request.write(stream);
+                return stream;
+            }
+
+            ClientSocket socket = new ClientSocket(p.address.getAddress(), p.address.getPort());
+            connection = new MultiplexedConnection(socket, true, null);
+            try {
+                MultiplexedStream stream = connection.openStream(priority);
+                if (request != null) request.write(stream);
+                connection.flush();
+                socket.connect();
+                connection.start();
+
+                p.connections.add(connection);
+                if (this.debug <= Constants.FINE) System.out.println("[ConnectionPool][openStream] Opened connection " + p.connections.size() + " to " + p.address);
+                return stream;
+
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Closes every connection to the given peer. Streams that are still open are aborted.
+     *
+     * @param peer the address of the peer
+     */
+    public void close(InetSocketAddress peer) {
+        Peer p;
+        synchronized (this.peersLock) {
+            p = this.peers.remove(peer);
+        }
+        if (p == null) return;
+
+        synchronized (p) {
+            for (MultiplexedConnection connection : p.connections) connection.close();
+            p.connections.clear();
+        }
+    }
+
+    /**
+     * Closes every pooled connection, and stops accepting requests.
+     */
+    public void close() {
+        this.closed = true;
+        ArrayList<InetSocketAddress> peers;
+        synchronized (this.peersLock) {
+            peers = new ArrayList<>(this.peers.keySet());
+            this.peersLock.notifyAll();
+        }
+        for (InetSocketAddress peer : peers) this.close(peer);
+    }
+
+    /**
+     * Returns the number of open connections to the given peer.
+     */
+    public int getConnectionCount(InetSocketAddress peer) {
+        Peer p;
+        synchronized (this.peersLock) {
+            p = this.peers.get(peer);
+        }
+        if (p == null) return 0;
+        synchronized (p) {
+            p.prune();
+            return p.connections.size();
+        }
+    }
+
+    /**
+     * Starts the thread that closes idle connections, if it isn't running. Must hold peersLock.
+     */
+    private void startEvictor() {
+        if (this.evictor != null) return;
+        this.evictor = new Thread(this::evictor);
+        this.evictor.setName("[ConnectionPool][evictor]");
+        this.evictor.setDaemon(true);
+        this.evictor.start();
+    }
+
+    private void evictor() {
+        while (!this.closed) {
+            synchronized (this.peersLock) {
+                try {
+                    this.peersLock.wait(Math.max(1, this.idleTimeout / 2));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            this.evictIdle();
+        }
+    }
+
+    /**
+     * Closes connections that had no streams for longer than the idle timeout, and forgets peers
+     * without connections.
+     */
+    protected void evictIdle() {
+        ArrayList<Peer> peers;
+        synchronized (this.peersLock) {
+            peers = new ArrayList<>(this.peers.values());
+        }
+
+        for (Peer p : peers) {
+            synchronized (p) {
+                Iterator<MultiplexedConnection> it = p.connections.iterator();
+                while (it.hasNext()) {
+                    MultiplexedConnection connection = it.next();
+                    if (connection.isClosed()) {
+                        it.remove();
+
+                    } else if (connection.getIdleTime() > this.idleTimeout) {
+                        if (this.debug <= Constants.FINE) System.out.println("[ConnectionPool][evictIdle] Closing idle connection to " + p.address);
+                        connection.close();
+                        it.remove();
+                    }
+                }
+
+                if (p.connections.isEmpty()) {
+                    synchronized (this.peersLock) {
+                        if (this.peers.get(p.address) == p) this.peers.remove(p.address);
+                    }
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface RequestWriter {
+        void write(MultiplexedStream stream) throws IOException;
+    }
+
+    /**
+     * The pooled connections to one peer. Guarded by its own monitor.
+     */
+    private class Peer {
+
+        private final InetSocketAddress address;
+        private final ArrayList<MultiplexedConnection> connections;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+            this.connections = new ArrayList<>();
+        }
+
+        private void prune() {
+            this.connections.removeIf(MultiplexedConnection::isClosed);
+        }
+
+        /**
+         * Returns the open connection with the fewest streams, or null if a new connection should be opened,
+         * because every connection is full and there is room for another.
+         */
+        private MultiplexedConnection choose() {
+            this.prune();
+            MultiplexedConnection best = null;
+            for (MultiplexedConnection connection : this.connections) {
+                if (best == null || connection.getStreamCount() < best.getStreamCount()) best = connection;
+            }
+
+            if (best == null || (best.getStreamCount() >= maxStreams && this.connections.size() < maxConnections)) return null;
+            return best;
+        }
+    }
+}
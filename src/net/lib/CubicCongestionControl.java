@@ -0,0 +1,108 @@
+package net.lib;
+
+import net.common.Constants;
+
+/**
+ * CUBIC congestion control, as described in RFC 8312. After a loss, the window grows along a cubic function
+ * of the time since the loss, centered on the window size at which the loss happened. That makes it recover
+ * its previous window quickly, and probe carefully around it. The window never grows slower than it would
+ * with {@link RenoCongestionControl}.
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double window;
+    private int threshold;
+
+    /**
+     * The window size just before the last loss.
+     */
+    private double lastMaxWindow;
+
+    /**
+     * {@link System#nanoTime()} at which the current congestion avoidance epoch started, or 0 if not started.
+     */
+    private long epochStart;
+    private double originPoint;
+    private double k;
+
+    /**
+     * The window an AIMD controller would have, used to stay at least as fast as Reno.
+     */
+    private double renoWindow;
+
+    public CubicCongestionControl() {
+        this.window = Constants.INITIAL_CONGESTION_WINDOW;
+        this.threshold = Integer.MAX_VALUE;
+        this.lastMaxWindow = 0;
+        this.epochStart = 0;
+    }
+
+    @Override
+    public void onAck(int acknowledged, double rtt) {
+        if (this.window < this.threshold) {
+            this.window += acknowledged;
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (this.epochStart == 0) {
+            this.epochStart = now;
+            if (this.window < this.lastMaxWindow) {
+                this.k = Math.cbrt((this.lastMaxWindow - this.window) / C);
+                this.originPoint = this.lastMaxWindow;
+
+            } else {
+                this.k = 0;
+                this.originPoint = this.window;
+            }
+            this.renoWindow = this.window;
+        }
+
+        double t = (now - this.epochStart) / 1e9 + rtt / 1000;
+        double target = this.originPoint + C * Math.pow(t - this.k, 3);
+
+        if (target > this.window) {
+            this.window += acknowledged * (target - this.window) / this.window;
+
+        } else {
+            this.window += acknowledged * 0.01 / this.window;
+        }
+
+        this.renoWindow += acknowledged * (3 * (1 - BETA) / (1 + BETA)) / this.window;
+        if (this.renoWindow > this.window) this.window = this.renoWindow;
+    }
+
+    @Override
+    public void onLoss() {
+        this.epochStart = 0;
+        // fast convergence, release bandwidth to new flows if the window keeps shrinking
+        if (this.window < this.lastMaxWindow) {
+            this.lastMaxWindow = this.window * (1 + BETA) / 2;
+
+        } else {
+            this.lastMaxWindow = this.window;
+        }
+
+        this.window = Math.max(2, this.window * BETA);
+        this.threshold = (int) this.window;
+    }
+
+    @Override
+    public void onTimeout() {
+        this.onLoss();
+        this.window = 1;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) this.window;
+    }
+
+    @Override
+    public int getSlowStartThreshold() {
+        return this.threshold;
+    }
+}
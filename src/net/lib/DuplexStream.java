@@ -0,0 +1,69 @@
+package net.lib;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A reliable, ordered, two way byte stream. Implemented by {@link Socket}, and by the
+ * {@link MultiplexedStream}s carried over a {@link MultiplexedConnection}.
+ */
+public interface DuplexStream {
+
+    boolean isClosed();
+
+    /**
+     * Returns true once the sending side of the stream was closed, locally or by the remote.
+     */
+    boolean isSendClosed();
+
+    /**
+     * Returns true once the remote closed the stream, and all received data was read.
+     */
+    boolean isReceiveClosed();
+
+    /**
+     * Returns the number of bytes that can be written to the output stream without blocking.
+     */
+    int outputBufferSpace();
+
+    /**
+     * Returns the number of bytes that can be read from the input stream without blocking.
+     */
+    int inputBufferAvailable();
+
+    /**
+     * Sets a listener called when data arrives after everything received before was read, and when the remote
+     * closes the stream, so that a reader that never blocks knows when to read again. It's called on the thread
+     * receiving the data, so it must return quickly.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    void setInputListener(Runnable listener);
+
+    /**
+     * Sets a listener called when the send buffer drains to half its size after filling up, and when it's closed,
+     * so that a writer that never blocks knows when to write again. It's called on the thread sending the data,
+     * so it must return quickly.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    void setOutputListener(Runnable listener);
+
+    OutputStream outputStream();
+
+    InputStream inputStream();
+
+    /**
+     * Asks for forward error correction on the data sent over this stream, trading some bandwidth for
+     * recovering lost packets without a retransmission. Only a hint, streams that can't do it ignore it.
+     *
+     * @param enabled whether forward error correction is wanted
+     */
+    default void setForwardErrorCorrection(boolean enabled) {
+    }
+
+    /**
+     * Closes the sending side of the stream. Data already written is still delivered.
+     */
+    void close();
+}
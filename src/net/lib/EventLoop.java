@@ -0,0 +1,204 @@
+package net.lib;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread that waits on a {@link Selector}, and runs tasks and timers in between selections.
+ * Tasks may be submitted from any thread with {@link #execute(Runnable)}, timers may only be scheduled
+ * from the loop thread itself, with {@link #schedule(Runnable, long)}.
+ */
+class EventLoop {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final AtomicBoolean running;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final AtomicBoolean wakeupPending;
+
+    private final PriorityQueue<Timer> timers;
+    private long timerSequence;
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::loop);
+        this.thread.setName(name);
+        this.thread.setDaemon(true);
+        this.running = new AtomicBoolean(false);
+
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean(false);
+
+        this.timers = new PriorityQueue<>();
+        this.timerSequence = 0;
+    }
+
+    public void start() {
+        if (this.running.compareAndSet(false, true)) this.thread.start();
+    }
+
+    public void stop() {
+        if (this.running.compareAndSet(true, false)) this.selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop thread to exit, once {@link #stop()} was called. Returns immediately when called from
+     * the loop thread itself, or if the loop was never started.
+     */
+    public void awaitTermination() {
+        if (this.inEventLoop()) return;
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            try {
+                this.thread.join();
+
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Closes the selector of a loop that was never started. A started loop closes it once it stops.
+     */
+    public void close() {
+        if (this.thread.isAlive() || this.running.get()) return;
+        try {
+            this.selector.close();
+
+        } catch (IOException e) {
+            System.err.println("[EventLoop][close] IOException while closing selector");
+            e.printStackTrace();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Runs the given task on the loop thread, as soon as possible.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (!this.inEventLoop() && this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the given task on the loop thread, after the given delay. Must be called from the loop thread.
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds
+     */
+    public void schedule(Runnable task, long delay) {
+        if (!this.inEventLoop()) throw new IllegalStateException("Timers can only be scheduled from the event loop");
+        this.timers.add(new Timer(System.currentTimeMillis() + delay, this.timerSequence++, task));
+    }
+
+    /**
+     * Registers the given channel with this loop's selector, calling onReadable on the loop thread whenever
+     * the channel has data to read. The channel must be in non-blocking mode.
+     *
+     * @param channel the channel to register
+     * @param onReadable called when the channel is readable
+     */
+    public void register(SelectableChannel channel, Runnable onReadable) {
+        this.execute(() -> {
+            try {
+                channel.register(this.selector, SelectionKey.OP_READ, onReadable);
+
+            } catch (ClosedChannelException e) {
+                System.err.println("[EventLoop][register] Tried to register closed channel");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void loop() {
+        while (this.running.get()) {
+            try {
+                if (!this.tasks.isEmpty()) {
+                    this.selector.selectNow();
+
+                } else if (this.timers.isEmpty()) {
+                    this.selector.select();
+
+                } else {
+                    long wait = this.timers.peek().deadline - System.currentTimeMillis();
+                    if (wait > 0) this.selector.select(wait);
+                    else this.selector.selectNow();
+                }
+                this.wakeupPending.set(false);
+
+            } catch (IOException e) {
+                System.err.println("[EventLoop][loop] IOException while waiting on selector");
+                e.printStackTrace();
+                continue;
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) this.run((Runnable) key.attachment());
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) this.run(task);
+
+            long now = System.currentTimeMillis();
+            while (!this.timers.isEmpty() && this.timers.peek().deadline <= now) {
+                this.run(this.timers.poll().task);
+            }
+        }
+
+        try {
+            this.selector.close();
+
+        } catch (IOException e) {
+            System.err.println("[EventLoop][loop] IOException while closing selector");
+            e.printStackTrace();
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+
+        } catch (RuntimeException e) {
+            System.err.println("[EventLoop][run] Exception thrown by event loop task");
+            e.printStackTrace();
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        private Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            int c = Long.compare(this.deadline, o.deadline);
+            return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+        }
+    }
+}
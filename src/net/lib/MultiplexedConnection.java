@@ -0,0 +1,635 @@
+package net.lib;
+
+import net.common.Constants;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Carries many independent {@link MultiplexedStream}s over a single {@link Socket}, so that opening a
+ * stream doesn't need a handshake, threads or buffers of its own.
+ *
+ * Data is sent in frames made of a header, holding a stream ID, a frame type and a value, followed by
+ * the frame's payload for DATA frames. Each stream may only have {@link Constants#STREAM_WINDOW}
+ * unread bytes in flight, and the receiver grants more with CREDIT frames as its reader catches up.
+ * The initiating side starts the connection with {@link #MAGIC}, so that an accepting server can tell
+ * multiplexed connections from plain sockets.
+ *
+ * A connection may be created over a {@link ClientSocket} that isn't connected yet. Streams opened and
+ * written to before connecting are sent in the SYN packet once {@link #flush()} is called, see
+ * {@link ClientSocket#connect()}.
+ *
+ * A connection has no threads of its own. Frames are read by a task scheduled by the socket's input listener,
+ * once data arrives, and written by a task scheduled by {@link #wakeWriter()}, or by the socket's output
+ * listener once its send buffer has room again. Neither task ever blocks, so many connections share a few threads.
+ */
+public class MultiplexedConnection {
+
+    public static final int MAGIC = 0x4D555831; // "MUX1"
+
+    private static final int FRAME_OPEN = 1;
+    private static final int FRAME_DATA = 2;
+    private static final int FRAME_CREDIT = 3;
+    private static final int FRAME_CLOSE = 4;
+    private static final int FRAME_PRIORITY = 5;
+
+    private static final int FRAME_HEADER = 4 + 1 + 4;
+
+    private final Socket socket;
+    private final boolean initiator;
+    private final StreamHandler handler;
+
+    private final Object streamsLock;
+    private HashMap<Integer, MultiplexedStream> streams;
+    private AtomicInteger nextId;
+    // time at which the last stream was closed, guarded by streamsLock
+    private long idleSince;
+    // streams that asked for forward error correction, guarded by streamsLock
+    private HashSet<Integer> fecStreams;
+
+    private static ExecutorService defaultExecutor;
+
+    private volatile Executor executor;
+    // set while a writer task is queued or running
+    private AtomicBoolean writerScheduled;
+    // set when there may be something new to write
+    private AtomicBoolean writerPending;
+    // set while a reader task is queued or running
+    private AtomicBoolean readerScheduled;
+
+    /**
+     * Frames are written to the socket by the writer task, or by {@link #flush()}. Guarded by outLock.
+     */
+    private final Object outLock;
+    private final DataOutputStream out;
+    private final byte[] trx;
+    private boolean magicSent;
+    private ConcurrentLinkedQueue<int[]> control;
+    private int roundRobin;
+    // bytes that may still be written in the current round without waiting for the socket's send buffer
+    private int budget;
+
+    /**
+     * The frame being read, guarded by the reader task. Headers are read as their bytes arrive, so
+     * that every byte the socket received is consumed, and its input listener is called for the next ones.
+     */
+    private final byte[] header;
+    private int headerFill;
+    private boolean magicReceived;
+    private int frameId;
+    private int frameRemaining;
+    private final byte[] rtrx;
+
+    private AtomicBoolean running;
+    private AtomicBoolean closed;
+
+    public int debug = Constants.ERROR;
+
+    /**
+     * Creates a MultiplexedConnection over the given socket, which must already be connected, unless
+     * this is the initiating side.
+     *
+     * @param socket the socket to carry the streams
+     * @param initiator true on the side that opened the socket, false on the side that accepted it
+     * @param handler called with each stream opened by the remote, may be null if the remote doesn't open streams
+     */
+    public MultiplexedConnection(Socket socket, boolean initiator, StreamHandler handler) {
+        this.socket = socket;
+        this.initiator = initiator;
+        this.handler = handler;
+
+        this.streamsLock = new Object();
+        this.streams = new HashMap<>();
+        // initiator uses odd IDs, acceptor uses even IDs
+        this.nextId = new AtomicInteger(initiator ? 1 : 2);
+        this.idleSince = System.currentTimeMillis();
+        this.fecStreams = new HashSet<>();
+
+        this.writerScheduled = new AtomicBoolean(false);
+        this.writerPending = new AtomicBoolean(false);
+        this.readerScheduled = new AtomicBoolean(false);
+        this.control = new ConcurrentLinkedQueue<>();
+        this.roundRobin = 0;
+
+        this.outLock = new Object();
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.outputStream(), FRAME_HEADER + Constants.STREAM_FRAME_SIZE));
+        this.trx = new byte[Constants.STREAM_FRAME_SIZE];
+        this.magicSent = false;
+
+        // the acceptor starts with reading the initiator's MAGIC, into the end of the header
+        this.header = new byte[FRAME_HEADER];
+        this.headerFill = initiator ? 0 : FRAME_HEADER - 4;
+        this.magicReceived = initiator;
+        this.frameRemaining = 0;
+        this.rtrx = new byte[Constants.STREAM_FRAME_SIZE];
+
+        this.running = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Starts reading and writing frames, with the tasks running on a small pool shared by every connection
+     * started this way.
+     */
+    public void start() {
+        this.start(getDefaultExecutor());
+    }
+
+    /**
+     * Starts reading and writing frames, with the tasks running on the given executor. The stream handler
+     * is called on the executor as well, so it must not block.
+     *
+     * @param executor runs the reader and writer tasks
+     */
+    public void start(Executor executor) {
+        if (this.executor != null || this.closed.get()) return;
+        this.executor = executor;
+        this.running.set(true);
+
+        this.socket.setInputListener(this::wakeReader);
+        this.socket.setOutputListener(this::wakeWriter);
+        // data may have arrived, and frames may have been queued, before the listeners were set
+        this.wakeReader();
+        this.wakeWriter();
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(Constants.EVENT_LOOPS, task -> {
+                Thread thread = new Thread(task);
+                thread.setName("[MultiplexedConnection][worker]");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Closes the connection. Streams that are still open are closed without their remaining data.
+     */
+    public void close() {
+        this.closed.set(true);
+        this.running.set(false);
+        this.socket.setInputListener(null);
+        this.socket.setOutputListener(null);
+        this.socket.close();
+        this.abortStreams();
+    }
+
+    public boolean isClosed() {
+        return this.closed.get() || this.socket.isClosed() || this.socket.isSendClosed();
+    }
+
+    public Socket getSocket() {
+        return this.socket;
+    }
+
+    public int getStreamCount() {
+        synchronized (this.streamsLock) {
+            return this.streams.size();
+        }
+    }
+
+    /**
+     * Returns how long the connection has had no open streams.
+     *
+     * @return the idle time in milliseconds, 0 if any stream is open
+     */
+    public long getIdleTime() {
+        synchronized (this.streamsLock) {
+            return this.streams.isEmpty() ? System.currentTimeMillis() - this.idleSince : 0;
+        }
+    }
+
+    public MultiplexedStream openStream() throws IOException {
+        return this.openStream(Constants.STREAM_PRIORITY_NORMAL);
+    }
+
+    /**
+     * Opens a new stream. The remote learns about the stream with the first frame sent for it,
+     * so this doesn't wait for the remote.
+     *
+     * @param priority the priority of the stream's data
+     * @return the new stream
+     * @throws IOException if the connection is closed
+     */
+    public MultiplexedStream openStream(int priority) throws IOException {
+        if (this.isClosed()) throw new IOException("MultiplexedConnection is closed");
+        MultiplexedStream stream = new MultiplexedStream(this, this.nextId.getAndAdd(2), priority);
+        synchronized (this.streamsLock) {
+            this.streams.put(stream.id, stream);
+        }
+        this.queueControl(stream.id, FRAME_OPEN, priority);
+        if (this.debug <= Constants.FINE) System.out.println("[MultiplexedConnection][openStream] Opened stream id=" + stream.id);
+        return stream;
+    }
+
+    /**
+     * Blocks until the first bytes of the given socket arrive, and returns true if they are the
+     * {@link #MAGIC} sent by the initiator of a MultiplexedConnection. Nothing is consumed from the socket.
+     *
+     * @param socket a newly accepted socket
+     * @return whether the socket carries a MultiplexedConnection
+     * @throws IOException if the socket is closed before anything arrives
+     */
+    public static boolean isMultiplexed(Socket socket) throws IOException {
+        InputStream in = socket.inputStream();
+        in.mark(4);
+        int first = in.read();
+        in.reset();
+        if (first == -1) throw new EOFException("Socket closed before any data was received");
+        return first == (MAGIC >>> 24);
+    }
+
+    /**
+     * Calls the callback on the executor once the first bytes of the given socket arrived, with whether they
+     * start a MultiplexedConnection, see {@link #isMultiplexed(Socket)}. Nothing waits on the socket until then.
+     *
+     * @param socket a newly accepted socket
+     * @param executor runs the callback
+     * @param callback called with true if the socket carries a MultiplexedConnection
+     */
+    public static void detect(Socket socket, Executor executor, Consumer<Boolean> callback) {
+        AtomicBoolean detected = new AtomicBoolean(false);
+        Runnable check = () -> {
+            if (socket.inputBufferAvailable() == 0 && !socket.isReceiveClosed()) return;
+            if (!detected.compareAndSet(false, true)) return;
+            socket.setInputListener(null);
+            executor.execute(() -> {
+                try {
+                    callback.accept(isMultiplexed(socket));
+
+                } catch (IOException e) {
+                    System.err.println("[MultiplexedConnection][detect] Socket closed before any data was received");
+                    socket.close();
+                }
+            });
+        };
+        socket.setInputListener(check);
+        // data may have arrived before the listener was set
+        check.run();
+    }
+
+    /**
+     * Schedules the writer task, unless it's already scheduled. May be called on any thread.
+     */
+    void wakeWriter() {
+        this.writerPending.set(true);
+        if (this.executor == null || !this.running.get()) return;
+        if (this.writerScheduled.compareAndSet(false, true)) this.execute(this::writer, this.writerScheduled);
+    }
+
+    private void wakeReader() {
+        if (this.executor == null || !this.running.get()) return;
+        if (this.readerScheduled.compareAndSet(false, true)) this.execute(this::reader, this.readerScheduled);
+    }
+
+    private void execute(Runnable task, AtomicBoolean scheduled) {
+        try {
+            this.executor.execute(task);
+
+        } catch (RejectedExecutionException e) {
+            // may be called on the socket's threads, which must keep going
+            System.err.println("[MultiplexedConnection][execute] Executor was shut down, closing connection");
+            scheduled.set(false);
+            this.close();
+        }
+    }
+
+    /**
+     * Enables forward error correction on the socket while any stream asks for it.
+     */
+    void setForwardErrorCorrection(MultiplexedStream stream, boolean enabled) {
+        synchronized (this.streamsLock) {
+            if (enabled) this.fecStreams.add(stream.id);
+            else this.fecStreams.remove(stream.id);
+            this.socket.setForwardErrorCorrection(!this.fecStreams.isEmpty());
+        }
+    }
+
+    void sendPriority(MultiplexedStream stream) {
+        this.queueControl(stream.id, FRAME_PRIORITY, stream.priority);
+    }
+
+    private void queueControl(int id, int type, int value) {
+        this.control.add(new int[] {id, type, value});
+        this.wakeWriter();
+    }
+
+    /**
+     * Writes every frame that can be sent right now to the socket, on the calling thread. Before the socket
+     * is connected, this places the frames in its send buffer, so that they are sent as early data.
+     *
+     * @throws IOException if the socket is closed
+     */
+    public void flush() throws IOException {
+        while (this.writeFrames()) {
+            // until nothing is left to write
+        }
+    }
+
+    /**
+     * Writes one round of frames, and flushes them to the socket.
+     *
+     * @return true if anything was written
+     */
+    private boolean writeFrames() throws IOException {
+        synchronized (this.outLock) {
+            // frames that don't fit in the send buffer wait for its output listener, instead of blocking
+            this.budget = this.socket.outputBufferSpace();
+            boolean wrote = false;
+            if (this.initiator && !this.magicSent && this.reserve(4)) {
+                this.out.writeInt(MAGIC);
+                this.magicSent = true;
+                wrote = true;
+            }
+
+            wrote |= this.writeControl(this.out);
+            wrote |= this.writeCredit(this.out);
+            wrote |= this.writeData(this.out, this.trx);
+            wrote |= this.writeClose(this.out);
+            this.out.flush();
+            return wrote;
+        }
+    }
+
+    /**
+     * Takes the given number of bytes from the budget of the current round, if there are enough left.
+     */
+    private boolean reserve(int bytes) {
+        if (bytes > this.budget) return false;
+        this.budget -= bytes;
+        return true;
+    }
+
+    // sending
+    /**
+     * Writes one round of frames, then schedules itself again if anything was written, or else stops
+     * being scheduled until {@link #wakeWriter()} is called.
+     */
+    private void writer() {
+        this.writerPending.set(false);
+        boolean wrote = false;
+        try {
+            if (this.running.get()) wrote = this.writeFrames();
+
+        } catch (IOException e) {
+            if (this.running.get()) {
+                System.err.println("[MultiplexedConnection][writer] IOException while writing to socket");
+                e.printStackTrace();
+                this.close();
+            }
+        }
+
+        if (wrote && this.running.get()) {
+            // other connections get their turn in between rounds
+            this.execute(this::writer, this.writerScheduled);
+            return;
+        }
+
+        this.writerScheduled.set(false);
+        // woken while writing, after the round had already passed what changed
+        if (this.writerPending.get() && this.running.get() && this.writerScheduled.compareAndSet(false, true)) {
+            this.execute(this::writer, this.writerScheduled);
+        }
+    }
+
+    private boolean writeControl(DataOutputStream out) throws IOException {
+        boolean wrote = false;
+        int[] frame;
+        while (this.control.peek() != null && this.reserve(FRAME_HEADER)) {
+            frame = this.control.poll();
+            out.writeInt(frame[0]);
+            out.writeByte(frame[1]);
+            out.writeInt(frame[2]);
+            wrote = true;
+
+            if (frame[1] == FRAME_OPEN) {
+                // nothing may be sent for the stream before the remote knows about it
+                MultiplexedStream stream;
+                synchronized (this.streamsLock) {
+                    stream = this.streams.get(frame[0]);
+                }
+                if (stream != null) stream.announced = true;
+            }
+        }
+        return wrote;
+    }
+
+    private boolean writeCredit(DataOutputStream out) throws IOException {
+        boolean wrote = false;
+        for (MultiplexedStream stream : this.snapshot()) {
+            if (this.budget < FRAME_HEADER) break;
+            int grant = stream.takeCredit();
+            if (grant > 0) {
+                this.reserve(FRAME_HEADER);
+                out.writeInt(stream.id);
+                out.writeByte(FRAME_CREDIT);
+                out.writeInt(grant);
+                wrote = true;
+            }
+        }
+        return wrote;
+    }
+
+    /**
+     * Sends one DATA frame, for the highest priority stream that has data and credit.
+     * Streams of equal priority take turns.
+     */
+    private boolean writeData(DataOutputStream out, byte[] trx) throws IOException {
+        ArrayList<MultiplexedStream> streams = this.snapshot();
+        MultiplexedStream chosen = null;
+        int n = streams.size();
+        for (int i = 0; i < n; i++) {
+            MultiplexedStream stream = streams.get((this.roundRobin + i) % n);
+            if (!stream.announced || stream.closeSent || stream.credit.get() <= 0 || stream.sendBuffer.available() == 0) continue;
+            if (chosen == null || stream.priority > chosen.priority) chosen = stream;
+        }
+        if (chosen == null) return false;
+        this.roundRobin = (streams.indexOf(chosen) + 1) % n;
+
+        int amnt = Math.min(Math.min(trx.length, this.budget - FRAME_HEADER), Math.min(chosen.credit.get(), chosen.sendBuffer.available()));
+        if (amnt <= 0) return false;
+        amnt = chosen.sendBuffer.getInputStream().read(trx, 0, amnt);
+        if (amnt <= 0) return false;
+        this.reserve(FRAME_HEADER + amnt);
+        chosen.credit.addAndGet(-amnt);
+
+        out.writeInt(chosen.id);
+        out.writeByte(FRAME_DATA);
+        out.writeInt(amnt);
+        out.write(trx, 0, amnt);
+        return true;
+    }
+
+    private boolean writeClose(DataOutputStream out) throws IOException {
+        boolean wrote = false;
+        for (MultiplexedStream stream : this.snapshot()) {
+            if (!stream.announced || stream.closeSent || stream.sendBuffer.isWriteOpened() || stream.sendBuffer.available() > 0) continue;
+            if (!this.reserve(FRAME_HEADER)) break;
+            out.writeInt(stream.id);
+            out.writeByte(FRAME_CLOSE);
+            out.writeInt(0);
+            stream.closeSent = true;
+            this.removeIfClosed(stream);
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    // receiving
+    /**
+     * Reads every frame, and part of a frame, that has been received so far, then stops being scheduled
+     * until the socket's input listener is called. Runs on the executor.
+     */
+    private void reader() {
+        InputStream in = this.socket.inputStream();
+
+        try {
+            while (this.running.get()) {
+                int available = in.available();
+                if (available == 0) {
+                    if (this.socket.isReceiveClosed()) {
+                        if (this.headerFill > 0 || this.frameRemaining > 0) throw new EOFException("Socket closed in the middle of a frame");
+                        if (this.debug <= Constants.FINE) System.out.println("[MultiplexedConnection][reader] Socket closed by remote");
+                        break;
+                    }
+
+                    // wait for the input listener, unless data arrived before it could be told to look again
+                    this.readerScheduled.set(false);
+                    if (in.available() == 0 && !this.socket.isReceiveClosed()) return;
+                    if (!this.readerScheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+
+                if (this.frameRemaining > 0) {
+                    // data is available, so doesn't block
+                    int amnt = in.read(this.rtrx, 0, Math.min(available, Math.min(this.frameRemaining, this.rtrx.length)));
+                    this.frameRemaining -= amnt;
+                    MultiplexedStream stream;
+                    synchronized (this.streamsLock) {
+                        stream = this.streams.get(this.frameId);
+                    }
+                    // data for a stream that was already closed locally is dropped
+                    if (stream != null) stream.onData(this.rtrx, 0, amnt);
+                    continue;
+                }
+
+                this.headerFill += in.read(this.header, this.headerFill, Math.min(available, FRAME_HEADER - this.headerFill));
+                if (this.headerFill < FRAME_HEADER) continue;
+                this.headerFill = 0;
+
+                if (!this.magicReceived) {
+                    if (readInt(this.header, FRAME_HEADER - 4) != MAGIC) throw new IOException("Remote didn't start a MultiplexedConnection");
+                    this.magicReceived = true;
+                    continue;
+                }
+                this.onFrame(readInt(this.header, 0), this.header[4], readInt(this.header, 5));
+            }
+
+        } catch (IOException e) {
+            if (this.running.get()) {
+                System.err.println("[MultiplexedConnection][reader] IOException while reading from socket");
+                e.printStackTrace();
+            }
+        }
+
+        this.readerScheduled.set(false);
+        this.close();
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private void onFrame(int id, int type, int value) throws IOException {
+        MultiplexedStream stream;
+        synchronized (this.streamsLock) {
+            stream = this.streams.get(id);
+        }
+
+        if (type == FRAME_OPEN) {
+            if (stream != null || (id % 2 == 1) != !this.initiator) throw new IOException("Remote opened invalid stream id=" + id);
+            this.onOpen(id, value);
+
+        } else if (type == FRAME_DATA) {
+            if (value < 0 || value > Constants.STREAM_FRAME_SIZE) throw new IOException("Invalid DATA frame length " + value);
+            // the payload is delivered as it arrives
+            this.frameId = id;
+            this.frameRemaining = value;
+
+        } else if (type == FRAME_CREDIT) {
+            if (stream != null) {
+                stream.onCredit(value);
+                this.wakeWriter();
+            }
+
+        } else if (type == FRAME_CLOSE) {
+            if (stream != null) {
+                stream.onRemoteClose();
+                this.removeIfClosed(stream);
+            }
+
+        } else if (type == FRAME_PRIORITY) {
+            if (stream != null) stream.priority = value;
+
+        } else {
+            throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private void onOpen(int id, int priority) {
+        MultiplexedStream stream = new MultiplexedStream(this, id, priority);
+        stream.announced = true;
+        synchronized (this.streamsLock) {
+            this.streams.put(id, stream);
+        }
+        if (this.debug <= Constants.FINE) System.out.println("[MultiplexedConnection][onOpen] Remote opened stream id=" + id);
+
+        if (this.handler != null) {
+            this.handler.handleStream(stream);
+
+        } else {
+            System.err.println("[MultiplexedConnection][onOpen] Remote opened a stream, but no handler is set");
+            stream.close();
+        }
+    }
+
+    private void removeIfClosed(MultiplexedStream stream) {
+        if (!stream.isClosed()) return;
+        synchronized (this.streamsLock) {
+            if (this.streams.remove(stream.id) != null && this.streams.isEmpty()) this.idleSince = System.currentTimeMillis();
+            if (this.fecStreams.remove(stream.id)) this.socket.setForwardErrorCorrection(!this.fecStreams.isEmpty());
+        }
+        if (this.debug <= Constants.FINE) System.out.println("[MultiplexedConnection][removeIfClosed] Stream id=" + stream.id + " closed");
+    }
+
+    private void abortStreams() {
+        for (MultiplexedStream stream : this.snapshot()) stream.abort();
+        synchronized (this.streamsLock) {
+            this.streams.clear();
+        }
+    }
+
+    private ArrayList<MultiplexedStream> snapshot() {
+        synchronized (this.streamsLock) {
+            return new ArrayList<>(this.streams.values());
+        }
+    }
+
+    @FunctionalInterface
+    public interface StreamHandler {
+        void handleStream(MultiplexedStream stream);
+    }
+}
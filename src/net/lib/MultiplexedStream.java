@@ -0,0 +1,226 @@
+package net.lib;
+
+import net.common.Constants;
+import utils.RingBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the streams carried by a {@link MultiplexedConnection}. Each stream has its own buffers and its
+ * own flow control window, so a stream whose reader falls behind doesn't hold up the others.
+ */
+public class MultiplexedStream implements DuplexStream {
+
+    private final MultiplexedConnection connection;
+
+    protected final int id;
+    protected volatile int priority;
+
+    protected RingBuffer sendBuffer;
+    protected OutputStream output;
+
+    /**
+     * Bytes the remote is still willing to accept.
+     */
+    protected AtomicInteger credit;
+    protected volatile boolean announced;
+    protected volatile boolean closeSent;
+
+    protected RingBuffer receiveBuffer;
+    protected AtomicLong received;
+    protected long credited;
+    protected AtomicBoolean remoteClosed;
+
+    MultiplexedStream(MultiplexedConnection connection, int id, int priority) {
+        this.connection = connection;
+        this.id = id;
+        this.priority = priority;
+
+        this.sendBuffer = new RingBuffer(Constants.STREAM_WINDOW);
+        this.output = new StreamOutput();
+        this.credit = new AtomicInteger(Constants.STREAM_WINDOW);
+        this.announced = false;
+        this.closeSent = false;
+
+        this.receiveBuffer = new RingBuffer(Constants.STREAM_WINDOW, Constants.STREAM_WINDOW / 2, Constants.STREAM_WINDOW);
+        this.receiveBuffer.setLowWaterMarkListener(this.connection::wakeWriter);
+        this.received = new AtomicLong();
+        this.credited = Constants.STREAM_WINDOW;
+        this.remoteClosed = new AtomicBoolean(false);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Sets the priority of this stream. When several streams have data to send, data of streams with
+     * a higher priority is sent first, and streams of equal priority take turns. The remote is told
+     * about the change, so that it can schedule its own data the same way.
+     *
+     * @param priority the new priority
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        this.connection.sendPriority(this);
+    }
+
+    /**
+     * Forward error correction applies to the whole connection, it's enabled while any of its streams asks for it.
+     */
+    @Override
+    public void setForwardErrorCorrection(boolean enabled) {
+        this.connection.setForwardErrorCorrection(this, enabled);
+    }
+
+    public MultiplexedConnection getConnection() {
+        return this.connection;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closeSent && this.remoteClosed.get();
+    }
+
+    @Override
+    public boolean isSendClosed() {
+        return !this.sendBuffer.isWriteOpened();
+    }
+
+    @Override
+    public boolean isReceiveClosed() {
+        return !this.receiveBuffer.isReadOpened();
+    }
+
+    @Override
+    public int outputBufferSpace() {
+        return this.sendBuffer.capacity();
+    }
+
+    @Override
+    public int inputBufferAvailable() {
+        return this.receiveBuffer.available();
+    }
+
+    @Override
+    public OutputStream outputStream() {
+        return this.output;
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return this.receiveBuffer.getInputStream();
+    }
+
+    @Override
+    public void setInputListener(Runnable listener) {
+        this.receiveBuffer.setDataListener(listener);
+    }
+
+    @Override
+    public void setOutputListener(Runnable listener) {
+        this.sendBuffer.setSpaceListener(listener);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.sendBuffer.getOutputStream().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.connection.wakeWriter();
+    }
+
+    /**
+     * Returns the number of bytes of new credit that should be granted to the remote, because the
+     * local reader consumed them, or 0 if it isn't worth a CREDIT frame yet. Called by the writer.
+     */
+    int takeCredit() {
+        if (this.remoteClosed.get()) return 0;
+        long consumed = this.received.get() - this.receiveBuffer.available();
+        long grant = consumed + Constants.STREAM_WINDOW - this.credited;
+        if (grant < Constants.STREAM_WINDOW / 2) return 0;
+        this.credited += grant;
+        return (int) grant;
+    }
+
+    /**
+     * Delivers received data. Never blocks, the remote never sends more than its credit,
+     * and the receive buffer is as large as the window.
+     */
+    void onData(byte[] data, int off, int len) throws IOException {
+        if (this.receiveBuffer.capacity() < len) throw new IOException("Stream " + this.id + " flow control window exceeded");
+        this.received.addAndGet(len);
+        if (!this.receiveBuffer.isWriteOpened()) return; // local reader closed the stream, nobody wants the data
+        this.receiveBuffer.getOutputStream().write(data, off, len);
+    }
+
+    void onCredit(int amount) {
+        this.credit.addAndGet(amount);
+    }
+
+    void onRemoteClose() {
+        if (!this.remoteClosed.compareAndSet(false, true)) return;
+        try {
+            this.receiveBuffer.getOutputStream().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes both sides of the stream without telling the remote, because the connection was lost.
+     */
+    void abort() {
+        this.closeSent = true;
+        this.onRemoteClose();
+        try {
+            this.sendBuffer.getOutputStream().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes into the send buffer, and wakes the connection's writer to send the data.
+     */
+    private class StreamOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            sendBuffer.getOutputStream().write(b);
+            connection.wakeWriter();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // write in chunks, so the writer can drain the buffer while a large write waits for space
+            while (len > 0) {
+                int chunk = Math.min(len, Constants.STREAM_WINDOW / 2);
+                sendBuffer.getOutputStream().write(b, off, chunk);
+                connection.wakeWriter();
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() {
+            connection.wakeWriter();
+        }
+
+        @Override
+        public void close() {
+            MultiplexedStream.this.close();
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package net.lib;
+
+import net.common.Constants;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process UDP relay that sits between {@link ClientSocket}s and a {@link ServerSocket}, and degrades
+ * the traffic going through it according to a {@link Profile}: loss, duplication, latency, jitter,
+ * reordering and a bandwidth cap.
+ *
+ * Clients connect to the emulator's port instead of the server's. Every client gets its own upstream
+ * DatagramSocket, so the server sees one distinct remote per client. Each direction of each client has
+ * its own Random seeded from the emulator's seed and the client's index, so a given seed always drops,
+ * duplicates and delays the same packets of a given connection.
+ */
+public class NetworkEmulator {
+
+    private final InetSocketAddress target;
+    private final Profile profile;
+    private final long seed;
+
+    private DatagramSocket front;
+    private final HashMap<SocketAddress, Route> routes;
+    private final Object routesLock;
+
+    private final DelayQueue<Datagram> inFlight;
+    private final AtomicLong sequence;
+
+    private final Thread receiver;
+    private final Thread deliverer;
+    private final AtomicBoolean running;
+
+    protected AtomicLong forwardedCount;
+    protected AtomicLong droppedCount;
+    protected AtomicLong duplicatedCount;
+    protected AtomicLong reorderedCount;
+
+    public int debug = Constants.ERROR;
+
+    public NetworkEmulator(InetSocketAddress target, Profile profile, long seed) {
+        this.target = target;
+        this.profile = profile;
+        this.seed = seed;
+
+        this.routes = new HashMap<>();
+        this.routesLock = new Object();
+        this.inFlight = new DelayQueue<>();
+        this.sequence = new AtomicLong();
+
+        this.receiver = new Thread(this::receiver);
+        this.receiver.setName("[NetworkEmulator][receiver]");
+        this.receiver.setDaemon(true);
+        this.deliverer = new Thread(this::deliverer);
+        this.deliverer.setName("[NetworkEmulator][deliverer]");
+        this.deliverer.setDaemon(true);
+        this.running = new AtomicBoolean(false);
+
+        this.forwardedCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+        this.duplicatedCount = new AtomicLong();
+        this.reorderedCount = new AtomicLong();
+    }
+
+    /**
+     * Binds the client facing socket to an ephemeral port on the loopback interface, and starts relaying.
+     *
+     * @throws SocketException if the socket can't be bound
+     */
+    public void open() throws SocketException {
+        if (!this.running.compareAndSet(false, true)) throw new IllegalStateException("NetworkEmulator already opened");
+        this.front = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.receiver.start();
+        this.deliverer.start();
+    }
+
+    public void close() {
+        if (!this.running.compareAndSet(true, false)) return;
+        this.front.close();
+        synchronized (this.routesLock) {
+            for (Route route : this.routes.values()) route.upstream.close();
+            this.routes.clear();
+        }
+        this.deliverer.interrupt();
+    }
+
+    public InetAddress getAddress() {
+        return this.front.getLocalAddress();
+    }
+
+    public int getPort() {
+        return this.front.getLocalPort();
+    }
+
+    public Profile getProfile() {
+        return this.profile;
+    }
+
+    public long getForwardedCount() {
+        return this.forwardedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    public long getDuplicatedCount() {
+        return this.duplicatedCount.get();
+    }
+
+    public long getReorderedCount() {
+        return this.reorderedCount.get();
+    }
+
+    // client to server
+    private void receiver() {
+        byte[] trx = new byte[Constants.PACKET_BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(trx, trx.length);
+
+        while (this.running.get()) {
+            try {
+                packet.setData(trx);
+                this.front.receive(packet);
+
+                Route route;
+                synchronized (this.routesLock) {
+                    route = this.routes.get(packet.getSocketAddress());
+                    if (route == null) {
+                        route = new Route(packet.getSocketAddress(), this.routes.size());
+                        this.routes.put(route.client, route);
+                        route.start();
+                        if (this.debug <= Constants.FINE) System.out.println("[NetworkEmulator][receiver] New client " + route.client);
+                    }
+                }
+                route.up.submit(packet, route.upstream, this.target);
+
+            } catch (IOException e) {
+                if (this.running.get()) {
+                    System.err.println("[NetworkEmulator][receiver] IOException while receiving packet");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void deliverer() {
+        while (this.running.get()) {
+            try {
+                Datagram datagram = this.inFlight.take();
+                datagram.via.send(new DatagramPacket(datagram.data, datagram.data.length, datagram.to));
+                this.forwardedCount.incrementAndGet();
+
+            } catch (InterruptedException e) {
+                // closed
+
+            } catch (IOException e) {
+                if (this.running.get() && this.debug <= Constants.WARN) {
+                    System.err.println("[NetworkEmulator][deliverer] IOException while sending packet");
+                }
+            }
+        }
+    }
+
+    /**
+     * The two links of a single client, and the upstream socket standing in for that client towards the server.
+     */
+    private class Route {
+
+        private final SocketAddress client;
+        private final DatagramSocket upstream;
+        private final Link up;
+        private final Link down;
+
+        private Route(SocketAddress client, int index) throws SocketException {
+            this.client = client;
+            this.upstream = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.up = new Link(new Random(seed * 31 + index * 2));
+            this.down = new Link(new Random(seed * 31 + index * 2 + 1));
+        }
+
+        private void start() {
+            Thread thread = new Thread(this::receiver);
+            thread.setName("[NetworkEmulator][upstream]");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // server to client
+        private void receiver() {
+            byte[] trx = new byte[Constants.PACKET_BUFFER_SIZE];
+            DatagramPacket packet = new DatagramPacket(trx, trx.length);
+
+            while (running.get() && !this.upstream.isClosed()) {
+                try {
+                    packet.setData(trx);
+                    this.upstream.receive(packet);
+                    this.down.submit(packet, front, this.client);
+
+                } catch (IOException e) {
+                    if (running.get() && !this.upstream.isClosed()) {
+                        System.err.println("[NetworkEmulator][Route][receiver] IOException while receiving packet");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One direction of the emulated path. Packets are serialized at the profile's bandwidth behind the
+     * packets already queued on the link, then take the profile's latency plus jitter to arrive. Jitter
+     * doesn't reorder packets, a packet never arrives before the one sent ahead of it unless it was picked
+     * for reordering.
+     */
+    private class Link {
+
+        private final Random random;
+
+        /**
+         * Time in nanoseconds at which the link finishes serializing the packets queued so far.
+         */
+        private long busyUntil;
+
+        /**
+         * Time in nanoseconds at which the last packet that wasn't reordered arrives.
+         */
+        private long lastArrival;
+
+        private Link(Random random) {
+            this.random = random;
+            this.busyUntil = 0;
+            this.lastArrival = 0;
+        }
+
+        private synchronized void submit(DatagramPacket packet, DatagramSocket via, SocketAddress to) {
+            long now = System.nanoTime();
+
+            // every decision consumes the same random numbers, so that one packet's fate doesn't shift the next one's
+            boolean lost = this.random.nextDouble() < profile.loss;
+            boolean duplicated = this.random.nextDouble() < profile.duplicate;
+            boolean reordered = this.random.nextDouble() < profile.reorder;
+            double jitter = this.random.nextGaussian();
+
+            long start = Math.max(now, this.busyUntil);
+            if (profile.queueLimit > 0 && start - now > profile.queueLimit * 1000000L) lost = true;
+            // too large for the path, as if sent with the don't fragment flag
+            if (profile.mtu > 0 && packet.getLength() + Utils.getDatagramOverhead(packet.getAddress()) > profile.mtu) lost = true;
+
+            if (lost) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+
+            if (profile.bandwidth > 0) {
+                this.busyUntil = start + packet.getLength() * 1000000000L / profile.bandwidth;
+                start = this.busyUntil;
+            }
+
+            long arrival = start + (long) ((profile.latency + Math.abs(jitter) * profile.jitter) * 1000000L);
+            if (reordered) {
+                // held back long enough for the packets behind it to overtake it
+                arrival += Math.max(1000000L, (long) (profile.latency * 1000000L));
+                reorderedCount.incrementAndGet();
+
+            } else {
+                arrival = Math.max(arrival, this.lastArrival);
+                this.lastArrival = arrival;
+            }
+
+            byte[] data = new byte[packet.getLength()];
+            System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+            inFlight.add(new Datagram(data, via, to, arrival, sequence.incrementAndGet()));
+
+            if (duplicated) {
+                inFlight.add(new Datagram(data, via, to, arrival + 100000L, sequence.incrementAndGet()));
+                duplicatedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Datagram implements Delayed {
+
+        private final byte[] data;
+        private final DatagramSocket via;
+        private final SocketAddress to;
+        private final long deliverAt;
+        private final long sequence;
+
+        private Datagram(byte[] data, DatagramSocket via, SocketAddress to, long deliverAt, long sequence) {
+            this.data = data;
+            this.via = via;
+            this.to = to;
+            this.deliverAt = deliverAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Datagram other = (Datagram) o;
+            int c = Long.compare(this.deliverAt, other.deliverAt);
+            return c != 0 ? c : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The characteristics of an emulated path, applied independently to each direction.
+     */
+    public static class Profile {
+
+        public static final Profile PERFECT = new Profile("perfect", 0, 0, 0, 0, 0, 0, 0);
+        public static final Profile LAN = new Profile("lan", 0, 0, 0, 0.5, 0.1, 100000000, 50);
+        public static final Profile WIFI = new Profile("wifi", 0.005, 0.001, 0.002, 3, 2, 6000000, 100);
+        public static final Profile LOSSY = new Profile("lossy", 0.03, 0.005, 0.01, 10, 3, 4000000, 200);
+        public static final Profile REORDERING = new Profile("reordering", 0.001, 0.01, 0.1, 5, 5, 10000000, 200);
+        public static final Profile MOBILE = new Profile("mobile", 0.01, 0.002, 0.01, 40, 15, 1500000, 500);
+        public static final Profile TUNNEL = new Profile("tunnel", 0, 0, 0, 0.5, 0.1, 100000000, 50, 1400);
+
+        public static final Profile[] PROFILES = {PERFECT, LAN, WIFI, LOSSY, REORDERING, MOBILE, TUNNEL};
+
+        public final String name;
+
+        /**
+         * Probability that a packet is dropped, duplicated, or held back behind later packets.
+         */
+        public final double loss;
+        public final double duplicate;
+        public final double reorder;
+
+        /**
+         * One way latency, and the standard deviation of the jitter added to it, in milliseconds.
+         */
+        public final double latency;
+        public final double jitter;
+
+        /**
+         * Bandwidth cap in bytes per second, 0 for unlimited.
+         */
+        public final long bandwidth;
+
+        /**
+         * Longest a packet may wait for the bandwidth cap before being dropped, in milliseconds, 0 for unlimited.
+         */
+        public final long queueLimit;
+
+        /**
+         * Largest datagram the path carries, IP and UDP headers included, 0 for unlimited. Larger datagrams are dropped.
+         */
+        public final int mtu;
+
+        public Profile(String name, double loss, double duplicate, double reorder, double latency, double jitter, long bandwidth, long queueLimit) {
+            this(name, loss, duplicate, reorder, latency, jitter, bandwidth, queueLimit, 0);
+        }
+
+        public Profile(String name, double loss, double duplicate, double reorder, double latency, double jitter, long bandwidth, long queueLimit, int mtu) {
+            this.name = name;
+            this.loss = loss;
+            this.duplicate = duplicate;
+            this.reorder = reorder;
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bandwidth = bandwidth;
+            this.queueLimit = queueLimit;
+            this.mtu = mtu;
+        }
+
+        public static Profile forName(String name) {
+            for (Profile profile : PROFILES) {
+                if (profile.name.equalsIgnoreCase(name)) return profile;
+            }
+            throw new IllegalArgumentException("Unknown network profile " + name);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s(loss=%.3f dup=%.3f reorder=%.3f latency=%.1fms jitter=%.1fms bandwidth=%s queue=%dms mtu=%s)",
+                    this.name, this.loss, this.duplicate, this.reorder, this.latency, this.jitter,
+                    this.bandwidth > 0 ? (this.bandwidth / 1000) + "KB/s" : "unlimited", this.queueLimit,
+                    this.mtu > 0 ? String.valueOf(this.mtu) : "unlimited");
+        }
+    }
+}
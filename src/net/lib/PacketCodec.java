@@ -0,0 +1,84 @@
+package net.lib;
+
+import net.common.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Reads and writes packet headers and footers directly in {@link ByteBuffer}s, without any intermediate
+ * streams or copies. Every packet starts with a header made of its {@link PacketType} value and ID,
+ * MESSAGE packets end with a footer holding the checksum of the header and data. Packets are heap buffers,
+ * from a {@link utils.BufferPool}, their bytes are accessed through their backing arrays.
+ */
+final class PacketCodec {
+
+    private PacketCodec() {}
+
+    /**
+     * Writes the packet header at the start of the buffer, and positions the buffer just after it.
+     */
+    static void writeHeader(ByteBuffer packet, PacketType type, int id) {
+        packet.clear();
+        packet.putInt(type.value);
+        packet.putInt(id);
+    }
+
+    static PacketType readType(ByteBuffer packet) {
+        return PacketType.fromValue(packet.getInt(0));
+    }
+
+    static int readId(ByteBuffer packet) {
+        return packet.getInt(4);
+    }
+
+    /**
+     * Calculates the checksum of everything before the buffer's position, and writes it at the position.
+     */
+    static void writeChecksum(ByteBuffer packet, Checksum check) {
+        check.reset();
+        update(check, packet, 0, packet.position());
+        packet.putLong(check.getValue());
+    }
+
+    /**
+     * XORs len bytes of src, starting at srcOffset, into dst, starting at dstOffset. Neither buffer's
+     * position or limit is used or changed.
+     */
+    static void xor(ByteBuffer dst, int dstOffset, ByteBuffer src, int srcOffset, int len) {
+        byte[] d = dst.array();
+        byte[] s = src.array();
+        int di = dst.arrayOffset() + dstOffset;
+        int si = src.arrayOffset() + srcOffset;
+        for (int i = 0; i < len; i++) d[di + i] ^= s[si + i];
+    }
+
+    /**
+     * Checks the checksum at the end of a received packet, which ends at the buffer's limit.
+     *
+     * @return true if the checksum matches the rest of the packet
+     */
+    static boolean verifyChecksum(ByteBuffer packet, Checksum check) {
+        int end = packet.limit() - Constants.FOOTER_OVERHEAD;
+        if (end < Constants.HEADER_OVERHEAD) return false;
+
+        check.reset();
+        update(check, packet, 0, end);
+        return check.getValue() == packet.getLong(end);
+    }
+
+    /**
+     * Copies the content of src, up to its limit, into dst. Neither buffer's position is used or changed,
+     * dst's limit is set to the length of the copied content.
+     */
+    static void copy(ByteBuffer src, ByteBuffer dst) {
+        int length = src.limit();
+        dst.clear();
+        System.arraycopy(src.array(), src.arrayOffset(), dst.array(), dst.arrayOffset(), length);
+        dst.limit(length);
+    }
+
+    private static void update(Checksum check, ByteBuffer packet, int off, int len) {
+        check.update(packet.array(), packet.arrayOffset() + off, len);
+    }
+}
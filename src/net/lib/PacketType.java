@@ -6,7 +6,11 @@ public enum PacketType {
     MESSAGE     (2),
     ACK         (3),
     CLOSE       (4),
-    POKE        (5);
+    POKE        (5),
+    SACK        (6),
+    PROBE       (7),
+    PROBE_ACK   (8),
+    PARITY      (9);
 
     final int value;
 
@@ -25,6 +29,10 @@ public enum PacketType {
             case 3 : return ACK;
             case 4 : return CLOSE;
             case 5 : return POKE;
+            case 6 : return SACK;
+            case 7 : return PROBE;
+            case 8 : return PROBE_ACK;
+            case 9 : return PARITY;
             default : return UNKNOWN;
         }
     }
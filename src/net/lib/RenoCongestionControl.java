@@ -0,0 +1,51 @@
+package net.lib;
+
+import net.common.Constants;
+
+/**
+ * Reno style additive increase, multiplicative decrease congestion control. The window grows by one packet
+ * per acknowledged packet in slow start, and by one packet per round trip afterwards. It is halved on loss,
+ * and reset to one packet on timeout.
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+    private double window;
+    private int threshold;
+
+    public RenoCongestionControl() {
+        this.window = Constants.INITIAL_CONGESTION_WINDOW;
+        this.threshold = Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void onAck(int acknowledged, double rtt) {
+        if (this.window < this.threshold) {
+            this.window += acknowledged;
+
+        } else {
+            this.window += (double) acknowledged / this.window;
+        }
+    }
+
+    @Override
+    public void onLoss() {
+        this.threshold = Math.max(2, (int) (this.window / 2));
+        this.window = this.threshold;
+    }
+
+    @Override
+    public void onTimeout() {
+        this.threshold = Math.max(2, (int) (this.window / 2));
+        this.window = 1;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) this.window;
+    }
+
+    @Override
+    public int getSlowStartThreshold() {
+        return this.threshold;
+    }
+}
@@ -0,0 +1,82 @@
+package net.lib;
+
+import net.common.Constants;
+
+/**
+ * Keeps a smoothed round trip time and round trip time variance for a connection, and derives the
+ * retransmission timeout from them, following RFC 6298. Times are in milliseconds.
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final int MAX_BACKOFF = 6;
+
+    private double smoothedRtt;
+    private double rttVariance;
+    private boolean sampled;
+
+    private int backoff;
+
+    public RttEstimator() {
+        this.smoothedRtt = 0;
+        this.rttVariance = 0;
+        this.sampled = false;
+        this.backoff = 0;
+    }
+
+    /**
+     * Updates the estimate with a new round trip time measurement. Measurements must only be taken
+     * from packets that were not retransmitted, since it isn't known which transmission an ACK for
+     * a retransmitted packet belongs to. A new measurement clears any backoff.
+     *
+     * @param rtt the measured round trip time, in milliseconds
+     */
+    public synchronized void sample(double rtt) {
+        if (!this.sampled) {
+            this.smoothedRtt = rtt;
+            this.rttVariance = rtt / 2;
+            this.sampled = true;
+
+        } else {
+            this.rttVariance = (1 - BETA) * this.rttVariance + BETA * Math.abs(this.smoothedRtt - rtt);
+            this.smoothedRtt = (1 - ALPHA) * this.smoothedRtt + ALPHA * rtt;
+        }
+
+        this.backoff = 0;
+    }
+
+    /**
+     * Doubles the retransmission timeout, up to {@link Constants#MAX_RESEND_DELAY}.
+     * Called when the retransmission timer expires.
+     */
+    public synchronized void backoff() {
+        if (this.backoff < MAX_BACKOFF) this.backoff++;
+    }
+
+    /**
+     * Returns the current retransmission timeout, including backoff, clamped between
+     * {@link Constants#MIN_RESEND_DELAY} and {@link Constants#MAX_RESEND_DELAY}.
+     *
+     * @return the retransmission timeout in milliseconds
+     */
+    public synchronized long getTimeout() {
+        double base = this.sampled ? this.smoothedRtt + Math.max(1, K * this.rttVariance) : Constants.INITIAL_RESEND_DELAY;
+        long timeout = Math.max(Constants.MIN_RESEND_DELAY, (long) Math.ceil(base)) << this.backoff;
+        return Math.min(Constants.MAX_RESEND_DELAY, timeout);
+    }
+
+    /**
+     * Returns the smoothed round trip time, or 0 if no measurement has been taken yet.
+     *
+     * @return the smoothed round trip time in milliseconds
+     */
+    public synchronized double getSmoothedRtt() {
+        return this.smoothedRtt;
+    }
+
+    public synchronized double getRttVariance() {
+        return this.rttVariance;
+    }
+}
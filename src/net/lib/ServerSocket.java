@@ -1,29 +1,69 @@
 package net.lib;
 
 import net.common.Constants;
+import utils.BufferPool;
+import utils.SpscQueue;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.util.HashMap;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts connections on a single UDP port. Packets are received on a non-blocking {@link DatagramChannel}
+ * by an {@link EventLoop}, and handed to the {@link Socket} they belong to on that socket's own event loop.
+ * Sockets accepted by a ServerSocket don't have threads of their own, so a server can hold many more
+ * connections than it has threads.
+ *
+ * The thread receiving packets never blocks on a socket: connections are looked up in a concurrent table
+ * keyed by the remote's address, and each socket has a bounded, lock-free inbound queue. A packet that
+ * doesn't fit in its socket's queue is dropped and counted, and the remote retransmits it.
+ *
+ * Statistics of each connection, and aggregated over every connection, are available from {@link #getStats()}
+ * and {@link #getConnectionStats()}, and through JMX while the ServerSocket is open.
+ */
+public class ServerSocket implements ServerSocketMXBean {
+
+    private DatagramChannel channel;
+
+    private ConcurrentHashMap<InetSocketAddress, SlaveSocket> sockets;
+    private AtomicLong droppedCount;
+    // packets that didn't belong to any connection
+    private AtomicLong unroutedCount;
+
+    // the summed counters of closed connections
+    private final Object statsLock;
+    private SocketStats closedStats;
+
+    private ObjectName mbeanName;
 
-public class ServerSocket {
+    private SocketHandler handler;
 
-    private final Object socketLock;
-    private DatagramSocket socket;
+    private EventLoop[] loops;
+    private int nextLoop;
 
-    private final Object socketsLock;
-    private HashMap<Integer, SlaveSocket> sockets;
+    private BufferPool buffers;
+    private ByteBuffer inbound;
 
-    private SocketHandler handler;
+    private AtomicBoolean running;
 
-    private Thread listenerThread;
+    /**
+     * Whether accepted sockets probe the path MTU, by default only if the don't fragment flag could be
+     * set on the channel.
+     */
+    private volatile boolean pathMtuProbing;
+    private volatile boolean pacing;
 
-    private AtomicBoolean running;
+    public int debug = Constants.ERROR;
 
     public ServerSocket(int port, SocketHandler handler) throws SocketException {
         this(Utils.getNonLoopback(), port, handler);
@@ -34,78 +74,275 @@ public class ServerSocket {
     }
 
     public ServerSocket(SocketAddress address, SocketHandler handler) throws SocketException {
-        this.socket = new DatagramSocket(address);
+        this(address, handler, Constants.EVENT_LOOPS);
+    }
+
+    /**
+     * Creates a ServerSocket bound to the given address.
+     *
+     * @param address the address to bind to
+     * @param handler called with each newly accepted Socket
+     * @param eventLoops the number of event loop threads to spread connections over
+     * @throws SocketException if the socket can't be bound
+     */
+    public ServerSocket(SocketAddress address, SocketHandler handler, int eventLoops) throws SocketException {
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.bind(address);
+            this.pathMtuProbing = Utils.setDontFragment(this.channel);
+            this.pacing = false;
+
+            for (int i = 0; i < this.loops.length; i++) this.loops[i] = new EventLoop("[ServerSocket][loop-" + i + "]");
+
+        } catch (IOException e) {
+            // nothing was started yet, only the channel and the selectors were opened
+            this.release();
+            if (e instanceof SocketException) throw (SocketException) e;
+            SocketException ex = new SocketException("Unable to open ServerSocket channel");
+            ex.initCause(e);
+            throw ex;
+        }
+
         this.handler = handler;
-        this.socketLock = new Object();
+        this.nextLoop = 0;
+
+        this.sockets = new ConcurrentHashMap<>();
+        this.droppedCount = new AtomicLong();
+        this.unroutedCount = new AtomicLong();
 
-        this.socketsLock = new Object();
-        this.sockets = new HashMap<>();
+        this.statsLock = new Object();
+        this.closedStats = new SocketStats();
+        this.mbeanName = null;
 
-        this.listenerThread = new Thread(this::listener);
-        this.listenerThread.setName("[ServerSocket][listener]");
+        // received packets are handed to the sockets, which return them to the pool once handled
+        this.buffers = new BufferPool(Constants.PACKET_BUFFER_SIZE, Constants.PACKET_POOL_SIZE * this.loops.length);
+        this.inbound = null;
 
         this.running = new AtomicBoolean(false);
     }
 
     public void open() {
-        this.running.set(true);
-        this.listenerThread.start();
+        if (!this.running.compareAndSet(false, true)) return;
+        for (EventLoop loop : this.loops) loop.start();
+        this.loops[0].register(this.channel, this::onReadable);
+        this.registerMBean();
+    }
+
+    /**
+     * Stops accepting packets, and aborts the sockets that are still open, without telling their remotes.
+     * Their streams are closed, as if they had timed out, since no event loop is left to time them out.
+     */
+    public void close() {
+        if (!this.running.compareAndSet(true, false)) return;
+        for (EventLoop loop : this.loops) loop.stop();
+        // no loop may still be handling a socket while it's aborted
+        for (EventLoop loop : this.loops) loop.awaitTermination();
+        try {
+            this.channel.close();
+
+        } catch (IOException e) {
+            System.err.println("[ServerSocket][close] IOException while closing channel");
+            e.printStackTrace();
+        }
+
+        // closed sockets remove themselves, and add their counters to the closed connections' statistics
+        for (SlaveSocket socket : this.sockets.values()) socket.abort();
+        this.unregisterMBean();
+    }
+
+    /**
+     * Closes the channel and the event loops' selectors, when the ServerSocket couldn't be created.
+     */
+    private void release() {
+        for (EventLoop loop : this.loops) {
+            if (loop != null) loop.close();
+        }
+        if (this.channel == null) return;
+        try {
+            this.channel.close();
+
+        } catch (IOException e) {
+            System.err.println("[ServerSocket][release] IOException while closing channel");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Enables or disables path MTU probing on the sockets accepted from now on.
+     *
+     * @param enabled whether to probe the path MTU
+     * @see Socket#setPathMtuProbing(boolean)
+     */
+    public void setPathMtuProbing(boolean enabled) {
+        this.pathMtuProbing = enabled;
+    }
+
+    /**
+     * Enables or disables pacing on the sockets accepted from now on.
+     *
+     * @param enabled whether to pace packets
+     * @see Socket#setPacing(boolean)
+     */
+    public void setPacing(boolean enabled) {
+        this.pacing = enabled;
     }
 
     public InetAddress localAddress() {
-        return this.socket.getLocalAddress();
+        return this.channel.socket().getLocalAddress();
     }
 
+    @Override
     public int getPort() {
-        return this.socket.getLocalPort();
+        return this.channel.socket().getLocalPort();
     }
 
-    private void listener() {
-        while (this.running.get()) {
-            DatagramPacket packet = new DatagramPacket(new byte[Constants.PACKET_SIZE + Constants.HEADER_OVERHEAD], Constants.PACKET_SIZE + Constants.HEADER_OVERHEAD);
-            try {
-                this.socket.receive(packet);
-
-                int key = packet.getAddress().hashCode() ^ packet.getPort();
+    @Override
+    public SocketStats getStats() {
+        List<SocketStats> open = this.getConnectionStats();
+        synchronized (this.statsLock) {
+            SocketStats stats = SocketStats.aggregate(open, this.closedStats);
+            stats.dropped += this.unroutedCount.get();
+            return stats;
+        }
+    }
 
-                //System.out.println("[ServerSocket][listener] Received packet from " + packet.getAddress() + ":" + packet.getPort());
+    @Override
+    public List<SocketStats> getConnectionStats() {
+        List<SocketStats> stats = new ArrayList<>(this.sockets.size());
+        for (SlaveSocket socket : this.sockets.values()) stats.add(socket.getStats());
+        return stats;
+    }
 
-                synchronized (this.socketsLock) {
-                    if (this.sockets.containsKey(key)) {
-                        this.sockets.get(key).transferPacket(packet);
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.lib:type=ServerSocket,port=" + this.getPort());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                this.mbeanName = name;
+            }
 
-                    } else {
+        } catch (JMException e) {
+            System.err.println("[ServerSocket][registerMBean] Unable to register MBean");
+            e.printStackTrace();
+        }
+    }
 
-                        ByteArrayInputStream in = new ByteArrayInputStream(packet.getData());
-                        DataInputStream reader = new DataInputStream(in);
+    private void unregisterMBean() {
+        if (this.mbeanName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
 
-                        PacketType type = PacketType.fromValue(reader.readInt());
-                        reader.close();
+        } catch (JMException e) {
+            System.err.println("[ServerSocket][unregisterMBean] Unable to unregister MBean");
+            e.printStackTrace();
+        }
+        this.mbeanName = null;
+    }
 
-                        if (type == PacketType.SYN) {
-                            //System.out.println("[ServerSocket][listener] Received SYN packet, creating new SlaveSocket");
-                            SlaveSocket newSocket = new SlaveSocket(packet.getAddress(), packet.getPort());
-                            newSocket.transferPacket(packet);
-                            this.sockets.put(key, newSocket);
-                            this.handler.handleSocket(newSocket);
+    /**
+     * Returns the number of open connections.
+     */
+    @Override
+    public int getConnectionCount() {
+        return this.sockets.size();
+    }
 
-                        } // do something with non-SYN packets?
-                    }
+    /**
+     * Returns the number of received packets that were dropped, because they didn't belong to any connection,
+     * or because their connection's inbound queue was full.
+     *
+     * @return dropped packet count
+     */
+    @Override
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
 
+    /**
+     * Receives every packet waiting on the channel, and dispatches each to the event loop of the socket
+     * it belongs to. Runs on the first event loop.
+     */
+    private void onReadable() {
+        while (this.running.get()) {
+            if (this.inbound == null) this.inbound = this.buffers.acquire();
 
-                }
+            InetSocketAddress from;
+            this.inbound.clear();
+            try {
+                from = (InetSocketAddress) this.channel.receive(this.inbound);
 
             } catch (IOException e) {
-                System.err.println("[ServerSocket][listener] IOException while waiting to receive packets");
+                System.err.println("[ServerSocket][onReadable] IOException while trying to receive packets");
                 e.printStackTrace();
+                return;
+            }
+
+            if (from == null) return; // nothing left to read, keep the buffer for next time
+
+            ByteBuffer packet = this.inbound;
+            packet.flip();
+            if (packet.limit() < Constants.HEADER_OVERHEAD) continue;
+
+            //System.out.println("[ServerSocket][onReadable] Received packet from " + from);
+
+            // only this thread adds sockets, sockets remove themselves once closed
+            SlaveSocket socket = this.sockets.get(from);
+            boolean created = false;
+            if (PacketCodec.readType(packet) == PacketType.SYN) {
+                int connectionId = Socket.readConnectionId(packet);
+                if (connectionId == 0) {
+                    // corrupted, or not from a ClientSocket
+                    this.droppedCount.incrementAndGet();
+                    this.unroutedCount.incrementAndGet();
+                    continue;
+                }
+
+                if (socket != null && connectionId != socket.connectionId) {
+                    // the remote reused its address for a new connection, so the old one is gone
+                    if (this.debug <= Constants.FINE) System.out.println("[ServerSocket][onReadable] New connection from " + from + ", dropping the previous one");
+                    this.sockets.remove(from, socket);
+                    socket.abandon();
+                    socket = null;
+                }
+
+                if (socket == null && !this.running.get()) {
+                    // closing, no new connections
+                    this.droppedCount.incrementAndGet();
+                    continue;
+                }
+
+                if (socket == null) {
+                    //System.out.println("[ServerSocket][onReadable] Received SYN packet, creating new SlaveSocket");
+                    socket = new SlaveSocket(from, connectionId, this.loops[this.nextLoop]);
+                    this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+                    this.sockets.put(from, socket);
+                    created = true;
+                }
+
+            } else if (socket == null) {
+                this.droppedCount.incrementAndGet();
+                this.unroutedCount.incrementAndGet();
+                continue;
             }
+
+            // the socket owns the buffer now
+            this.inbound = null;
+            socket.transferPacket(packet);
+            if (created) this.handler.handleSocket(socket);
         }
     }
 
     protected void socketClosed(SlaveSocket socket) {
-        synchronized (this.socketsLock) {
-            //System.out.println("[ServerSocket][socketClosed] Socket to " + socket.remote + ":" + socket.port + " closed");
-            this.sockets.remove(socket.remote.hashCode() ^ socket.port);
+        //System.out.println("[ServerSocket][socketClosed] Socket to " + socket.remote + ":" + socket.port + " closed");
+        this.sockets.remove(socket.address, socket);
+        if (socket.accounted.compareAndSet(false, true)) {
+            SocketStats stats = socket.getStats();
+            synchronized (this.statsLock) {
+                this.closedStats.addCounters(stats);
+            }
         }
     }
 
@@ -116,69 +353,156 @@ public class ServerSocket {
 
     private class SlaveSocket extends Socket {
 
-        private SynchronousQueue<DatagramPacket> transfer;
+        private final EventLoop loop;
+        private final InetSocketAddress address;
+
+        private final SpscQueue<ByteBuffer> inbox;
+        private final AtomicBoolean drainPending;
+        private final Runnable drainTask;
+
+        // whether the counters were added to the closed connections' statistics
+        private final AtomicBoolean accounted;
+
+        private final AtomicBoolean pumpPending;
+        private final Runnable pumpTask;
+        private long pumpDeadline;
+
+        public SlaveSocket(InetSocketAddress address, int connectionId, EventLoop loop) {
+            super(address.getAddress(), address.getPort());
+
+            this.loop = loop;
+            this.address = address;
+            this.connectionId = connectionId;
 
-        public SlaveSocket(InetAddress remote, int port) {
-            super(remote, port);
+            // only filled by the thread receiving packets, only drained by this socket's event loop
+            this.inbox = new SpscQueue<>(Constants.PACKET_POOL_SIZE);
+            this.drainPending = new AtomicBoolean(false);
+            this.drainTask = this::drainInbox;
 
-            this.transfer = new SynchronousQueue<>();
+            this.accounted = new AtomicBoolean(false);
+
+            this.pumpPending = new AtomicBoolean(false);
+            this.pumpTask = this::pumpNow;
+            this.pumpDeadline = Long.MAX_VALUE;
+
+            this.setPathMtuProbing(ServerSocket.this.pathMtuProbing);
+            this.setPacing(ServerSocket.this.pacing);
             this.state.set(LISTEN);
-            this.receiver.start();
         }
 
         @Override
-        protected DatagramPacket receivePacket() {
-            try {
-                //System.out.println("[SlaveSocket][receivePacket] Attempting to receive packet...");
-                return this.transfer.poll(Constants.TIMEOUT_DELAY / 2, TimeUnit.MILLISECONDS);
+        protected ByteBuffer receivePacket() {
+            // packets are pushed by the ServerSocket through transferPacket
+            return null;
+        }
 
-            } catch (InterruptedException e) {
-                return null;
+        /**
+         * Queues a received packet to be handled on this socket's event loop. The packet's buffer is
+         * returned to the ServerSocket's pool once handled. If the socket is too far behind, the packet
+         * is dropped, and will be retransmitted by the remote.
+         */
+        protected void transferPacket(ByteBuffer packet) {
+            if (this.state.get() == CLOSED) {
+                buffers.release(packet);
+                return;
+            }
+            if (!this.inbox.offer(packet)) {
+                this.droppedCount.incrementAndGet();
+                ServerSocket.this.droppedCount.incrementAndGet();
+                if (this.debug <= Constants.FINER) System.out.println("[SlaveSocket][transferPacket] Inbound queue full, packet dropped");
+                buffers.release(packet);
+                return;
+            }
+
+            if (this.drainPending.compareAndSet(false, true)) {
+                this.loop.execute(this.drainTask);
+            }
+        }
+
+        private void drainInbox() {
+            this.drainPending.set(false);
+            ByteBuffer packet;
+            while ((packet = this.inbox.poll()) != null) {
+                if (this.state.get() != CLOSED) this.onPacket(packet);
+                buffers.release(packet);
             }
         }
 
         @Override
-        public void sender() {
-            if (this.state.get() == SYN_RECEIVED) {
-                try {
-                    this.sendSyn();
-                    this.state.compareAndSet(SYN_RECEIVED, ESTABLISHED);
-
-                } catch (SocketTimeoutException e) {
-                    System.err.println("[SlaveSocket][sender] Timed out sending response SYN");
-                    e.printStackTrace();
+        protected void sendTrivial(ByteBuffer packet) {
+            // only called from the event loop, so the position can be borrowed for the send
+            try {
+                if (channel.send(packet, this.address) == 0 && this.debug <= Constants.FINER) {
+                    // the channel's send buffer is full, the packet is lost as if the network dropped it
+                    System.out.println("[SlaveSocket][sendTrivial] Send buffer full, packet dropped");
                 }
+
+            } catch (IOException e) {
+                System.err.println("[SlaveSocket][sendTrivial] IOException while sending packet");
+                e.printStackTrace();
+
+            } finally {
+                packet.position(0);
             }
+        }
 
-            super.sender();
+        /**
+         * Closes this socket without telling the remote, which already moved on to a new connection.
+         */
+        private void abandon() {
+            this.loop.execute(this::reportTimeout);
         }
 
-        @Override
-        protected Object getSocketLock() {
-            return socketLock;
+        /**
+         * Closes this socket without telling the remote, because the ServerSocket is closing. Called once the
+         * event loop threads have exited, or from the loop thread itself, so nothing else handles the socket.
+         */
+        private void abort() {
+            this.reportTimeout();
         }
 
         @Override
-        protected DatagramSocket getSocket() {
-            return socket;
+        protected void wakeSender() {
+            if (this.pumpPending.compareAndSet(false, true)) {
+                this.loop.execute(this.pumpTask);
+            }
         }
 
-        protected void transferPacket(DatagramPacket packet) {
+        /**
+         * Runs one step of the sending system on the event loop, then schedules the next one.
+         */
+        private void pumpNow() {
+            this.pumpPending.set(false);
             if (this.state.get() == CLOSED) return;
-            try {
-                this.transfer.offer(packet, Constants.TIMEOUT_DELAY / 4, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                if (this.state.get() == CLOSED) return;
-                System.err.println("[SlaveSocket][transferPacket] Interrupted while trying to transfer packet to receiver thread");
-                e.printStackTrace();
+
+            long wait = this.pump();
+            if (this.isSenderDone()) wait = Constants.TIMEOUT_DELAY / 2; // only watching for timeout now
+            else wait = Math.max(1, wait);
+
+            long deadline = System.currentTimeMillis() + wait;
+            if (deadline < this.pumpDeadline || this.pumpDeadline <= System.currentTimeMillis()) {
+                this.pumpDeadline = deadline;
+                this.loop.schedule(() -> {
+                    if (System.currentTimeMillis() >= this.pumpDeadline) this.wakeSender();
+                }, wait);
             }
         }
 
+        @Override
+        protected Object getSocketLock() {
+            return this;
+        }
+
+        @Override
+        protected DatagramSocket getSocket() {
+            return channel.socket();
+        }
+
         @Override
         protected void onSyn(InetAddress remote, int port, int id) {
-            if (this.enforceOrdering(id)) {
-                this.state.compareAndSet(LISTEN, SYN_RECEIVED);
-                this.sender.start();
+            if (this.enforceOrdering(id) && this.state.compareAndSet(LISTEN, SYN_RECEIVED)) {
+                this.sendSyn();
+                this.wakeSender();
             }
         }
 
@@ -186,19 +510,18 @@ public class ServerSocket {
         public void onClose(int id) {
             //if (this.state.get() == ESTABLISHED) System.out.println("[SlaveSocket][onClose] Client sent CLOSE packet");
             super.onClose(id);
+            this.wakeSender();
         }
 
         @Override
         protected void onClosed() {
             //System.out.println("[SlaveSocket][onClosed] SlaveSocket closed.");
-            //System.out.println("[SlaveSocket][onClosed] receiveBuffer.isReadOpened() = " + this.sendBuffer.isReadOpened());
-            //System.out.println("[SlaveSocket][onClosed] this.isReceiveClosed() = " + this.isReceiveClosed());
             socketClosed(this);
         }
 
         @Override
         protected void onTimeout() {
-
+            socketClosed(this);
         }
     }
 }
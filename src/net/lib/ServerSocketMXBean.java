@@ -0,0 +1,26 @@
+package net.lib;
+
+import java.util.List;
+
+/**
+ * The management interface of a {@link ServerSocket}, registered with the platform MBean server while it's
+ * open, under the name net.lib:type=ServerSocket,port=(port).
+ */
+public interface ServerSocketMXBean {
+
+    int getPort();
+
+    int getConnectionCount();
+
+    long getDroppedCount();
+
+    /**
+     * Returns the statistics aggregated over every connection accepted so far.
+     */
+    SocketStats getStats();
+
+    /**
+     * Returns the statistics of each open connection.
+     */
+    List<SocketStats> getConnectionStats();
+}
@@ -1,29 +1,35 @@
 package net.lib;
 
 import net.common.Constants;
-import utils.CRC64;
+import utils.BufferPool;
 import utils.RingBuffer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.CheckedOutputStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Checksum;
 
-public abstract class Socket {
+public abstract class Socket implements DuplexStream {
 
     protected AtomicInteger state;
 
     protected InetAddress remote;
     protected int port;
 
-    // waitingAck
     /**
-     * The ID for the nest packet to send.
-     * Incremented when ACK is received.
+     * The ID of the last packet that was sent.
+     * Incremented when a packet is sent.
      */
     protected AtomicInteger messageId;
+
+    /**
+     * The ID of the last packet that was cumulatively acknowledged by the remote.
+     */
     protected AtomicInteger acknowledgedId;
 
     /**
@@ -34,18 +40,161 @@ public abstract class Socket {
 
     protected RingBuffer sendBuffer;
 
-    protected AtomicBoolean waitingAck;
+    /**
+     * Packets that have been sent, but not yet acknowledged, in the order they were sent.
+     * Guarded by waitingLock.
+     */
+    protected PendingQueue unacknowledged;
     protected final Object waitingLock;
 
+    /**
+     * Round trip time estimate, used to time retransmissions.
+     */
+    protected RttEstimator rtt;
+    protected AtomicLong sentCount;
+    protected AtomicLong sentBytes;
+    protected AtomicLong retransmitCount;
+    protected AtomicLong timeoutCount;
+
+    /**
+     * Time spent with data to send but no room in the send window. blockedSince is when the window last
+     * closed on waiting data, in nanoseconds, or 0 while it's open. Only written by the sending system.
+     */
+    protected volatile long blockedSince;
+    protected AtomicLong blockedTime;
+
+    /**
+     * Number of consecutive duplicate ACKs received. Guarded by waitingLock.
+     */
+    protected int duplicateAcks;
+
+    /**
+     * The ID of the last packet that was sent when a fast retransmit happened, or -1 when not
+     * recovering from a loss. No further fast retransmit is triggered by duplicate ACKs until
+     * this packet is acknowledged. Guarded by waitingLock.
+     */
+    protected int recoveryPoint;
+
+    /**
+     * The ID of the last packet that was sent when the retransmission timer expired, or -1 when not
+     * recovering from a timeout. The congestion window is only reduced once per timeout episode, which
+     * ends when this packet is acknowledged. Guarded by waitingLock.
+     */
+    protected int timeoutPoint;
+
+    /**
+     * The number of packets in the retransmission queue that are presumed lost after a timeout, and wait
+     * to be retransmitted as the congestion window allows. They don't count as in flight. Guarded by waitingLock.
+     */
+    protected int lostCount;
+    protected AtomicLong duplicateAckCount;
+    protected AtomicLong fastRetransmitCount;
+
+    /**
+     * Limits the number of packets in flight to what the network can carry. Guarded by waitingLock.
+     */
+    protected CongestionControl congestionControl;
+
+    /**
+     * The IDs of the SYN and CLOSE packets sent by this Socket, or 0 if not sent yet.
+     */
+    protected volatile int synId;
+    protected volatile int closeId;
+    protected AtomicBoolean closeAcknowledged;
+
+    /**
+     * Identifies the connection, chosen at random by the connecting side and echoed in the remote's SYN,
+     * so that a new connection from the same address and port can be told apart from this one. 0 if unknown.
+     */
+    protected int connectionId;
+
     protected Thread sender;
 
-    // last packet send
-    protected byte[] lastSend;
-    protected int offset;
-    protected int length;
+    /**
+     * The sending system sleeps until woken, or until its next timer is due. senderWoken records a wake up
+     * that came while it was busy, so that it isn't lost. Guarded by senderLock.
+     */
     protected final Object senderLock;
+    protected boolean senderWoken;
     protected AtomicBoolean reversePoke;
 
+    /**
+     * Forward error correction. When enabled, and the remote announced in its SYN that it can use them, a
+     * PARITY packet follows every group of up to {@link Constants#FEC_GROUP_SIZE} consecutive MESSAGE packets,
+     * holding the XOR of their data and checksums, so that the remote can rebuild one lost packet per group
+     * without waiting for a retransmission. The group being built is guarded by waitingLock.
+     */
+    protected volatile boolean fec;
+    protected volatile boolean remoteFec;
+    protected ByteBuffer parity;
+    protected int parityFirstId;
+    protected int parityCount;
+    protected int parityLength;
+    protected int parityLengthXor;
+    protected AtomicLong paritySentCount;
+
+    /**
+     * Pacing. When enabled, MESSAGE packets are spread evenly over the round trip time, instead of being
+     * sent in a burst whenever the window opens. paceTime is the earliest time the next packet may be
+     * sent, in nanoseconds, only used by the sending system.
+     */
+    protected volatile boolean pacing;
+    protected long paceTime;
+
+    /**
+     * Packet buffers, shared by the sending and receiving systems.
+     */
+    protected BufferPool buffers;
+    protected Checksum sendChecksum;
+
+    /**
+     * The checksum algorithms offered in the SYN packet, and the one agreed on with the remote.
+     * CRC64 is used until the SYN packets are exchanged.
+     */
+    protected int checksumMask;
+    protected volatile ChecksumType checksumType;
+    protected volatile boolean checksumNegotiated;
+    protected DatagramPacket outgoing;
+
+    /**
+     * Segment sizing. localSegmentSize is the most data this Socket accepts in one MESSAGE packet, derived
+     * from the MTU of the interface towards the remote, and maxSegmentSize is the smaller of both ends'
+     * values, exchanged in the SYN packets. segmentSize is the amount of data actually sent in each packet,
+     * which is maxSegmentSize unless path MTU probing is enabled, in which case it starts at
+     * {@link Constants#MIN_PACKET_SIZE} and grows as larger PROBE packets are acknowledged.
+     * remoteSegmentSize is the most data the remote may currently put in a packet, as far as this Socket
+     * knows, and sizes the advertised window.
+     */
+    protected int localSegmentSize;
+    protected volatile int maxSegmentSize;
+    protected volatile int segmentSize;
+    protected volatile int remoteSegmentSize;
+    protected volatile boolean segmentNegotiated;
+    protected boolean pathMtuProbing;
+    protected boolean pathMtuProbingConfigured;
+
+    /**
+     * Path MTU probing state. Sizes between probeLow and probeHigh are still to be tried, probeSize is the
+     * size of the probe waiting for an answer, or 0 if there is none. probeHigh is 0 once probing is done.
+     * Guarded by waitingLock.
+     */
+    protected int probeLow;
+    protected int probeHigh;
+    protected int probeSize;
+    protected int probeId;
+    protected int probeAttempts;
+    protected long probeSentTime;
+
+    /**
+     * Early data, the first bytes of the send buffer carried in the SYN packet, so that the remote can
+     * act on them without waiting for the handshake. earlyData is the early data of the SYN packet
+     * being handled, only set while it's handled. earlyDataReceived is set once the remote's SYN
+     * carried early data, which lets a Socket answer before its own SYN is acknowledged.
+     */
+    protected ByteBuffer earlyData;
+    protected volatile boolean earlyDataReceived;
+    protected AtomicLong earlyDataCount;
+
    // receiving
     /**
      * The ID of the last packet that was received and acknowledged.
@@ -53,7 +202,36 @@ public abstract class Socket {
      */
     protected AtomicInteger lastReceivedId;
 
+    /**
+     * Packets received ahead of order, waiting for the packets before them to arrive.
+     */
+    protected ReorderBuffer reorderBuffer;
+
     protected RingBuffer receiveBuffer;
+    protected Checksum receiveChecksum;
+    protected AtomicLong receivedCount;
+    protected AtomicLong receivedBytes;
+
+    /**
+     * Recently received MESSAGE packets, kept once the remote starts sending PARITY packets, so that a lost
+     * packet can be rebuilt from its group's parity and the other packets of the group. Indexed by ID,
+     * modulo the length of the history. Only used by the receiving system.
+     */
+    protected ByteBuffer[] fecHistory;
+    protected int[] fecHistoryIds;
+    protected AtomicLong recoveredCount;
+    protected AtomicLong corruptedCount;
+    protected AtomicLong droppedCount;
+    protected int[] sackBlocks;
+
+    /**
+     * Delayed ACKs. An ACK is sent once delayedAckPackets packets were received in order,
+     * or once delayedAckTimeout milliseconds passed since the first unacknowledged one.
+     */
+    protected volatile int delayedAckPackets;
+    protected volatile long delayedAckTimeout;
+    protected AtomicInteger delayedAcks;
+    protected AtomicLong ackDeadline;
 
     protected long lastReceivedTime;
     protected long lastAckTime;
@@ -75,16 +253,79 @@ public abstract class Socket {
         this.acknowledgedId = new AtomicInteger(0);
         this.remoteWindow = new AtomicInteger(1);
         this.sendBuffer = new RingBuffer(sendBuffer);
-        this.waitingAck = new AtomicBoolean();
+        this.sendBuffer.setDataListener(this::wakeSender);
+        this.unacknowledged = new PendingQueue(64);
         this.waitingLock = new Object();
+        this.rtt = new RttEstimator();
+        this.sentCount = new AtomicLong();
+        this.sentBytes = new AtomicLong();
+        this.retransmitCount = new AtomicLong();
+        this.timeoutCount = new AtomicLong();
+        this.blockedSince = 0;
+        this.blockedTime = new AtomicLong();
+        this.duplicateAcks = 0;
+        this.recoveryPoint = -1;
+        this.timeoutPoint = -1;
+        this.lostCount = 0;
+        this.duplicateAckCount = new AtomicLong();
+        this.fastRetransmitCount = new AtomicLong();
+        this.congestionControl = new RenoCongestionControl();
+        this.synId = 0;
+        this.closeId = 0;
+        this.closeAcknowledged = new AtomicBoolean(false);
+        this.connectionId = 0;
         this.sender = new Thread(this::sender);
         this.sender.setName("[Socket][sender]");
         this.senderLock = new Object();
+        this.senderWoken = false;
         this.reversePoke = new AtomicBoolean(false);
+        this.pacing = false;
+        this.paceTime = 0;
+        this.fec = false;
+        this.remoteFec = false;
+        this.parity = null;
+        this.parityCount = 0;
+        this.paritySentCount = new AtomicLong();
+        this.buffers = new BufferPool(Constants.PACKET_BUFFER_SIZE, Constants.PACKET_POOL_SIZE);
+        this.checksumMask = ChecksumType.supportedMask();
+        this.checksumType = ChecksumType.CRC64;
+        this.checksumNegotiated = false;
+        this.sendChecksum = this.checksumType.newChecksum();
+        this.outgoing = new DatagramPacket(new byte[0], 0, remote, port);
+        this.localSegmentSize = Math.max(Constants.MIN_PACKET_SIZE, Math.min(Constants.PACKET_SIZE,
+                Utils.getMtu(remote) - Utils.getDatagramOverhead(remote) - Constants.HEADER_OVERHEAD - Constants.FOOTER_OVERHEAD));
+        this.maxSegmentSize = this.localSegmentSize;
+        this.segmentSize = this.localSegmentSize;
+        this.remoteSegmentSize = this.localSegmentSize;
+        this.segmentNegotiated = false;
+        this.pathMtuProbing = false;
+        this.pathMtuProbingConfigured = false;
+        this.probeHigh = 0;
+        this.earlyData = null;
+        this.earlyDataReceived = false;
+        this.earlyDataCount = new AtomicLong();
+
+        this.lastReceivedTime = System.currentTimeMillis();
+        this.lastAckTime = this.lastReceivedTime;
 
         this.lastReceivedId = new AtomicInteger();
+        // room for as many packets of the smallest segment size as the receive buffer holds
+        this.reorderBuffer = new ReorderBuffer(receiveBuffer / Constants.MIN_PACKET_SIZE + 2);
         this.receiveBuffer = new RingBuffer(receiveBuffer, 256, receiveBuffer);
         this.receiveBuffer.setLowWaterMarkListener(this::reversePoke);
+        this.receiveChecksum = this.checksumType.newChecksum();
+        this.receivedCount = new AtomicLong();
+        this.receivedBytes = new AtomicLong();
+        this.fecHistory = null;
+        this.fecHistoryIds = null;
+        this.recoveredCount = new AtomicLong();
+        this.corruptedCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+        this.sackBlocks = new int[Constants.MAX_SACK_BLOCKS * 2];
+        this.delayedAckPackets = 1;
+        this.delayedAckTimeout = Constants.DELAYED_ACK_TIMEOUT;
+        this.delayedAcks = new AtomicInteger();
+        this.ackDeadline = new AtomicLong();
         this.receiver = new Thread(this::receiver);
         this.receiver.setName("[Socket][receiver]");
 
@@ -95,6 +336,15 @@ public abstract class Socket {
         return this.state.get() == ESTABLISHED;
     }
 
+    /**
+     * Returns the state of the connection, one of {@link #LISTEN} to {@link #CLOSED}.
+     *
+     * @return the connection state
+     */
+    public int getState() {
+        return this.state.get();
+    }
+
     public boolean isClosed() {
         return this.state.get() == CLOSED ||
                 this.state.get() == CLOSE_SENT ||
@@ -109,6 +359,298 @@ public abstract class Socket {
         return !this.receiveBuffer.isReadOpened();
     }
 
+    public int getUnacknowledgedCount() {
+        synchronized (this.waitingLock) {
+            return this.unacknowledged.size();
+        }
+    }
+
+    /**
+     * Returns the smoothed round trip time to the remote, or 0 if it hasn't been measured yet.
+     *
+     * @return the round trip time in milliseconds
+     */
+    public double getRtt() {
+        return this.rtt.getSmoothedRtt();
+    }
+
+    /**
+     * Returns the current retransmission timeout, which is derived from the measured round trip time.
+     *
+     * @return the retransmission timeout in milliseconds
+     */
+    public long getRto() {
+        return this.rtt.getTimeout();
+    }
+
+    /**
+     * Returns the number of packets that have been sent, not counting retransmissions.
+     *
+     * @return sent packet count
+     */
+    public long getSentCount() {
+        return this.sentCount.get();
+    }
+
+    /**
+     * Returns the number of packets that have been retransmitted.
+     *
+     * @return retransmitted packet count
+     */
+    public long getRetransmitCount() {
+        return this.retransmitCount.get();
+    }
+
+    /**
+     * Returns the number of times the retransmission timer expired.
+     *
+     * @return retransmission timeout count
+     */
+    public long getTimeoutCount() {
+        return this.timeoutCount.get();
+    }
+
+    /**
+     * Returns the number of duplicate ACKs that have been received.
+     *
+     * @return duplicate ACK count
+     */
+    public long getDuplicateAckCount() {
+        return this.duplicateAckCount.get();
+    }
+
+    /**
+     * Returns the number of packets that were retransmitted in response to duplicate ACKs,
+     * rather than because the retransmission timer expired.
+     *
+     * @return fast retransmit count
+     */
+    public long getFastRetransmitCount() {
+        return this.fastRetransmitCount.get();
+    }
+
+    /**
+     * Returns the number of bytes of early data that were sent in this Socket's SYN packet.
+     *
+     * @return early data byte count
+     */
+    public long getEarlyDataCount() {
+        return this.earlyDataCount.get();
+    }
+
+    /**
+     * Returns the number of received packets that were dropped because their checksum didn't match.
+     *
+     * @return corrupted packet count
+     */
+    public long getCorruptedCount() {
+        return this.corruptedCount.get();
+    }
+
+    /**
+     * Returns the number of received packets that were dropped before being handled, because this Socket
+     * couldn't keep up with them. The remote retransmits them, as if the network had lost them.
+     *
+     * @return dropped packet count
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    public int getConnectionId() {
+        return this.connectionId;
+    }
+
+    /**
+     * Returns the time spent with data waiting to be sent while the send window was closed, because
+     * of congestion control or of the remote's receive window.
+     *
+     * @return window blocked time in milliseconds
+     */
+    public long getWindowBlockedTime() {
+        long since = this.blockedSince;
+        long blocked = this.blockedTime.get() + (since != 0 ? System.nanoTime() - since : 0);
+        return TimeUnit.NANOSECONDS.toMillis(blocked);
+    }
+
+    /**
+     * Returns a snapshot of this Socket's statistics. Taking one is cheap, counters are read without
+     * stopping the Socket, so they may be off by the packets handled while it's taken.
+     *
+     * @return the statistics
+     */
+    public SocketStats getStats() {
+        SocketStats stats = new SocketStats();
+        stats.remote = this.remote.getHostAddress() + ":" + this.port;
+        stats.state = this.state.get();
+        stats.connections = 1;
+
+        stats.packetsSent = this.sentCount.get();
+        stats.bytesSent = this.sentBytes.get();
+        stats.packetsReceived = this.receivedCount.get();
+        stats.bytesReceived = this.receivedBytes.get();
+        stats.retransmits = this.retransmitCount.get();
+        stats.fastRetransmits = this.fastRetransmitCount.get();
+        stats.timeouts = this.timeoutCount.get();
+        stats.duplicateAcks = this.duplicateAckCount.get();
+        stats.corrupted = this.corruptedCount.get();
+        stats.dropped = this.droppedCount.get();
+        stats.earlyData = this.earlyDataCount.get();
+        stats.parity = this.paritySentCount.get();
+        stats.recovered = this.recoveredCount.get();
+        stats.windowBlockedTime = this.getWindowBlockedTime();
+
+        stats.rtt = this.rtt.getSmoothedRtt();
+        stats.rto = this.rtt.getTimeout();
+        synchronized (this.waitingLock) {
+            stats.congestionWindow = this.congestionControl.getWindow();
+            stats.sendWindow = Math.min(stats.congestionWindow, this.remoteWindow.get());
+            stats.unacknowledged = this.unacknowledged.size();
+        }
+        stats.segmentSize = this.segmentSize;
+        stats.sendBuffered = this.sendBuffer.available();
+        stats.receiveBuffered = this.receiveBuffer.available();
+        return stats;
+    }
+
+    /**
+     * Restricts the checksum algorithms this Socket offers to the remote. Must be called before the
+     * connection is established. CRC64 is always accepted.
+     *
+     * @param types the acceptable checksum algorithms
+     */
+    public void setChecksumTypes(ChecksumType... types) {
+        if (this.checksumNegotiated || this.synId != 0) throw new IllegalStateException("Checksum already negotiated");
+        int mask = ChecksumType.CRC64.bit;
+        for (ChecksumType type : types) mask |= type.bit;
+        this.checksumMask = mask & ChecksumType.supportedMask();
+    }
+
+    /**
+     * Enables or disables delayed ACKs. With delayed ACKs, in order MESSAGE packets are acknowledged
+     * every {@link Constants#DELAYED_ACK_PACKETS} packets, or after {@link Constants#DELAYED_ACK_TIMEOUT}
+     * milliseconds, instead of one by one. This roughly halves the number of packets the remote has
+     * to handle for bulk transfers, but adds latency to short exchanges. Disabled by default.
+     *
+     * @param enabled whether to delay ACKs
+     */
+    public void setDelayedAck(boolean enabled) {
+        this.setDelayedAck(enabled ? Constants.DELAYED_ACK_PACKETS : 1, Constants.DELAYED_ACK_TIMEOUT);
+    }
+
+    /**
+     * Configures delayed ACKs.
+     *
+     * @param packets the number of in order packets acknowledged by one ACK, 1 to disable delayed ACKs
+     * @param timeout the longest an ACK may be delayed, in milliseconds
+     */
+    public void setDelayedAck(int packets, long timeout) {
+        if (packets < 1 || timeout < 1) throw new IllegalArgumentException("Delayed ACK packets and timeout must be positive");
+        this.delayedAckTimeout = timeout;
+        this.delayedAckPackets = packets;
+        if (packets == 1) this.wakeSender(); // flush anything held back
+    }
+
+    public boolean isDelayedAck() {
+        return this.delayedAckPackets > 1;
+    }
+
+    /**
+     * Enables or disables path MTU probing. Must be called before the connection is established. Probing
+     * only finds the largest packet that crosses the path if oversized packets are dropped rather than
+     * fragmented, so it is enabled by default when the don't fragment flag could be set on the underlying
+     * socket, see {@link Utils#setDontFragment(Object)}. Without probing, packets carry the largest amount
+     * of data that fits in the MTU of the local interfaces at both ends.
+     *
+     * @param enabled whether to probe the path MTU
+     */
+    public void setPathMtuProbing(boolean enabled) {
+        if (this.segmentNegotiated || this.synId != 0) throw new IllegalStateException("Segment size already negotiated");
+        this.pathMtuProbing = enabled;
+        this.pathMtuProbingConfigured = true;
+    }
+
+    public boolean isPathMtuProbing() {
+        return this.pathMtuProbing;
+    }
+
+    /**
+     * Records whether the don't fragment flag is set on the underlying socket, which decides whether the
+     * path MTU is probed, unless {@link #setPathMtuProbing(boolean)} was called.
+     *
+     * @param dontFragment whether oversized packets are dropped rather than fragmented
+     */
+    protected void setDontFragment(boolean dontFragment) {
+        if (!this.pathMtuProbingConfigured) this.pathMtuProbing = dontFragment;
+    }
+
+    /**
+     * Returns the amount of data sent in each MESSAGE packet, which may grow while the path MTU is probed.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * Returns the largest amount of data in one MESSAGE packet that both ends accept.
+     *
+     * @return the maximum segment size in bytes
+     */
+    public int getMaxSegmentSize() {
+        return this.maxSegmentSize;
+    }
+
+    /**
+     * Returns the checksum algorithm used for MESSAGE packets.
+     *
+     * @return the checksum algorithm
+     */
+    public ChecksumType getChecksumType() {
+        return this.checksumType;
+    }
+
+    /**
+     * Sets the congestion control algorithm used by this Socket. Defaults to {@link RenoCongestionControl}.
+     *
+     * @param congestionControl the congestion control algorithm to use
+     */
+    public void setCongestionControl(CongestionControl congestionControl) {
+        synchronized (this.waitingLock) {
+            this.congestionControl = congestionControl;
+        }
+    }
+
+    /**
+     * Returns the congestion window, the number of packets the congestion control algorithm allows in flight.
+     *
+     * @return the congestion window
+     */
+    public int getCongestionWindow() {
+        synchronized (this.waitingLock) {
+            return this.congestionControl.getWindow();
+        }
+    }
+
+    public int getSlowStartThreshold() {
+        synchronized (this.waitingLock) {
+            return this.congestionControl.getSlowStartThreshold();
+        }
+    }
+
+    /**
+     * Returns the number of packets that may be in flight, the smaller of the congestion window and
+     * the window advertised by the remote.
+     *
+     * @return the effective send window
+     */
+    public int getSendWindow() {
+        synchronized (this.waitingLock) {
+            return Math.min(this.congestionControl.getWindow(), this.remoteWindow.get());
+        }
+    }
+
     public int outputBufferSpace() {
         return this.sendBuffer.capacity();
     }
@@ -125,6 +667,16 @@ public abstract class Socket {
         return this.receiveBuffer.getInputStream();
     }
 
+    @Override
+    public void setInputListener(Runnable listener) {
+        this.receiveBuffer.setDataListener(listener);
+    }
+
+    @Override
+    public void setOutputListener(Runnable listener) {
+        this.sendBuffer.setSpaceListener(listener);
+    }
+
     public void close() {
         try {
             this.sendBuffer.getOutputStream().close();
@@ -135,10 +687,59 @@ public abstract class Socket {
 
     public void reversePoke() {
        this.reversePoke.set(true);
-       synchronized (this.senderLock) {
-          this.senderLock.notifyAll();
-       }
-       System.out.println("[Socket][reversePoke] Reverse Poke!");
+       this.wakeSender();
+       if (this.debug <= Constants.FINEST) System.out.println("[Socket][reversePoke] Reverse Poke!");
+    }
+
+    /**
+     * Notifies the sending system that there may be work to do, because data was written to an empty send
+     * buffer, an ACK arrived, or the receive buffer was drained.
+     */
+    protected void wakeSender() {
+        synchronized (this.senderLock) {
+            this.senderWoken = true;
+            this.senderLock.notifyAll();
+        }
+    }
+
+    /**
+     * Enables or disables pacing. A paced Socket spreads its MESSAGE packets evenly over the round trip
+     * time, at {@link Constants#PACING_GAIN} times the rate the send window allows, instead of sending
+     * a window's worth of packets at once. This avoids overflowing shallow queues along the path, at the
+     * cost of a little latency. Disabled by default.
+     *
+     * @param enabled whether to pace packets
+     */
+    public void setPacing(boolean enabled) {
+        this.pacing = enabled;
+    }
+
+    public boolean isPacing() {
+        return this.pacing;
+    }
+
+    /**
+     * Enables or disables forward error correction for the data this Socket sends. Every group of up to
+     * {@link Constants#FEC_GROUP_SIZE} MESSAGE packets is followed by a PARITY packet, from which the
+     * remote rebuilds any single lost packet of the group, one way delay after the loss instead of a
+     * retransmission timeout or round trip later. This costs one packet per group, and segments
+     * {@link Constants#FEC_OVERHEAD} bytes smaller. Meant for latency sensitive streams, such as audio.
+     * Only has an effect if the remote announced that it can use PARITY packets. Disabled by default.
+     *
+     * @param enabled whether to send PARITY packets
+     */
+    @Override
+    public void setForwardErrorCorrection(boolean enabled) {
+        this.fec = enabled;
+        if (!enabled) this.wakeSender(); // sends the parity of the group being built
+    }
+
+    /**
+     * Returns true if this Socket currently sends PARITY packets, that is, if forward error correction is
+     * enabled, and the remote can use them.
+     */
+    public boolean isForwardErrorCorrection() {
+        return this.fec && this.remoteFec;
     }
 
     // sending system
@@ -147,121 +748,176 @@ public abstract class Socket {
     protected abstract DatagramSocket getSocket();
 
     protected int getWindow() {
-        return Math.max(0, this.receiveBuffer.capacity() / Constants.PACKET_SIZE - 2);
+        return Math.max(0, this.receiveBuffer.capacity() / this.remoteSegmentSize - 2);
     }
 
     /**
-     * Sends the given data over the Socket. Blocks until the data is sent successfully.
+     * Sends the given data over the Socket. Does not wait for the data to be acknowledged, so the
+     * caller should check {@link #isWindowOpen()} first.
      *
      * @param data the data to send
      * @param off the offset at which to start in data
      * @param len the length of data to send
      */
-    protected void sendMessage(byte[] data, int off, int len) throws SocketTimeoutException, IOException {
-        if (this.state.get() == CLOSED || this.state.get() == CLOSE_SENT) throw new IllegalStateException("Cannot send message data when connection being closed");
-        try {
-            int id;
-            // send packet
-            ByteArrayOutputStream dest = new ByteArrayOutputStream();
-            CheckedOutputStream check = new CheckedOutputStream(dest, new CRC64());
-            DataOutputStream out = new DataOutputStream(check);
-            out.writeInt(PacketType.MESSAGE.value);
-            out.writeInt(id = messageId.incrementAndGet());
-            out.write(data, off, len);
-            long checksum = check.getChecksum().getValue();
-            //System.out.println("[Socket][sendMessage] Checksum value: " + checksum);
-            out.writeLong(checksum);
-            this.sendPacket(id, dest.toByteArray(), 0, dest.size());
-
-        } catch (SocketTimeoutException e) {
-            throw e;
+    protected void sendMessage(byte[] data, int off, int len) throws IOException {
+        ByteBuffer packet = this.buffers.acquire();
+        packet.position(Constants.HEADER_OVERHEAD);
+        packet.put(data, off, len);
+        this.sendMessage(packet, len);
+    }
 
-        } catch (IOException e) {
-            System.err.println("[Socket][sendMessage] IOException while trying to send message packet");
-            throw e;
-        }
+    /**
+     * Sends a MESSAGE packet whose data was already placed in the given packet buffer, right after
+     * the space for the header. The buffer must come from {@link #buffers}, and is owned by the
+     * retransmission queue afterwards.
+     *
+     * @param packet a packet buffer holding len bytes of data at {@link Constants#HEADER_OVERHEAD}
+     * @param len the length of the data in the packet
+     */
+    protected void sendMessage(ByteBuffer packet, int len) throws IOException {
+        if (this.state.get() == CLOSED || this.state.get() == CLOSE_SENT) throw new IllegalStateException("Cannot send message data when connection being closed");
+        int id = this.messageId.incrementAndGet();
+        PacketCodec.writeHeader(packet, PacketType.MESSAGE, id);
+        packet.position(Constants.HEADER_OVERHEAD + len);
+        PacketCodec.writeChecksum(packet, this.sendChecksum);
+        packet.flip();
+        this.sendPacket(id, packet);
+        this.sentBytes.addAndGet(len);
     }
 
-    protected void sendSyn() throws SocketTimeoutException {
+    /**
+     * Sends a SYN packet. Does not wait for it to be acknowledged. Up to {@link Constants#MAX_EARLY_DATA}
+     * bytes already in the send buffer are sent in the SYN packet as early data. Must not be called
+     * while the sending system is running, as it reads from the send buffer.
+     *
+     * @return the ID of the SYN packet
+     */
+    protected int sendSyn() {
         this.lastReceivedTime = Math.max(this.lastReceivedTime, System.currentTimeMillis());
-        if (this.state.get() >= SYN_SENT) throw new IllegalStateException("SYN packet already sent");
+        if (this.synId != 0) throw new IllegalStateException("SYN packet already sent");
         try {
-            int id;
-            ByteArrayOutputStream dest = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(dest);
-            out.writeInt(PacketType.SYN.value);
-            out.writeInt(id = this.messageId.incrementAndGet());
-            this.sendPacket(id, dest.toByteArray(), 0, dest.size());
-
-        } catch (SocketTimeoutException e) {
-            throw e;
+            int id = this.messageId.incrementAndGet();
+            this.synId = id;
+
+            // offer every acceptable checksum, or answer with the one that was chosen, then the largest segment
+            // accepted, whether segments start small while the path is probed, the window, the connection ID,
+            // and the early data
+            ByteBuffer packet = this.buffers.acquire();
+            PacketCodec.writeHeader(packet, PacketType.SYN, id);
+            packet.putInt(this.checksumNegotiated ? this.checksumType.bit : this.checksumMask);
+            packet.putInt(this.localSegmentSize);
+            packet.putInt((this.pathMtuProbing ? SYN_PATH_MTU_PROBING : 0) | SYN_FEC);
+            packet.putInt(this.getWindow());
+            packet.putInt(this.connectionId);
+
+            int early = Math.min(this.sendBuffer.available(), Constants.MAX_EARLY_DATA);
+            if (early > 0) early = this.sendBuffer.getInputStream().read(packet.array(), packet.arrayOffset() + packet.position() + 4, early);
+            packet.putInt(early);
+            packet.position(packet.position() + early);
+            this.earlyDataCount.addAndGet(early);
+
+            // checksums aren't negotiated yet, the SYN packet always uses CRC64
+            PacketCodec.writeChecksum(packet, ChecksumType.CRC64.newChecksum());
+            packet.flip();
+            this.sendPacket(id, packet);
+            return id;
 
         } catch (IOException e) {
             System.err.println("[Socket][sendSync] IOException while sending SYNC packet");
             e.printStackTrace();
+            return this.synId;
         }
     }
 
+    /**
+     * Sends an ACK packet, or a SACK packet listing the packets in the reorder buffer, if there are any.
+     * At most {@link Constants#MAX_SACK_BLOCKS} ranges of packets are listed.
+     *
+     * @param ackId the ID of the last packet that was received in order
+     */
     protected void sendAck(int ackId) {
         if (this.state.get() == CLOSED) throw new IllegalStateException("Cannot send ACK on closed socket");
-        try {
-            ByteArrayOutputStream dest = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(dest);
-            out.writeInt(PacketType.ACK.value);
-            out.writeInt(ackId);
-            out.writeInt(this.getWindow());
-            this.sendTrivial(dest.toByteArray(), 0, dest.size());
-            this.lastReceivedId.set(ackId);
-            if (this.debug <= Constants.FINEST) System.out.println("[Socket][sendAck] Sent Ack ackId=" + ackId);
+        ByteBuffer packet = this.buffers.acquire();
+        PacketCodec.writeHeader(packet, PacketType.ACK, ackId);
+        packet.putInt(this.getWindow());
+
+        if (!this.reorderBuffer.isEmpty()) {
+            // ranges of IDs in the reorder buffer, as inclusive start and end pairs
+            int countPosition = packet.position();
+            int count = 0;
+            int end = -1;
+            packet.putInt(0);
+            for (int id = ackId + 1; id < ackId + this.reorderBuffer.capacity(); id++) {
+                if (!this.reorderBuffer.contains(id)) continue;
+                if (count > 0 && end + 1 == id) {
+                    packet.putInt(packet.position() - 4, end = id);
+
+                } else if (count < Constants.MAX_SACK_BLOCKS) {
+                    packet.putInt(id);
+                    packet.putInt(end = id);
+                    count++;
 
-        } catch (IOException e) {
-            System.err.println("[Socket][sendAck] IOException while trying to send ACK packet");
-            e.printStackTrace();
+                } else {
+                    break;
+                }
+            }
+
+            if (count > 0) {
+                packet.putInt(0, PacketType.SACK.value);
+                packet.putInt(countPosition, count);
+
+            } else {
+                // delivered in the meantime
+                packet.position(countPosition);
+            }
         }
+
+        packet.flip();
+        this.sendTrivial(packet);
+        this.buffers.release(packet);
+        if (this.debug <= Constants.FINEST) System.out.println("[Socket][sendAck] Sent Ack ackId=" + ackId);
     }
 
-    protected void sendClose() throws SocketTimeoutException {
+    /**
+     * Closes the send buffer and sends a CLOSE packet. Does not wait for it to be acknowledged,
+     * the state changes once the acknowledgement arrives, in {@link #onCloseAcknowledged()}.
+     */
+    protected void sendClose() {
         if (this.state.get() != ESTABLISHED && this.state.get() != CLOSE_RECEIVED) throw new IllegalStateException("Cannot send CLOSE packet when connection is not established");
+        if (this.closeId != 0) return;
         try {
-            int id;
-            ByteArrayOutputStream dest = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(dest);
-            out.writeInt(PacketType.CLOSE.value);
-            out.writeInt(id = this.messageId.incrementAndGet());
+            int id = this.messageId.incrementAndGet();
             this.sendBuffer.getOutputStream().close();
-            this.sendPacket(id, dest.toByteArray(), 0, dest.size());
+            this.closeId = id;
+            this.sendPacket(id, this.encodeTrivial(PacketType.CLOSE, id));
 
             if (this.debug <= Constants.FINE) System.out.println("[Socket][sendClose][debug] Sent CLOSE packet");
 
-            if (this.state.get() == ESTABLISHED) {
-                // if was established, then local initiated close
-                this.state.set(CLOSE_SENT);
-
-            } else if (this.state.get() == CLOSE_RECEIVED) {
-                // received close, now fully closed
-                this.state.set(CLOSED);
-                this.onClosed();
-            }
-
-        }  catch (SocketTimeoutException e) {
-            throw e;
-
-        }catch (IOException e) {
+        } catch (IOException e) {
             System.err.println("[Socket][sendClose] IOException while trying to send CLOSE packet");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Called once the CLOSE packet sent by this Socket is acknowledged.
+     */
+    protected void onCloseAcknowledged() {
+        if (this.state.compareAndSet(ESTABLISHED, CLOSE_SENT)) {
+            // if was established, then local initiated close
+
+        } else if (this.state.compareAndSet(CLOSE_RECEIVED, CLOSED)) {
+            // received close, now fully closed
+            this.onClosed();
+        }
+    }
+
     protected void sendPoke() {
         if (this.state.get() == CLOSED) throw new IllegalStateException("Cannot send POKE on CLOSED socket");
         try {
-            int id;
-            ByteArrayOutputStream dest = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(dest);
-            out.writeInt(PacketType.POKE.value);
-            out.writeInt(id = this.messageId.incrementAndGet());
+            int id = this.messageId.incrementAndGet();
             if (this.debug <= Constants.FINEST) System.out.println("[Socket][sendPoke] Sending POKE id=" + id);
-            this.sendPacket(id, dest.toByteArray(), 0, dest.size());
+            this.sendPacket(id, this.encodeTrivial(PacketType.POKE, id));
             if (this.debug <= Constants.FINEST) System.out.println("[Socket][sendPoke] Sent POKE id=" + id);
 
         } catch (IOException e) {
@@ -271,75 +927,350 @@ public abstract class Socket {
     }
 
     /**
-     * Sends the given packet, blocking until the packet is sent and acknowledged.
+     * Sends the next path MTU probe, if one is due. A PROBE packet is as large as a MESSAGE packet carrying
+     * probeSize bytes of data, and isn't sequenced or retransmitted. The first probe tries maxSegmentSize,
+     * so that a path that carries it is done in one round trip, then sizes are binary searched. A size is
+     * given up on once {@link Constants#MTU_PROBE_ATTEMPTS} probes of it went unanswered for a retransmission
+     * timeout each, and probing stops once the search range is narrower than {@link Constants#MTU_PROBE_PRECISION}.
      *
-     * @param id the ID number of the packet to send
-     * @param packet the data to send in the packet
-     * @param off the offset at which relevant packet data starts
-     * @param len the length of the data to send
-     * @throws IOException if the socket is closed while sending data
+     * @return the number of milliseconds until the current probe times out
      */
-    protected void sendPacket(int id, byte[] packet, int off, int len) throws SocketTimeoutException, IOException {
-        do {
-            if (this.state.get() == CLOSED) throw new IOException("Socket closed while waiting to send");
-            if (this.acknowledgedId.get() + 1 == id) {
-                // if next in line to be sent
-                if (this.waitingAck.compareAndSet(false, true)) {
-                    // send packet
-                    this.lastSend = packet;
-                    this.offset = off;
-                    this.length = len;
-                    this.sendTrivial(packet, off, len);
-
-                    // wait for acknowledgement
-                    synchronized (this.waitingLock) {
-                        if (this.acknowledgedId.get() == id) {
-                            this.waitingAck.set(false);
-                            break;
-
-                        } else {
-                            try {
-                                this.waitingLock.wait(Constants.RESEND_DELAY);
-                                if (this.acknowledgedId.get() == id) {
-                                    this.waitingAck.set(false);
-                                    break;
-                                }
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            if (System.currentTimeMillis() - lastReceivedTime > Constants.TIMEOUT_DELAY) {
-                                this.reportTimeout();
-                                throw new SocketTimeoutException("Socket timed out while trying to send packet");
-                            }
-                            if (this.debug <= Constants.INFO) System.out.println("[Socket][sendPacket][INFO] Packet not acknowledged, sending packet again");
-                        }
+    protected long sendProbe() {
+        synchronized (this.waitingLock) {
+            if (this.probeHigh == 0) return Constants.TIMEOUT_DELAY;
+
+            long now = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(this.rtt.getTimeout());
+            if (this.probeSize != 0) {
+                long due = this.probeSentTime + timeout - now;
+                if (due > 0) return Math.max(1, TimeUnit.NANOSECONDS.toMillis(due));
+
+                if (++this.probeAttempts >= Constants.MTU_PROBE_ATTEMPTS) {
+                    if (this.debug <= Constants.FINE) System.out.println("[Socket][sendProbe] No answer to probes of " + this.probeSize + " bytes");
+                    this.probeHigh = this.probeSize - 1;
+                    this.probeSize = 0;
+                }
+            }
 
-                    }
+            if (this.probeSize == 0) {
+                if (this.probeHigh - this.probeLow < Constants.MTU_PROBE_PRECISION) {
+                    this.probeHigh = 0;
+                    if (this.debug <= Constants.FINE) System.out.println("[Socket][sendProbe] Path MTU probing done, segment size is " + this.segmentSize);
+                    return Constants.TIMEOUT_DELAY;
                 }
 
-            } else {
-                System.err.println("[Socket][sendPacket] Packet not being sent in order. id=" + id + " lastAcknowledged=" + acknowledgedId.get());
-                try {
-                    synchronized (this.waitingLock) {
-                        this.waitingLock.wait();
-                    }
+                this.probeSize = this.probeHigh == this.maxSegmentSize ? this.probeHigh : (this.probeLow + this.probeHigh + 1) / 2;
+                this.probeAttempts = 0;
+            }
+
+            ByteBuffer packet = this.buffers.acquire();
+            PacketCodec.writeHeader(packet, PacketType.PROBE, ++this.probeId);
+            packet.putInt(this.probeSize);
+            // the rest of the buffer is padding, whatever it holds
+            packet.position(Constants.HEADER_OVERHEAD + this.probeSize + Constants.FOOTER_OVERHEAD);
+            packet.flip();
+            this.probeSentTime = now;
+            this.sendTrivial(packet);
+            this.buffers.release(packet);
+
+            if (this.debug <= Constants.FINER) System.out.println("[Socket][sendProbe] Sent probe of " + this.probeSize + " bytes");
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout));
+        }
+    }
+
+    /**
+     * Answers a PROBE packet with a PROBE_ACK holding the same ID and the amount of data the probe could
+     * have carried, so that the remote can tell which probe got through. The remote may send packets of
+     * that size from now on, so the advertised window is sized for them.
+     */
+    protected void onProbe(int id, ByteBuffer pack) {
+        if (this.state.get() == CLOSED) return;
+        int size = pack.limit() - Constants.HEADER_OVERHEAD - Constants.FOOTER_OVERHEAD;
+        if (size <= this.maxSegmentSize && size > this.remoteSegmentSize) this.remoteSegmentSize = size;
+
+        ByteBuffer packet = this.buffers.acquire();
+        PacketCodec.writeHeader(packet, PacketType.PROBE_ACK, id);
+        packet.putInt(size);
+        packet.flip();
+        this.sendTrivial(packet);
+        this.buffers.release(packet);
+    }
+
+    /**
+     * Processes a PROBE_ACK packet. If it answers the current probe, packets of that size cross the path,
+     * and are used from now on.
+     */
+    protected void onProbeAck(int id, int size) {
+        synchronized (this.waitingLock) {
+            if (this.probeSize == 0 || id != this.probeId || size != this.probeSize) return;
+
+            this.probeLow = size;
+            this.probeSize = 0;
+            this.segmentSize = size;
+            if (this.debug <= Constants.FINER) System.out.println("[Socket][onProbeAck] Probe of " + size + " bytes acknowledged");
+        }
+        this.wakeSender();
+    }
+
+    /**
+     * Returns a packet buffer holding only a header.
+     */
+    private ByteBuffer encodeTrivial(PacketType type, int id) {
+        ByteBuffer packet = this.buffers.acquire();
+        PacketCodec.writeHeader(packet, type, id);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Adds a sequenced packet that was just sent to the parity group being built. Only MESSAGE packets
+     * with consecutive IDs are grouped, any other packet ends the group. Must hold waitingLock.
+     */
+    private void addParity(int id, ByteBuffer packet) {
+        // a packet read before FEC was enabled is too long to leave room for the parity's own fields
+        boolean message = PacketCodec.readType(packet) == PacketType.MESSAGE
+                && packet.limit() + Constants.FEC_OVERHEAD <= Constants.HEADER_OVERHEAD + this.segmentSize + Constants.FOOTER_OVERHEAD;
+        if (this.parityCount > 0 && (!message || !this.fec || id != this.parityFirstId + this.parityCount)) this.sendParity();
+        if (!message || !this.fec || !this.remoteFec) return;
+
+        if (this.parity == null) this.parity = ByteBuffer.allocate(Constants.PACKET_BUFFER_SIZE);
+        if (this.parityCount == 0) this.parityFirstId = id;
+
+        // the data and checksum of the packet, the header is known from the ID
+        int length = packet.limit() - Constants.HEADER_OVERHEAD;
+        PacketCodec.xor(this.parity, Constants.HEADER_OVERHEAD + Constants.FEC_OVERHEAD, packet, Constants.HEADER_OVERHEAD, length);
+        this.parityLength = Math.max(this.parityLength, length);
+        this.parityLengthXor ^= length;
+
+        if (++this.parityCount >= Constants.FEC_GROUP_SIZE) this.sendParity();
+    }
 
+    /**
+     * Sends the PARITY packet of the group being built, if there is one, and starts a new group. A PARITY
+     * packet holds the ID of the first packet of its group, the number of packets in the group and the
+     * XOR of their lengths, then the XOR of their data and checksums. It isn't sequenced or retransmitted.
+     * Must hold waitingLock.
+     */
+    private void sendParity() {
+        if (this.parityCount == 0) return;
+
+        ByteBuffer packet = this.parity;
+        PacketCodec.writeHeader(packet, PacketType.PARITY, this.parityFirstId);
+        packet.put((byte) this.parityCount);
+        packet.put((byte) 0);
+        packet.putShort((short) this.parityLengthXor);
+        packet.limit(Constants.HEADER_OVERHEAD + Constants.FEC_OVERHEAD + this.parityLength);
+        packet.position(0);
+        this.sendTrivial(packet);
+        this.paritySentCount.incrementAndGet();
+
+        // the next group is XORed into zeroes
+        java.util.Arrays.fill(packet.array(), packet.arrayOffset(), packet.arrayOffset() + packet.limit(), (byte) 0);
+        this.parityCount = 0;
+        this.parityLength = 0;
+        this.parityLengthXor = 0;
+    }
+
+    /**
+     * Sends the PARITY packet of the group being built, so that the last packets of a burst are protected
+     * without waiting for the group to fill up.
+     */
+    protected void flushParity() {
+        synchronized (this.waitingLock) {
+            this.sendParity();
+        }
+    }
+
+    /**
+     * Sends the given packet and places it in the retransmission queue. Does not wait for the packet
+     * to be acknowledged. Packets are removed from the retransmission queue, and their buffers returned
+     * to {@link #buffers}, when a cumulative ACK covering them is received.
+     *
+     * @param id the ID number of the packet to send
+     * @param packet the packet to send, from position 0 to its limit
+     * @throws IOException if the socket is closed while sending data
+     */
+    protected void sendPacket(int id, ByteBuffer packet) throws IOException {
+        if (this.state.get() == CLOSED) throw new IOException("Socket closed while waiting to send");
+        synchronized (this.waitingLock) {
+            // queue before sending, so that an early ACK can't miss the packet,
+            // and send while holding the lock, so that the ACK can't release the buffer while it's sent
+            this.unacknowledged.add(id, packet).sentTime = System.nanoTime();
+            this.sendTrivial(packet);
+            if (this.parityCount > 0 || (this.fec && this.remoteFec)) this.addParity(id, packet);
+        }
+        this.sentCount.incrementAndGet();
+    }
+
+    /**
+     * Blocks until the packet with the given ID, and every packet before it, is acknowledged.
+     * Unacknowledged packets are retransmitted while waiting.
+     *
+     * @param id the ID of the packet to wait for
+     * @throws SocketTimeoutException if the remote stops responding
+     * @throws IOException if the socket is closed while waiting
+     */
+    protected void awaitAcknowledged(int id) throws SocketTimeoutException, IOException {
+        synchronized (this.waitingLock) {
+            while (this.acknowledgedId.get() < id) {
+                if (this.state.get() == CLOSED) throw new IOException("Socket closed while waiting for acknowledgement");
+                long wait = this.retransmit();
+                try {
+                    this.waitingLock.wait(wait);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                if (System.currentTimeMillis() - lastReceivedTime > Constants.TIMEOUT_DELAY) {
+                    this.reportTimeout();
+                    throw new SocketTimeoutException("Socket timed out while waiting for acknowledgement");
+                }
+            }
+        }
+
+        if (this.debug <= Constants.DEBUG) System.out.println("[Socket][awaitAcknowledged][DEBUG] Packet id=" + id + " acknowledged");
+    }
+
+    /**
+     * Returns true if another MESSAGE packet may be sent, that is, if fewer packets are in flight than the
+     * congestion window allows, and fewer are waiting to be acknowledged than the remote's window allows.
+     * Packets presumed lost after a timeout don't count as in flight.
+     *
+     * @return whether the send window is open
+     */
+    protected boolean isWindowOpen() {
+        synchronized (this.waitingLock) {
+            int waiting = this.unacknowledged.size();
+            return waiting - this.lostCount < this.congestionControl.getWindow() && waiting < this.remoteWindow.get();
+        }
+    }
+
+    /**
+     * Accounts for the time during which the send window is closed while there is data to send.
+     *
+     * @param blocked whether the send window is currently closed on waiting data
+     */
+    protected void trackBlocked(boolean blocked) {
+        long since = this.blockedSince;
+        if (blocked && since == 0) {
+            this.blockedSince = System.nanoTime();
+
+        } else if (!blocked && since != 0) {
+            this.blockedTime.addAndGet(System.nanoTime() - since);
+            this.blockedSince = 0;
+        }
+    }
+
+    /**
+     * Accounts for one paced MESSAGE packet. Packets are spaced by the smoothed RTT divided by the send
+     * window, so a window is sent over one round trip. Time spent without sending can be caught up on,
+     * but only for {@link Constants#PACING_QUANTUM} milliseconds, so catching up is a short burst.
+     * Until the RTT is measured, packets aren't paced.
+     *
+     * @return 0 if the packet may be sent now, otherwise the number of nanoseconds it has to wait
+     */
+    protected long pace() {
+        long now = System.nanoTime();
+        double rtt = this.rtt.getSmoothedRtt();
+        int window = this.getSendWindow();
+        if (rtt <= 0 || window <= 0) return 0;
+
+        long earliest = now - TimeUnit.MILLISECONDS.toNanos(Constants.PACING_QUANTUM);
+        if (this.paceTime < earliest) this.paceTime = earliest;
+        if (this.paceTime > now) return this.paceTime - now;
+
+        this.paceTime += (long) (rtt * 1e6 / (window * Constants.PACING_GAIN));
+        return 0;
+    }
+
+    /**
+     * Runs the retransmission timer, which is measured from the last transmission of the earliest packet in
+     * flight. Packets that the remote has selectively acknowledged, or that are presumed lost, aren't in flight.
+     *
+     * When the timer expires, only that packet is retransmitted. The other packets that have been in flight
+     * as long are presumed lost, and retransmitted by {@link #retransmitLost()} as the congestion window allows,
+     * instead of all at once. The first expiry of a timeout episode reduces the congestion window and backs off
+     * the timeout, later ones only back it off if the same packet times out again.
+     *
+     * @return the number of milliseconds until the timer expires, or {@link Constants#TIMEOUT_DELAY}
+     * if no packet is in flight
+     */
+    protected long retransmit() {
+        synchronized (this.waitingLock) {
+            PendingPacket earliest = null;
+            for (int i = 0; i < this.unacknowledged.size(); i++) {
+                PendingPacket pending = this.unacknowledged.get(i);
+                if (!pending.selectivelyAcknowledged && !pending.lost) {
+                    earliest = pending;
+                    break;
+                }
             }
+            if (earliest == null) return Constants.TIMEOUT_DELAY;
+
+            long now = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(this.rtt.getTimeout());
+            long due = earliest.sentTime + timeout - now;
+            if (due > 0) return Math.max(1, TimeUnit.NANOSECONDS.toMillis(due));
+
+            this.timeoutCount.incrementAndGet();
+            boolean episode = this.timeoutPoint < 0;
+            if (episode) {
+                this.timeoutPoint = this.messageId.get();
+                this.congestionControl.onTimeout();
+            }
+            // a packet that was already retransmitted timing out again backs off further, the others don't
+            if (episode || earliest.transmissions > 1) this.rtt.backoff();
+
+            for (int i = 0; i < this.unacknowledged.size(); i++) {
+                PendingPacket pending = this.unacknowledged.get(i);
+                if (pending == earliest || pending.selectivelyAcknowledged || pending.lost) continue;
+                if (pending.sentTime + timeout - now > 0) break;
+                pending.lost = true;
+                this.lostCount++;
+            }
+
+            earliest.sentTime = now;
+            earliest.transmissions++;
+            this.retransmitCount.incrementAndGet();
+            this.sendTrivial(earliest.packet);
 
-        } while (true);
+            return Math.max(1, this.rtt.getTimeout());
+        }
+    }
 
-        if (this.debug <= Constants.DEBUG) System.out.println("[Socket][sendPacket][DEBUG] Packet id=" + id + " sent and acknowledged");
+    /**
+     * Retransmits the packets presumed lost after a timeout, oldest first, while the congestion window allows.
+     */
+    protected void retransmitLost() {
+        synchronized (this.waitingLock) {
+            if (this.lostCount == 0) return;
+
+            int window = this.congestionControl.getWindow();
+            for (int i = 0; i < this.unacknowledged.size(); i++) {
+                if (this.lostCount == 0 || this.unacknowledged.size() - this.lostCount >= window) break;
+                PendingPacket pending = this.unacknowledged.get(i);
+                if (!pending.lost) continue;
+
+                pending.lost = false;
+                this.lostCount--;
+                pending.sentTime = System.nanoTime();
+                pending.transmissions++;
+                this.retransmitCount.incrementAndGet();
+                this.sendTrivial(pending.packet);
+            }
+        }
     }
 
-    protected void sendTrivial(byte[] packet, int off, int len) {
+    /**
+     * Sends the given packet once, from position 0 to its limit. The packet's position is not changed.
+     *
+     * @param packet the packet to send
+     */
+    protected void sendTrivial(ByteBuffer packet) {
         synchronized (this.getSocketLock()) {
-            DatagramPacket p = new DatagramPacket(packet, off, len, this.remote, this.port);
+            this.outgoing.setData(packet.array(), packet.arrayOffset(), packet.limit());
 
             try {
-                this.getSocket().send(p);
+                this.getSocket().send(this.outgoing);
 
             } catch (BindException e) {
                 System.err.println("[Socket][sendTrivial] BindException while trying to send packet. Remote address: " + this.remote + ":" + this.port);
@@ -353,158 +1284,466 @@ public abstract class Socket {
     }
 
     protected void sender() {
-        byte[] trx = new byte[Constants.PACKET_SIZE];
-        lastAckTime = System.currentTimeMillis();
-
-        InputStream src = this.sendBuffer.getInputStream();
-        while (this.state.get() != CLOSED && this.state.get() != CLOSE_RECEIVED && (this.sendBuffer.available() > 0 || this.sendBuffer.isWriteOpened())) {
-           if (this.reversePoke.get()) {
-              this.sendAck(this.lastReceivedId.get());
-           }
-
-           // if remote can accept, send data
-            try {
-                if (this.remoteWindow.get() > 0 && src.available() > 0) {
-                    try {
-                        int amnt = src.read(trx, 0, trx.length); // blocks until at least one byte read
-                        if (amnt == -1) break;
-                        //System.out.println("[Socket][sender] Sending " + amnt + " bytes");
-                        this.sendMessage(trx, 0, amnt); // blocks until data sent or socket closed
-                        if (this.debug <= Constants.LOG) System.out.println("[Socket][sender][debug] Sent " + amnt + " bytes of message data");
-
-                    } catch (IOException e) {
-                        System.err.println("[Socket][sender] IOException while trying to send data");
-                        e.printStackTrace();
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("[Socket][sender] IOException while checking for available data to send");
-                e.printStackTrace();
-            }
+        this.lastAckTime = System.currentTimeMillis();
 
-            if (System.currentTimeMillis() - this.lastAckTime > Constants.TIMEOUT_DELAY / 2) {
-                this.sendPoke();
-            }
+        while (!this.isSenderDone()) {
+            long wait = this.pump();
 
             synchronized (this.senderLock) {
                try {
-                  this.senderLock.wait(100);
+                  if (!this.senderWoken) this.senderLock.wait(Math.max(1, wait));
                } catch (InterruptedException e) {
                   e.printStackTrace();
                }
+               this.senderWoken = false;
             }
         }
 
-        if ((this.state.get() == ESTABLISHED && !this.sendBuffer.isWriteOpened()) || this.state.get() == CLOSE_RECEIVED) {
+        //System.out.println("[Socket][sender] Sender thread terminating");
+    }
+
+    /**
+     * Returns true once the sending system has nothing left to do, either because the socket is closed,
+     * or because the CLOSE packet it sent was acknowledged.
+     *
+     * @return whether the sending system is done
+     */
+    protected boolean isSenderDone() {
+        return this.state.get() == CLOSED || this.closeAcknowledged.get();
+    }
+
+    /**
+     * Does one round of sending work, without blocking. Sends a pending window update, retransmits
+     * packets that timed out, sends as much buffered data as the send window allows, sends a POKE if
+     * the remote has been quiet, and sends a CLOSE once the send buffer is closed and drained.
+     *
+     * Pump needs to be called again once one of its timers is due, or when something it waits on happens:
+     * data written to an empty send buffer, the send buffer being closed, or a packet from the remote.
+     * Each of those calls {@link #wakeSender()}.
+     *
+     * @return the number of milliseconds until pump should be called again, if nothing else happens first
+     */
+    protected long pump() {
+        if (this.state.get() == CLOSED) return Constants.TIMEOUT_DELAY;
+
+        long now = System.currentTimeMillis();
+        long ackDeadline = this.ackDeadline.get();
+        if (this.reversePoke.compareAndSet(true, false) || (ackDeadline != 0 && now >= ackDeadline)) {
+            this.flushAck();
+            ackDeadline = 0;
+        }
+
+        long wait = this.retransmit();
+        this.retransmitLost();
+        if (ackDeadline != 0) wait = Math.min(wait, Math.max(1, ackDeadline - now));
+        int state = this.state.get();
+
+        // send data while remote can accept it, only once the remote's SYN decided the checksum, and before the
+        // handshake completes only to answer early data
+        if (state == ESTABLISHED || (state == SYN_RECEIVED && this.synId != 0 && this.earlyDataReceived)) {
+            wait = Math.min(wait, this.sendProbe());
+
+            InputStream src = this.sendBuffer.getInputStream();
+            boolean blocked = false;
             try {
-                this.sendClose();
+                while (this.closeId == 0 && src.available() > 0) {
+                    if (!this.isWindowOpen()) {
+                        blocked = true;
+                        break;
+                    }
+                    if (this.pacing) {
+                        long delay = this.pace();
+                        if (delay > 0) {
+                            wait = Math.min(wait, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999999)));
+                            break;
+                        }
+                    }
+
+                    // read straight into the packet, after the space for the header
+                    ByteBuffer packet = this.buffers.acquire();
+                    int size = this.fec && this.remoteFec ? this.segmentSize - Constants.FEC_OVERHEAD : this.segmentSize;
+                    int amnt = src.read(packet.array(), packet.arrayOffset() + Constants.HEADER_OVERHEAD, size); // data is available, so doesn't block
+                    if (amnt <= 0) {
+                        this.buffers.release(packet);
+                        break;
+                    }
+                    //System.out.println("[Socket][sender] Sending " + amnt + " bytes");
+                    this.sendMessage(packet, amnt); // returns once sent, without waiting for ACK
+                }
 
-            } catch (SocketTimeoutException e) {
-                System.err.println("[Socket][sender] Did not receive ACK to CLOSE packet");
+            } catch (IOException e) {
+                System.err.println("[Socket][sender] IOException while trying to send data");
                 e.printStackTrace();
             }
+            this.trackBlocked(blocked);
+            // a group is only left open while more data is on the way
+            if (!blocked && this.sendBuffer.available() == 0) this.flushParity();
+
+            if (state == ESTABLISHED && this.getUnacknowledgedCount() == 0) {
+                long idle = System.currentTimeMillis() - this.lastAckTime;
+                if (idle > Constants.TIMEOUT_DELAY / 2) this.sendPoke();
+                else wait = Math.min(wait, Constants.TIMEOUT_DELAY / 2 - idle + 1);
+            }
         }
 
-        //System.out.println("[Socket][sender] Sender thread terminating");
+        if ((state == ESTABLISHED && !this.sendBuffer.isWriteOpened() && this.sendBuffer.available() == 0) || state == CLOSE_RECEIVED) {
+            this.sendClose();
+        }
+
+        long quiet = System.currentTimeMillis() - this.lastReceivedTime;
+        if (quiet > Constants.TIMEOUT_DELAY) {
+            this.reportTimeout();
+        }
+
+        return Math.min(wait, Math.max(1, Constants.TIMEOUT_DELAY - quiet + 1));
     }
 
     // receiving system
-    protected void onMessage(int id, byte[] data, int off, int len) {
-        if (this.enforceOrdering(id)) {
-            try {
-                ByteArrayInputStream in = new ByteArrayInputStream(data, off + len, Constants.FOOTER_OVERHEAD);
-                DataInputStream read = new DataInputStream(in);
-                long expected = read.readLong();
+    /**
+     * Delivers the data of a MESSAGE packet to the receive buffer. Called in packet order, once every
+     * packet before it has been delivered.
+     */
+    protected void onMessage(int id, ByteBuffer packet) {
+        try {
+            int len = packet.limit() - Constants.HEADER_OVERHEAD - Constants.FOOTER_OVERHEAD;
 
-                Checksum check = new CRC64();
-                check.update(data, 0, len + Constants.HEADER_OVERHEAD);
-                long calculated = check.getValue();
+            this.receiveBuffer.getOutputStream().write(packet.array(), packet.arrayOffset() + Constants.HEADER_OVERHEAD, len);
+            this.receivedBytes.addAndGet(len);
 
-                if (calculated != expected) {
-                    System.err.println("[Socket][onMessage] Checksum mismatch! Calculated = " + calculated + " Received = " + expected);
-                }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                //System.out.write(data, off, len);
+    protected abstract void onSyn(InetAddress remote, int port, int id);
 
-                if (this.debug <= Constants.LOG) System.out.println("[Socket][onMessage][LOG] Received " + len + " bytes of message data");
-                this.receiveBuffer.getOutputStream().write(data, off, len);
-                if (this.debug <= Constants.LOG) System.out.println("[Socket][onMessage][LOG] Wrote " + len + " bytes to receive buffer");
+    /**
+     * Chooses the checksum algorithm, from the algorithms offered in a received SYN packet. Packets from
+     * remotes that don't offer any are checksummed with CRC64.
+     *
+     * @param offered the bit mask of algorithms offered by the remote
+     */
+    protected void negotiateChecksum(int offered) {
+        ChecksumType type = ChecksumType.negotiate(offered & this.checksumMask);
+        this.sendChecksum = type.newChecksum();
+        this.receiveChecksum = type.newChecksum();
+        this.checksumType = type;
+        this.checksumNegotiated = true;
+        if (this.debug <= Constants.FINE) System.out.println("[Socket][negotiateChecksum] Using " + type + " checksums");
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Chooses the maximum segment size, from the one announced in a received SYN packet, and starts path
+     * MTU probing if it's enabled. Remotes that don't announce one accept {@link Constants#PACKET_SIZE}
+     * bytes, but can't answer PROBE packets, so the path isn't probed.
+     *
+     * @param announced the maximum segment size accepted by the remote, or 0 if it didn't announce one
+     * @param remoteProbing whether the remote probes the path MTU, and so starts with small segments
+     */
+    protected void negotiateSegmentSize(int announced, boolean remoteProbing) {
+        int size = Math.max(Constants.MIN_PACKET_SIZE, Math.min(this.localSegmentSize, announced > 0 ? announced : Constants.PACKET_SIZE));
+        synchronized (this.waitingLock) {
+            this.maxSegmentSize = size;
+            this.remoteSegmentSize = remoteProbing ? Constants.MIN_PACKET_SIZE : size;
+            if (this.pathMtuProbing && announced > 0 && size > Constants.MIN_PACKET_SIZE) {
+                this.segmentSize = Constants.MIN_PACKET_SIZE;
+                this.probeLow = Constants.MIN_PACKET_SIZE;
+                this.probeHigh = size;
+                this.probeSize = 0;
 
-        } else {
-            System.err.println("[Socket][onMessage] MESSAGE packet received out of order");
+            } else {
+                this.segmentSize = size;
+            }
+            this.segmentNegotiated = true;
         }
+        if (this.debug <= Constants.FINE) System.out.println("[Socket][negotiateSegmentSize] Maximum segment size is " + size + (this.probeHigh > 0 ? ", probing path MTU" : ""));
     }
 
-    protected abstract void onSyn(InetAddress remote, int port, int id);
+    /**
+     * Processes an ACK or SACK packet. Every packet up to and including ackId is removed from the
+     * retransmission queue. Packets inside the selectively acknowledged ranges are marked, so that
+     * they are not retransmitted, but stay in the queue until they are cumulatively acknowledged.
+     *
+     * @param ackId the ID of the last packet the remote received in order
+     * @param window the number of packets after ackId the remote can accept
+     * @param sack pairs of inclusive start and end IDs of packets received after ackId
+     * @param sackLength the number of valid entries in sack, may be 0
+     */
+    protected void onAck(int ackId, int window, int[] sack, int sackLength) {
+        this.lastAckTime = System.currentTimeMillis();
+        synchronized (this.waitingLock) {
+            if (ackId >= this.acknowledgedId.get()) {
+                // cumulative ACK, everything up to and including ackId was received
+                boolean duplicate = ackId == this.acknowledgedId.get() && !this.unacknowledged.isEmpty() &&
+                        (sackLength > 0 || window == this.remoteWindow.get());
+                this.acknowledgedId.set(ackId);
+                this.remoteWindow.set(window);
+
+                long now = System.nanoTime();
+                int inFlight = this.unacknowledged.size();
+                int acknowledged = 0;
+
+                // packets are queued in ID order, so the acknowledged ones are at the head
+                long sampleTime = 0;
+                while (!this.unacknowledged.isEmpty() && this.unacknowledged.peek().id <= ackId) {
+                    PendingPacket pending = this.unacknowledged.peek();
+                    // Karn's algorithm, only packets that were sent once give unambiguous samples
+                    if (pending.transmissions == 1) sampleTime = pending.sentTime;
+                    if (pending.lost) this.lostCount--;
+                    this.buffers.release(pending.packet);
+                    this.unacknowledged.removeFirst();
+                    acknowledged++;
+                }
 
-    protected void onAck(int ackId, int window) {
-        if (this.acknowledgedId.compareAndSet(ackId - 1, ackId)) {
-            // if acknowledged in order
-            this.lastAckTime = System.currentTimeMillis();
-            this.remoteWindow.set(window);
-            synchronized (this.waitingLock) {
-               this.waitingLock.notifyAll();
-            }
-            synchronized (this.senderLock) {
-               this.senderLock.notifyAll();
+                for (int j = 0; j < this.unacknowledged.size() && sackLength > 0; j++) {
+                    PendingPacket pending = this.unacknowledged.get(j);
+                    for (int i = 0; i + 1 < sackLength; i += 2) {
+                        if (pending.id >= sack[i] && pending.id <= sack[i + 1]) {
+                            pending.selectivelyAcknowledged = true;
+                            if (pending.lost) {
+                                pending.lost = false;
+                                this.lostCount--;
+                            }
+                            break;
+                        }
+                    }
+                }
+
+                if (sampleTime != 0) this.rtt.sample((now - sampleTime) / 1e6);
+                if (this.timeoutPoint >= 0 && ackId >= this.timeoutPoint) this.timeoutPoint = -1;
+
+                // only grow the congestion window while it is what limits sending, and not while recovering
+                if (acknowledged > 0 && this.recoveryPoint < 0 && inFlight >= this.congestionControl.getWindow()) {
+                    this.congestionControl.onAck(acknowledged, this.rtt.getSmoothedRtt());
+                }
+
+                if (duplicate) {
+                    this.duplicateAckCount.incrementAndGet();
+                    if (++this.duplicateAcks == Constants.DUPLICATE_ACK_THRESHOLD && this.recoveryPoint < 0) {
+                        // enter recovery, until everything sent so far is acknowledged
+                        this.recoveryPoint = this.messageId.get();
+                        this.congestionControl.onLoss();
+                        this.fastRetransmit();
+                    }
+
+                } else {
+                    this.duplicateAcks = 0;
+                    if (this.recoveryPoint >= 0) {
+                        if (ackId >= this.recoveryPoint) {
+                            this.recoveryPoint = -1;
+
+                        } else {
+                            // partial ACK, the next hole was lost as well
+                            this.fastRetransmit();
+                        }
+                    }
+                }
+
+                this.waitingLock.notifyAll();
+
+            } else {
+                // stale ACK, reordered by the network
+                if (this.debug <= Constants.FINEST) System.out.println("[Socket][onAck] Ignoring stale ACK ackId=" + ackId + " acknowledged=" + this.acknowledgedId.get());
+                return;
             }
+        }
 
-        } else if (this.acknowledgedId.get() == ackId) {
-           this.remoteWindow.set(window);
-           synchronized (this.senderLock) {
-              this.senderLock.notifyAll();
-           }
+        if (this.synId != 0 && ackId >= this.synId) {
+            this.state.compareAndSet(SYN_RECEIVED, ESTABLISHED);
+        }
 
-        } else {
-            // if not acknowledged in order
-            System.out.println("[Socket][onAck] ACK received out of order, resending last packet");
-            this.sendTrivial(lastSend, offset, length);
+        if (this.closeId != 0 && ackId >= this.closeId && this.closeAcknowledged.compareAndSet(false, true)) {
+            this.onCloseAcknowledged();
+        }
+
+        this.wakeSender();
+    }
+
+    /**
+     * Immediately retransmits the first unacknowledged packet that the remote hasn't selectively
+     * acknowledged, without waiting for the retransmission timeout. A packet is only fast retransmitted
+     * once. If it is lost again, it is left to the retransmission timer, so that a burst of duplicate
+     * ACKs can't cause a retransmission storm. Must be called while holding waitingLock.
+     */
+    protected void fastRetransmit() {
+        for (int i = 0; i < this.unacknowledged.size(); i++) {
+            PendingPacket pending = this.unacknowledged.get(i);
+            if (pending.selectivelyAcknowledged) continue;
+            if (pending.transmissions > 1) return;
+
+            if (pending.lost) {
+                pending.lost = false;
+                this.lostCount--;
+            }
+            pending.sentTime = System.nanoTime();
+            pending.transmissions++;
+            this.retransmitCount.incrementAndGet();
+            this.fastRetransmitCount.incrementAndGet();
+            this.sendTrivial(pending.packet);
+            return;
         }
     }
 
     protected void onClose(int id) {
-        if (enforceOrdering(id)) {
-            if (this.debug <= Constants.FINE) System.out.println("[Socket][onClose][debug] Received CLOSE packet");
+        if (this.debug <= Constants.FINE) System.out.println("[Socket][onClose][debug] Received CLOSE packet");
 
-            if (this.state.get() == ESTABLISHED) {
-                this.state.set(CLOSE_RECEIVED);
+        if (this.state.get() == ESTABLISHED) {
+            this.state.set(CLOSE_RECEIVED);
 
-            } else if (this.state.compareAndSet(CLOSE_SENT, CLOSED)) {
-                this.state.set(CLOSED);
-                this.onClosed();
+        } else if (this.state.compareAndSet(CLOSE_SENT, CLOSED)) {
+            this.state.set(CLOSED);
+            this.onClosed();
 
-            }
+        }
 
-            try {
-                this.receiveBuffer.getOutputStream().close();
-                this.sendBuffer.getOutputStream().close();
-            } catch (IOException e) {
-                System.err.println("[Socket][onClose] IOException while trying to close send buffer in response to received CLOSE packet");
-                e.printStackTrace();
-            }
+        try {
+            this.receiveBuffer.getOutputStream().close();
+            this.sendBuffer.getOutputStream().close();
+        } catch (IOException e) {
+            System.err.println("[Socket][onClose] IOException while trying to close send buffer in response to received CLOSE packet");
+            e.printStackTrace();
         }
     }
 
     protected void onPoke(int id) {
-        this.enforceOrdering(id);
+        // POKE packets only exist to be acknowledged
+    }
+
+    /**
+     * Handles a received MESSAGE, CLOSE or POKE packet. Packets received in order are delivered
+     * immediately, followed by any packets in the reorder buffer that were waiting on them. Packets
+     * received ahead of order are kept in the reorder buffer until the gap before them fills.
+     * An ACK, or a SACK if the reorder buffer isn't empty, is sent in either case, although with delayed
+     * ACKs enabled, the ACK for a MESSAGE received in order with no gap may be held back and combined with
+     * the following ones. The received packet is copied if it needs to be kept, so the caller may reuse it afterwards.
+     *
+     * @param type the type of the received packet
+     * @param id the id of the received packet
+     * @param pack the received packet
+     */
+    protected void onSequenced(PacketType type, int id, ByteBuffer pack) {
+        int expected = this.lastReceivedId.get() + 1;
+        boolean delayable = false;
+
+        boolean corrupted = type == PacketType.MESSAGE && !PacketCodec.verifyChecksum(pack, this.receiveChecksum);
+        if (!corrupted && type == PacketType.MESSAGE && this.fecHistory != null && id >= expected) this.rememberParity(id, pack);
+
+        if (corrupted) {
+            // corrupted, drop the packet and let the remote send it again
+            this.corruptedCount.incrementAndGet();
+
+        } else if (id == expected && !this.canDeliver(type, pack)) {
+            // no room in the receive buffer, drop the packet and let the remote send it again
+            this.droppedCount.incrementAndGet();
+
+        } else if (id == expected) {
+            // gaps, and packets filling them, are always acknowledged immediately
+            delayable = type == PacketType.MESSAGE && this.reorderBuffer.isEmpty();
+            this.lastReceivedId.set(id);
+            this.deliver(type, id, pack);
+            this.deliverBuffered();
+
+        } else if (id > expected && id - expected <= this.getReorderLimit()) {
+            if (!this.reorderBuffer.contains(id)) {
+                ByteBuffer copy = this.buffers.acquire();
+                PacketCodec.copy(pack, copy);
+                this.reorderBuffer.put(id, copy);
+                if (this.debug <= Constants.FINER) System.out.println("[Socket][onSequenced] Buffered out of order packet id=" + id + " expected=" + expected);
+            }
+
+        } else if (this.debug <= Constants.FINER) {
+            System.out.println("[Socket][onSequenced] Dropped packet id=" + id + " expected=" + expected);
+        }
+
+        if (this.state.get() == CLOSED) return;
+
+        if (!delayable || this.delayedAckPackets <= 1 || this.isSenderDone()) {
+            // without a sending system to flush it, an ACK can't be delayed
+            this.flushAck();
+
+        } else if (this.delayedAcks.incrementAndGet() >= this.delayedAckPackets) {
+            this.flushAck();
+
+        } else if (this.ackDeadline.compareAndSet(0, System.currentTimeMillis() + this.delayedAckTimeout)) {
+            this.wakeSender();
+        }
+    }
+
+    /**
+     * Sends a cumulative ACK for every packet received in order so far, including any whose ACK
+     * was being delayed.
+     */
+    protected void flushAck() {
+        // clear first, anything received after this is still covered by the ACK sent below
+        this.delayedAcks.set(0);
+        this.ackDeadline.set(0);
+        this.sendAck(this.lastReceivedId.get());
+    }
+
+    /**
+     * Delivers packets from the reorder buffer for as long as the next expected packet is in it.
+     */
+    private void deliverBuffered() {
+        ByteBuffer next;
+        while ((next = this.reorderBuffer.get(this.lastReceivedId.get() + 1)) != null) {
+            PacketType type = PacketCodec.readType(next);
+            if (!this.canDeliver(type, next)) break;
+
+            int nextId = this.lastReceivedId.incrementAndGet();
+            this.reorderBuffer.remove(nextId);
+            this.deliver(type, nextId, next);
+            this.buffers.release(next);
+        }
+    }
+
+    /**
+     * Returns true if the given packet can be delivered without blocking, that is, if it isn't a
+     * MESSAGE packet, or if its data fits in the receive buffer.
+     */
+    private boolean canDeliver(PacketType type, ByteBuffer pack) {
+        return type != PacketType.MESSAGE || this.receiveBuffer.capacity() >= pack.limit() - Constants.HEADER_OVERHEAD - Constants.FOOTER_OVERHEAD;
+    }
+
+    private void deliver(PacketType type, int id, ByteBuffer pack) {
+        if (type == PacketType.MESSAGE) {
+            this.onMessage(id, pack);
+
+        } else if (type == PacketType.CLOSE) {
+            // acknowledge first, the socket may not be able to send once closed
+            this.sendAck(id);
+            this.onClose(id);
+
+        } else if (type == PacketType.POKE) {
+            this.onPoke(id);
+        }
+    }
+
+    /**
+     * Returns how far ahead of the next expected packet a packet may be and still be kept in the
+     * reorder buffer. The remote never has more than the advertised window in flight, so anything
+     * further ahead is bogus.
+     *
+     * @return the maximum distance from the next expected packet ID
+     */
+    protected int getReorderLimit() {
+        return Math.min(this.reorderBuffer.capacity() - 1, Math.max(2, this.receiveBuffer.size() / this.remoteSegmentSize + 1));
     }
 
     /**
      * Enforces ordering, given the ID of a packet that was received. An ACK packet is sent,
      * irrespective of proper ordering. If the packet is not in order, then the last packet
      * that was received in order is acknowledged. If the packet was received in order, then
-     * the packet is acknowledged.
+     * its early data is delivered, if it carried any, and the packet is acknowledged. Used for SYN
+     * packets, other sequenced packets are handled by {@link #onSequenced(PacketType, int, ByteBuffer)}.
      *
      * @param id the id of a received packet
      * @return true if packet was received in order
      */
     protected boolean enforceOrdering(int id) {
-        if (this.lastReceivedId.get() + 1 == id) {
-            this.sendAck(id);
+        if (this.lastReceivedId.compareAndSet(id - 1, id)) {
+            if (this.earlyData != null) this.onEarlyData(this.earlyData);
+            this.deliverBuffered();
+            if (this.state.get() != CLOSED) this.sendAck(this.lastReceivedId.get());
             return true;
 
         } else {
@@ -513,52 +1752,197 @@ public abstract class Socket {
         }
     }
 
-    protected void onPacket(DatagramPacket pack) {
-        this.lastReceivedTime = System.currentTimeMillis();
+    /**
+     * Keeps a copy of a MESSAGE packet, for rebuilding another packet of its group.
+     */
+    protected void rememberParity(int id, ByteBuffer pack) {
+        int slot = id & (this.fecHistory.length - 1);
+        if (this.fecHistory[slot] == null) this.fecHistory[slot] = ByteBuffer.allocate(Constants.PACKET_BUFFER_SIZE);
+        PacketCodec.copy(pack, this.fecHistory[slot]);
+        this.fecHistoryIds[slot] = id;
+    }
+
+    /**
+     * Processes a PARITY packet. If exactly one packet of its group is missing, and every other one is still
+     * in the history, the missing packet is rebuilt, and handled as if it had been received. The rebuilt packet
+     * still has to match its checksum, so a corrupted PARITY packet can't deliver wrong data.
+     *
+     * @param firstId the ID of the first packet of the group
+     * @param pack the PARITY packet
+     */
+    protected void onParity(int firstId, ByteBuffer pack) {
+        if (this.fecHistory == null) {
+            // the remote sends parity, from now on keep what's needed to use it
+            this.fecHistory = new ByteBuffer[Integer.highestOneBit(Constants.FEC_GROUP_SIZE) << 2];
+            this.fecHistoryIds = new int[this.fecHistory.length];
+            return;
+        }
+
+        int count = pack.get(Constants.HEADER_OVERHEAD) & 0xFF;
+        int length = pack.getShort(Constants.HEADER_OVERHEAD + 2) & 0xFFFF;
+        if (count == 0 || count > Constants.FEC_GROUP_SIZE) return;
 
+        int received = this.lastReceivedId.get();
+        int missing = 0;
+        for (int id = firstId; id < firstId + count; id++) {
+            if (id <= received || this.reorderBuffer.contains(id)) continue;
+            if (missing != 0) return; // more than one lost, only a retransmission helps
+            missing = id;
+        }
+        if (missing == 0) return;
+
+        ByteBuffer packet = this.buffers.acquire();
+        try {
+            int data = pack.limit() - Constants.HEADER_OVERHEAD - Constants.FEC_OVERHEAD;
+            PacketCodec.writeHeader(packet, PacketType.MESSAGE, missing);
+            packet.put(pack.array(), pack.arrayOffset() + Constants.HEADER_OVERHEAD + Constants.FEC_OVERHEAD, data);
+
+            for (int id = firstId; id < firstId + count; id++) {
+                if (id == missing) continue;
+                int slot = id & (this.fecHistory.length - 1);
+                if (this.fecHistoryIds[slot] != id) return; // no longer in the history
+                ByteBuffer other = this.fecHistory[slot];
+                int otherLength = other.limit() - Constants.HEADER_OVERHEAD;
+                if (otherLength > data) return;
+                PacketCodec.xor(packet, Constants.HEADER_OVERHEAD, other, Constants.HEADER_OVERHEAD, otherLength);
+                length ^= otherLength;
+            }
+            if (length < Constants.FOOTER_OVERHEAD || length > data) return;
+
+            packet.position(0);
+            packet.limit(Constants.HEADER_OVERHEAD + length);
+            if (!PacketCodec.verifyChecksum(packet, this.receiveChecksum)) return;
+
+            this.recoveredCount.incrementAndGet();
+            if (this.debug <= Constants.FINER) System.out.println("[Socket][onParity] Rebuilt packet id=" + missing);
+            this.onSequenced(PacketType.MESSAGE, missing, packet);
+
+        } finally {
+            this.buffers.release(packet);
+        }
+    }
+
+    /**
+     * Delivers the early data of a SYN packet to the receive buffer, ahead of any MESSAGE packet.
+     * The receive buffer is empty at this point, so this doesn't block.
+     *
+     * @param data the early data, from its position to its limit
+     */
+    protected void onEarlyData(ByteBuffer data) {
         try {
-            byte[] packet = pack.getData();
-            ByteArrayInputStream in = new ByteArrayInputStream(packet);
-            DataInputStream reader = new DataInputStream(in);
-            PacketType type = PacketType.fromValue(reader.readInt());
-            int id = reader.readInt();
+            int len = data.remaining();
+            this.receiveBuffer.getOutputStream().write(data.array(), data.arrayOffset() + data.position(), len);
+            this.receivedBytes.addAndGet(len);
+            this.earlyDataReceived = true;
+            if (this.debug <= Constants.FINE) System.out.println("[Socket][onEarlyData] Received " + len + " bytes of early data");
 
-            if (this.debug <= Constants.FINER) System.out.println("[Socket][onPacket] Received packet: type=" + type + " id=" + id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (type == PacketType.SYN) {
-                this.onSyn(pack.getAddress(), pack.getPort(), id);
+    /**
+     * Handles a received packet. The packet is read from position 0 to its limit, and isn't kept
+     * after this returns, so the caller may reuse it.
+     *
+     * @param pack the received packet
+     */
+    protected void onPacket(ByteBuffer pack) {
+        this.lastReceivedTime = System.currentTimeMillis();
+        this.receivedCount.incrementAndGet();
 
-            } else if (type == PacketType.ACK) {
-                int window = reader.readInt();
-                this.onAck(id, window);
+        if (pack.limit() < Constants.HEADER_OVERHEAD) {
+            System.err.println("[Socket][onPacket] Received truncated packet");
+            return;
+        }
 
-            } else if (type == PacketType.MESSAGE) {
-                this.onMessage(id, packet, Constants.HEADER_OVERHEAD, pack.getLength() - Constants.HEADER_OVERHEAD - Constants.FOOTER_OVERHEAD);
+        PacketType type = PacketCodec.readType(pack);
+        int id = PacketCodec.readId(pack);
 
-            } else if (type == PacketType.CLOSE) {
-                this.onClose(id);
 
-            } else if (type == PacketType.POKE) {
-                this.onPoke(id);
+        if (type == PacketType.SYN) {
+            int state = this.state.get();
+            ByteBuffer early = null;
+            if (pack.limit() >= Constants.HEADER_OVERHEAD + SYN_LENGTH + Constants.FOOTER_OVERHEAD) {
+                if (!PacketCodec.verifyChecksum(pack, ChecksumType.CRC64.newChecksum())) {
+                    this.corruptedCount.incrementAndGet();
+                    if (this.debug <= Constants.WARN) System.out.println("[Socket][onPacket][WARN] Checksum mismatch, dropped SYN packet id=" + id);
+                    return;
+                }
 
-            } else {
-                System.err.println("[Socket][onPacket] Received packet of unknown type");
+                int connectionId = pack.getInt(Constants.HEADER_OVERHEAD + 16);
+                if (this.connectionId != 0 && connectionId != this.connectionId) {
+                    if (this.debug <= Constants.WARN) System.out.println("[Socket][onPacket][WARN] Dropped SYN packet of another connection, id=" + connectionId);
+                    return;
+                }
+
+                int length = pack.getInt(Constants.HEADER_OVERHEAD + 20);
+                if (length > 0 && length <= pack.limit() - Constants.HEADER_OVERHEAD - SYN_LENGTH - Constants.FOOTER_OVERHEAD) {
+                    early = pack.duplicate();
+                    early.position(Constants.HEADER_OVERHEAD + SYN_LENGTH);
+                    early.limit(Constants.HEADER_OVERHEAD + SYN_LENGTH + length);
+                }
+                // nothing was acknowledged yet, so the remote's window is only known from its SYN
+                if (state == LISTEN) this.remoteWindow.set(Math.max(1, pack.getInt(Constants.HEADER_OVERHEAD + 12)));
+                if (state == LISTEN || state == SYN_SENT) this.remoteFec = (pack.getInt(Constants.HEADER_OVERHEAD + 8) & SYN_FEC) != 0;
             }
 
-            reader.close();
-            in.close();
+            if (!this.checksumNegotiated && (state == LISTEN || state == SYN_SENT)) {
+                this.negotiateChecksum(pack.limit() >= Constants.HEADER_OVERHEAD + 4 ? pack.getInt(Constants.HEADER_OVERHEAD) : ChecksumType.CRC64.bit);
+            }
+            if (!this.segmentNegotiated && (state == LISTEN || state == SYN_SENT)) {
+                boolean announced = pack.limit() >= Constants.HEADER_OVERHEAD + 12;
+                this.negotiateSegmentSize(announced ? pack.getInt(Constants.HEADER_OVERHEAD + 4) : 0, announced && (pack.getInt(Constants.HEADER_OVERHEAD + 8) & SYN_PATH_MTU_PROBING) != 0);
+            }
 
-        } catch (IOException e) {
-            System.err.println("[Socket][onPacket] IOException while parsing packet");
-            e.printStackTrace();
+            // delivered by enforceOrdering, if the SYN is accepted
+            this.earlyData = early;
+            try {
+                this.onSyn(this.remote, this.port, id);
+            } finally {
+                this.earlyData = null;
+            }
+
+        } else if (type == PacketType.ACK && pack.limit() >= Constants.HEADER_OVERHEAD + 4) {
+            int window = pack.getInt(Constants.HEADER_OVERHEAD);
+            this.onAck(id, window, this.sackBlocks, 0);
+
+        } else if (type == PacketType.SACK && pack.limit() >= Constants.HEADER_OVERHEAD + 8) {
+            int window = pack.getInt(Constants.HEADER_OVERHEAD);
+            int count = Math.min(pack.getInt(Constants.HEADER_OVERHEAD + 4), Constants.MAX_SACK_BLOCKS);
+            count = Math.min(count, (pack.limit() - Constants.HEADER_OVERHEAD - 8) / 8);
+            for (int i = 0; i < count * 2; i++) this.sackBlocks[i] = pack.getInt(Constants.HEADER_OVERHEAD + 8 + i * 4);
+            this.onAck(id, window, this.sackBlocks, count * 2);
+
+        } else if (type == PacketType.MESSAGE || type == PacketType.CLOSE || type == PacketType.POKE) {
+            this.onSequenced(type, id, pack);
+
+        } else if (type == PacketType.PROBE && pack.limit() >= Constants.HEADER_OVERHEAD + 4) {
+            this.onProbe(id, pack);
+
+        } else if (type == PacketType.PROBE_ACK && pack.limit() >= Constants.HEADER_OVERHEAD + 4) {
+            this.onProbeAck(id, pack.getInt(Constants.HEADER_OVERHEAD));
+
+        } else if (type == PacketType.PARITY && pack.limit() > Constants.HEADER_OVERHEAD + Constants.FEC_OVERHEAD) {
+            this.onParity(id, pack);
+
+        } else {
+            System.err.println("[Socket][onPacket] Received packet of unknown type");
         }
     }
 
-    protected abstract DatagramPacket receivePacket() throws IOException;
+    /**
+     * Receives the next packet, positioned at 0 and limited to the packet's length. The returned buffer
+     * only needs to stay valid until the next call.
+     *
+     * @return the received packet, or null if nothing was received in time
+     * @throws IOException if the underlying socket fails
+     */
+    protected abstract ByteBuffer receivePacket() throws IOException;
 
     protected void receiver() {
         while (this.state.get() != CLOSED) {
-            DatagramPacket packet;
+            ByteBuffer packet;
 
             try {
                 //System.out.println("[Socket][receiver] Attempting to receive packet");
@@ -588,11 +1972,194 @@ public abstract class Socket {
     protected abstract void onTimeout();
 
     protected void reportTimeout() {
-        this.state.set(CLOSED);
+        if (this.state.getAndSet(CLOSED) == CLOSED) return;
         if (this.debug <= Constants.WARN) System.out.println("[Socket][reportTimeout][WARN] Socket timed out");
+
+        // wake up anyone reading or writing
+        try {
+            this.receiveBuffer.getOutputStream().close();
+            this.sendBuffer.getOutputStream().close();
+        } catch (IOException e) {
+            System.err.println("[Socket][reportTimeout] IOException while trying to close buffers of timed out socket");
+            e.printStackTrace();
+        }
+        synchronized (this.waitingLock) {
+            this.waitingLock.notifyAll();
+        }
+
         this.onTimeout();
     }
 
+    /**
+     * A packet that was sent and is waiting in the retransmission queue to be acknowledged.
+     */
+    protected static class PendingPacket {
+        protected int id;
+        protected ByteBuffer packet;
+
+        /**
+         * {@link System#nanoTime()} of the last transmission.
+         */
+        protected long sentTime;
+        protected int transmissions;
+        protected boolean selectivelyAcknowledged;
+        /**
+         * Set when the packet is presumed lost after a timeout, until it's retransmitted.
+         */
+        protected boolean lost;
+
+        protected void reset(int id, ByteBuffer packet) {
+            this.id = id;
+            this.packet = packet;
+            this.sentTime = 0;
+            this.transmissions = 1;
+            this.selectivelyAcknowledged = false;
+            this.lost = false;
+        }
+    }
+
+    /**
+     * The retransmission queue, a ring of {@link PendingPacket}s that are reused as packets are sent and
+     * acknowledged, so that sending allocates nothing once the ring is as large as the window. Packets are
+     * added at the tail and only removed from the head, as they are cumulatively acknowledged in order.
+     */
+    protected static class PendingQueue {
+        private PendingPacket[] ring;
+        private int head;
+        private int size;
+
+        protected PendingQueue(int capacity) {
+            this.ring = new PendingPacket[Integer.highestOneBit(Math.max(2, capacity - 1)) << 1];
+            for (int i = 0; i < this.ring.length; i++) this.ring[i] = new PendingPacket();
+            this.head = 0;
+            this.size = 0;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        /**
+         * Returns the packet at the given position, 0 being the oldest.
+         */
+        public PendingPacket get(int index) {
+            return this.ring[(this.head + index) & (this.ring.length - 1)];
+        }
+
+        public PendingPacket peek() {
+            return this.size == 0 ? null : this.ring[this.head];
+        }
+
+        /**
+         * Queues a packet, and returns its record. The record is only valid until the packet is removed.
+         */
+        public PendingPacket add(int id, ByteBuffer packet) {
+            if (this.size == this.ring.length) this.grow();
+            PendingPacket pending = this.ring[(this.head + this.size) & (this.ring.length - 1)];
+            pending.reset(id, packet);
+            this.size++;
+            return pending;
+        }
+
+        public void removeFirst() {
+            if (this.size == 0) return;
+            this.ring[this.head].packet = null;
+            this.head = (this.head + 1) & (this.ring.length - 1);
+            this.size--;
+        }
+
+        private void grow() {
+            PendingPacket[] larger = new PendingPacket[this.ring.length << 1];
+            for (int i = 0; i < larger.length; i++) larger[i] = i < this.size ? this.get(i) : new PendingPacket();
+            this.ring = larger;
+            this.head = 0;
+        }
+    }
+
+    /**
+     * Packets received ahead of order, in a ring indexed by ID. Only the receiving system adds and removes
+     * packets, other threads may only check which IDs are buffered, to list them in SACK packets.
+     */
+    protected static class ReorderBuffer {
+        private final ByteBuffer[] packets;
+        private final AtomicIntegerArray ids;
+        private volatile int size;
+
+        /**
+         * @param capacity the number of consecutive IDs that can be buffered
+         */
+        protected ReorderBuffer(int capacity) {
+            int length = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.packets = new ByteBuffer[length];
+            this.ids = new AtomicIntegerArray(length);
+            this.size = 0;
+        }
+
+        /**
+         * Returns how many IDs apart the buffered packets can be, at most.
+         */
+        public int capacity() {
+            return this.packets.length;
+        }
+
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        public boolean contains(int id) {
+            return id != 0 && this.ids.get(id & (this.packets.length - 1)) == id;
+        }
+
+        public ByteBuffer get(int id) {
+            return this.contains(id) ? this.packets[id & (this.packets.length - 1)] : null;
+        }
+
+        /**
+         * Buffers a packet. The IDs of the buffered packets must be less than {@link #capacity()} apart.
+         */
+        public void put(int id, ByteBuffer packet) {
+            int slot = id & (this.packets.length - 1);
+            if (this.ids.get(slot) == 0) this.size++;
+            this.packets[slot] = packet;
+            this.ids.set(slot, id);
+        }
+
+        public void remove(int id) {
+            int slot = id & (this.packets.length - 1);
+            if (this.ids.get(slot) != id) return;
+            this.ids.set(slot, 0);
+            this.packets[slot] = null;
+            this.size--;
+        }
+    }
+
+    /**
+     * Flags of the SYN packet.
+     */
+    protected static final int SYN_PATH_MTU_PROBING = 1;
+    protected static final int SYN_FEC = 2;
+
+    /**
+     * The length of the fields of a SYN packet before its early data.
+     */
+    protected static final int SYN_LENGTH = 6 * 4;
+
+    /**
+     * Returns the connection ID of a SYN packet, or 0 if it doesn't carry one, or is corrupted.
+     *
+     * @param packet a SYN packet, from position 0 to its limit
+     * @return the connection ID
+     */
+    protected static int readConnectionId(ByteBuffer packet) {
+        if (packet.limit() < Constants.HEADER_OVERHEAD + SYN_LENGTH + Constants.FOOTER_OVERHEAD) return 0;
+        if (!PacketCodec.verifyChecksum(packet, ChecksumType.CRC64.newChecksum())) return 0;
+        return packet.getInt(Constants.HEADER_OVERHEAD + 16);
+    }
+
     public static final int LISTEN = 1;
     public static final int SYN_RECEIVED = 2;
     public static final int SYN_SENT = 3;
@@ -0,0 +1,266 @@
+package net.lib;
+
+import java.util.Collection;
+
+/**
+ * A snapshot of the statistics of a {@link Socket}, or an aggregate over the connections of a {@link ServerSocket}.
+ *
+ * Counters are totals since the socket was created. Gauges (RTT, RTO, windows and buffer occupancy) describe
+ * the socket when the snapshot was taken. In an aggregate, counters are summed over every connection, including
+ * closed ones, while gauges only cover the connections that were open: windows and buffer occupancy are summed,
+ * RTT and RTO are averaged.
+ *
+ * Getters follow the MXBean conventions, so snapshots are exposed through JMX as composite data.
+ */
+public class SocketStats {
+
+    String remote;
+    int state;
+    int connections;
+    long timestamp;
+
+    // counters
+    long packetsSent;
+    long bytesSent;
+    long packetsReceived;
+    long bytesReceived;
+    long retransmits;
+    long fastRetransmits;
+    long timeouts;
+    long duplicateAcks;
+    long corrupted;
+    long dropped;
+    long earlyData;
+    long parity;
+    long recovered;
+    long windowBlockedTime;
+
+    // gauges
+    double rtt;
+    long rto;
+    int congestionWindow;
+    int sendWindow;
+    int unacknowledged;
+    int segmentSize;
+    int sendBuffered;
+    int receiveBuffered;
+
+    SocketStats() {
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Aggregates the given snapshots of open connections, and the counters of connections that were closed.
+     *
+     * @param open snapshots of the open connections
+     * @param closed the summed counters of the closed connections, may be null
+     * @return the aggregate
+     */
+    static SocketStats aggregate(Collection<SocketStats> open, SocketStats closed) {
+        SocketStats total = new SocketStats();
+        total.remote = "*";
+        total.state = 0;
+        if (closed != null) total.addCounters(closed);
+
+        for (SocketStats stats : open) {
+            total.addCounters(stats);
+            total.connections++;
+            total.rtt += stats.rtt;
+            total.rto += stats.rto;
+            total.congestionWindow += stats.congestionWindow;
+            total.sendWindow += stats.sendWindow;
+            total.unacknowledged += stats.unacknowledged;
+            total.segmentSize += stats.segmentSize;
+            total.sendBuffered += stats.sendBuffered;
+            total.receiveBuffered += stats.receiveBuffered;
+        }
+
+        if (total.connections > 0) {
+            total.rtt /= total.connections;
+            total.rto /= total.connections;
+            total.segmentSize /= total.connections;
+        }
+        return total;
+    }
+
+    /**
+     * Adds the counters of the given snapshot to this one.
+     */
+    void addCounters(SocketStats other) {
+        this.packetsSent += other.packetsSent;
+        this.bytesSent += other.bytesSent;
+        this.packetsReceived += other.packetsReceived;
+        this.bytesReceived += other.bytesReceived;
+        this.retransmits += other.retransmits;
+        this.fastRetransmits += other.fastRetransmits;
+        this.timeouts += other.timeouts;
+        this.duplicateAcks += other.duplicateAcks;
+        this.corrupted += other.corrupted;
+        this.dropped += other.dropped;
+        this.earlyData += other.earlyData;
+        this.parity += other.parity;
+        this.recovered += other.recovered;
+        this.windowBlockedTime += other.windowBlockedTime;
+    }
+
+    /**
+     * Returns the remote's address, or "*" for an aggregate.
+     */
+    public String getRemote() {
+        return this.remote;
+    }
+
+    /**
+     * Returns the state of the socket, see {@link Socket#getState()}, or 0 for an aggregate.
+     */
+    public int getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the number of open connections covered by the gauges, 1 for a single socket.
+     */
+    public int getConnections() {
+        return this.connections;
+    }
+
+    /**
+     * Returns when the snapshot was taken, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Returns the number of sequenced packets sent, not counting retransmissions.
+     */
+    public long getPacketsSent() {
+        return this.packetsSent;
+    }
+
+    /**
+     * Returns the number of bytes of data sent in MESSAGE packets, not counting retransmissions.
+     */
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /**
+     * Returns the number of packets received, of any type, including corrupted and duplicate ones.
+     */
+    public long getPacketsReceived() {
+        return this.packetsReceived;
+    }
+
+    /**
+     * Returns the number of bytes of data delivered to the receive buffer.
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public long getRetransmits() {
+        return this.retransmits;
+    }
+
+    public long getFastRetransmits() {
+        return this.fastRetransmits;
+    }
+
+    public long getTimeouts() {
+        return this.timeouts;
+    }
+
+    public long getDuplicateAcks() {
+        return this.duplicateAcks;
+    }
+
+    public long getCorrupted() {
+        return this.corrupted;
+    }
+
+    /**
+     * Returns the number of received packets that were dropped without being handled, because the socket
+     * couldn't keep up, or had no room left in its receive buffer.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    public long getEarlyData() {
+        return this.earlyData;
+    }
+
+    /**
+     * Returns the number of PARITY packets sent, see {@link Socket#setForwardErrorCorrection(boolean)}.
+     */
+    public long getParity() {
+        return this.parity;
+    }
+
+    /**
+     * Returns the number of lost packets that were rebuilt from PARITY packets, instead of being retransmitted.
+     */
+    public long getRecovered() {
+        return this.recovered;
+    }
+
+    /**
+     * Returns the time spent with data to send but the send window closed, in milliseconds.
+     */
+    public long getWindowBlockedTime() {
+        return this.windowBlockedTime;
+    }
+
+    /**
+     * Returns the smoothed RTT in milliseconds, or 0 if it hasn't been measured yet.
+     */
+    public double getRtt() {
+        return this.rtt;
+    }
+
+    public long getRto() {
+        return this.rto;
+    }
+
+    public int getCongestionWindow() {
+        return this.congestionWindow;
+    }
+
+    public int getSendWindow() {
+        return this.sendWindow;
+    }
+
+    public int getUnacknowledged() {
+        return this.unacknowledged;
+    }
+
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * Returns the number of bytes in the send buffer, waiting to be sent.
+     */
+    public int getSendBuffered() {
+        return this.sendBuffered;
+    }
+
+    /**
+     * Returns the number of bytes in the receive buffer, waiting to be read.
+     */
+    public int getReceiveBuffered() {
+        return this.receiveBuffered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s] sent=%d/%dB received=%d/%dB retx=%d fast=%d timeouts=%d dupacks=%d corrupted=%d dropped=%d " +
+                        "parity=%d recovered=%d blocked=%dms rtt=%.1fms rto=%dms cwnd=%d window=%d inflight=%d segment=%d buffered=%d/%dB",
+                this.remote, this.packetsSent, this.bytesSent, this.packetsReceived, this.bytesReceived, this.retransmits,
+                this.fastRetransmits, this.timeouts, this.duplicateAcks, this.corrupted, this.dropped, this.parity,
+                this.recovered, this.windowBlockedTime,
+                this.rtt, this.rto, this.congestionWindow, this.sendWindow, this.unacknowledged, this.segmentSize,
+                this.sendBuffered, this.receiveBuffered);
+    }
+}
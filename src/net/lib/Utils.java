@@ -1,5 +1,6 @@
 package net.lib;
 
+import java.lang.reflect.Method;
 import java.net.*;
 import java.util.Enumeration;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -83,4 +84,51 @@ public class Utils {
         return new DatagramSocket(new InetSocketAddress(address, 0));
     }
 
+    /**
+     * Returns the MTU of the local interface that packets to the given address leave through, or 1500 if
+     * it can't be determined. This is only an upper bound for the path MTU. Connecting a DatagramSocket only selects a route, nothing is sent.
+     *
+     * @param remote the remote address
+     * @return the MTU of the outgoing interface
+     */
+    public static int getMtu(InetAddress remote) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(remote, 9);
+            // addresses of this host are reached through the loopback interface, whatever interface they belong to
+            boolean local = remote.isLoopbackAddress() || NetworkInterface.getByInetAddress(remote) != null;
+            NetworkInterface iface = local ? getLoopbackInterface() : NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (iface != null && iface.getMTU() > 0) return iface.getMTU();
+
+        } catch (SocketException e) {
+            // no route, fall through to the Ethernet default
+        }
+        return 1500;
+    }
+
+    /**
+     * Returns the number of bytes the IP and UDP headers add to every datagram sent to the given address.
+     */
+    public static int getDatagramOverhead(InetAddress remote) {
+        return (remote instanceof Inet6Address ? 40 : 20) + 8;
+    }
+
+    /**
+     * Sets the don't fragment flag on the given DatagramSocket or DatagramChannel, so that datagrams too
+     * large for the path are dropped instead of fragmented. The option is only available from Java 19,
+     * through jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT, so it is looked up reflectively.
+     *
+     * @param socket a DatagramSocket or DatagramChannel
+     * @return true if the flag was set
+     */
+    public static boolean setDontFragment(Object socket) {
+        try {
+            Object option = Class.forName("jdk.net.ExtendedSocketOptions").getField("IP_DONTFRAGMENT").get(null);
+            Method setOption = socket.getClass().getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(socket, option, Boolean.TRUE);
+            return true;
+
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
 }
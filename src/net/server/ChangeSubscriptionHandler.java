@@ -6,7 +6,7 @@ import javafx.collections.SetChangeListener;
 import net.common.Constants;
 import net.common.JsonField;
 import net.common.SimpleJsonWriter;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 import persistence.LocalSong;
 
 import java.io.IOException;
@@ -17,7 +17,7 @@ public class ChangeSubscriptionHandler extends SimpleJsonWriter {
 
     private LibraryServer server;
 
-    public ChangeSubscriptionHandler(Socket socket, LibraryServer server) {
+    public ChangeSubscriptionHandler(DuplexStream socket, LibraryServer server) {
         super(socket, true);
         this.server = server;
     }
@@ -48,24 +48,14 @@ public class ChangeSubscriptionHandler extends SimpleJsonWriter {
             if (c.wasAdded()) {
                 List<? extends LocalSong> added = c.getAddedSubList();
                 for (LocalSong song : added) {
-                    JsonField event = JsonField.fromObject(new HashMap<>());
-                    event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_SONG_ADDED));
-                    event.setProperty("title", JsonField.fromString(song.getTitle()));
-                    event.setProperty("artist", JsonField.fromString(song.getArtist()));
-                    event.setProperty("album", JsonField.fromString(song.getAlbumTitle()));
-                    event.setProperty("duration", JsonField.fromInt(song.getDuration()));
-                    event.setProperty("id", JsonField.fromInt(song.getId()));
-                    this.que(event);
+                    this.que(songAdded(song));
                     System.out.println("[ChangeSubscriptionHandler][onSongChange] Sending SONG_ADDED event");
                 }
 
             } else if (c.wasRemoved()) {
                 List<? extends LocalSong> removed = c.getRemoved();
                 for (LocalSong song : removed) {
-                    JsonField event = JsonField.fromObject(new HashMap<>());
-                    event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_SONG_REMOVED));
-                    event.setProperty("id", JsonField.fromInt(song.getId()));
-                    this.que(event);
+                    this.que(songRemoved(song));
                     System.out.println("[ChangeSubscriptionHandler][onSongChange] Sending SONG_REMOVED event");
                 }
             }
@@ -74,32 +64,66 @@ public class ChangeSubscriptionHandler extends SimpleJsonWriter {
 
     private void onAlbumChange(MapChangeListener.Change<? extends String, ? extends String> c) {
         if (c.wasAdded()) {
-            JsonField event = JsonField.fromObject(new HashMap<>());
-            event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ALBUM_ADDED));
-            event.setProperty("title", JsonField.fromString(c.getKey()));
-            event.setProperty("artist", JsonField.fromString(c.getValueAdded()));
-            this.que(event);
+            this.que(albumAdded(c.getKey(), c.getValueAdded()));
 
         } else {
-            JsonField event = JsonField.fromObject(new HashMap<>());
-            event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ALBUM_REMOVED));
-            event.setProperty("title", JsonField.fromString(c.getValueRemoved()));
-            this.que(event);
+            this.que(albumRemoved(c.getValueRemoved()));
         }
     }
 
     private void onArtistChange(SetChangeListener.Change<? extends String> c) {
         if (c.wasAdded()) {
-            JsonField event = JsonField.fromObject(new HashMap<>());
-            event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ARTIST_ADDED));
-            event.setProperty("name", JsonField.fromString(c.getElementAdded()));
-            this.que(event);
+            this.que(artistAdded(c.getElementAdded()));
 
         } else {
-            JsonField event = JsonField.fromObject(new HashMap<>());
-            event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ARTIST_REMOVED));
-            event.setProperty("name", JsonField.fromString(c.getElementRemoved()));
-            this.que(event);
+            this.que(artistRemoved(c.getElementRemoved()));
         }
     }
+
+    static JsonField songAdded(LocalSong song) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_SONG_ADDED));
+        event.setProperty("title", JsonField.fromString(song.getTitle()));
+        event.setProperty("artist", JsonField.fromString(song.getArtist()));
+        event.setProperty("album", JsonField.fromString(song.getAlbumTitle()));
+        event.setProperty("duration", JsonField.fromInt(song.getDuration()));
+        event.setProperty("id", JsonField.fromInt(song.getId()));
+        return event;
+    }
+
+    static JsonField songRemoved(LocalSong song) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_SONG_REMOVED));
+        event.setProperty("id", JsonField.fromInt(song.getId()));
+        return event;
+    }
+
+    static JsonField albumAdded(String title, String artist) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ALBUM_ADDED));
+        event.setProperty("title", JsonField.fromString(title));
+        event.setProperty("artist", JsonField.fromString(artist));
+        return event;
+    }
+
+    static JsonField albumRemoved(String title) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ALBUM_REMOVED));
+        event.setProperty("title", JsonField.fromString(title));
+        return event;
+    }
+
+    static JsonField artistAdded(String name) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ARTIST_ADDED));
+        event.setProperty("name", JsonField.fromString(name));
+        return event;
+    }
+
+    static JsonField artistRemoved(String name) {
+        JsonField event = JsonField.fromObject(new HashMap<>());
+        event.setProperty(Constants.EVENT_TYPE_PROPERTY, JsonField.fromString(Constants.EVENT_ARTIST_REMOVED));
+        event.setProperty("name", JsonField.fromString(name));
+        return event;
+    }
 }
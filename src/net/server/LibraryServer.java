@@ -7,6 +7,9 @@ import javafx.collections.ObservableMap;
 import javafx.collections.ObservableSet;
 import net.common.*;
 import net.common.JsonField;
+import net.lib.DuplexStream;
+import net.lib.MultiplexedConnection;
+import net.lib.MultiplexedStream;
 import net.lib.Utils;
 import net.lib.ServerSocket;
 import net.lib.Socket;
@@ -16,9 +19,12 @@ import utils.CompletableTaskExecutor;
 
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 public class LibraryServer {
 
@@ -32,19 +38,30 @@ public class LibraryServer {
 
     protected ObservableMap<String, String> albums;
 
+    // guards the catalog, artists and albums, and the sync subscribers, so snapshots and changes are ordered
+    private final Object catalogLock;
+    // the songs as of the last change handled, the observable list is already changed when its listeners run
+    private ArrayList<LocalSong> catalog;
+    private ArrayList<SyncHandler> subscribers;
+
     private CompletableTaskExecutor taskManager;
 
     private LibraryServer() throws SocketException {
         this.socket = new ServerSocket(Utils.getSocketAddress(12321), this::handleSocket);
         this.songs = DataManager.getDataManager().getSongs();
-        this.songs.addListener(this::onChanged);
 
         this.artists = FXCollections.observableSet(new LinkedHashSet<>());
         this.albums = FXCollections.observableMap(new LinkedHashMap<>());
+        this.catalogLock = new Object();
+        this.subscribers = new ArrayList<>();
 
-        for (LocalSong song : this.songs) {
-            this.artists.add(song.getArtist());
-            this.albums.put(song.getAlbumTitle(), song.getArtist());
+        synchronized (this.catalogLock) {
+            this.songs.addListener(this::onChanged);
+            this.catalog = new ArrayList<>(this.songs);
+            for (LocalSong song : this.catalog) {
+                this.artists.add(song.getArtist());
+                this.albums.put(song.getAlbumTitle(), song.getArtist());
+            }
         }
 
         this.taskManager = new CompletableTaskExecutor(Runtime.getRuntime().availableProcessors(), 10);
@@ -77,10 +94,24 @@ public class LibraryServer {
 
     private void handleSocket(Socket socket) {
         System.out.println("[LibraryServer][handleSocket] New connection");
-        this.taskManager.submit(new JsonStreamParser(socket, false, this::handleRequest));
+        // multiplexed connections carry one request per stream, plain sockets carry a single request, neither
+        // holds a thread while waiting for data
+        MultiplexedConnection.detect(socket, this.taskManager, multiplexed -> {
+            if (multiplexed) {
+                new MultiplexedConnection(socket, false, this::handleStream).start(this.taskManager);
+
+            } else {
+                new JsonStreamParser(socket, false, this::handleRequest).listen(this.taskManager);
+            }
+        });
     }
 
-    private void handleRequest(Socket socket, JsonField request) {
+    private void handleStream(MultiplexedStream stream) {
+        // parsed as the request arrives, without holding a thread while it does
+        new JsonStreamParser(stream, false, this::handleRequest).listen(this.taskManager);
+    }
+
+    private void handleRequest(DuplexStream socket, JsonField request) {
         if (!request.isObject()) {
             System.err.println("[LibraryServer][handleRequest] Received malformed request");
             return;
@@ -93,49 +124,86 @@ public class LibraryServer {
         }
         String type = request.getProperty(Constants.REQUEST_TYPE_PROPERTY).getStringValue();
         System.out.println("[LibraryServer][handleRequest] Received request of type \"" + type + "\"");
+        // list responses are JSON, unless the client asked for the compact binary format
+        boolean binary = request.containsKey(Constants.REQUEST_FORMAT_PROPERTY) &&
+                Constants.FORMAT_BINARY.equals(request.getProperty(Constants.REQUEST_FORMAT_PROPERTY).getStringValue());
         switch (type) {
             case Constants.REQUEST_LIST_ARTISTS :
-                this.taskManager.submit(new IterativeStreamingJsonSerializer<>(socket, true, this.artists.iterator(), (artist, gen) -> {
-                    gen.writeString(artist);
-                }));
+                if (binary) {
+                    new IterativeStreamingBinarySerializer<>(socket, true, this.artists.iterator(), (artist, out) -> {
+                        out.writeString(artist);
+                    }).start(this.taskManager);
+
+                } else {
+                    new IterativeStreamingJsonSerializer<>(socket, true, this.artists.iterator(), (artist, gen) -> {
+                        gen.writeString(artist);
+                    }).start(this.taskManager);
+                }
                 break;
             case Constants.REQUEST_LIST_ALBUMS :
-                this.taskManager.submit(new IterativeStreamingJsonSerializer<>(socket, true, this.albums.entrySet().iterator(), (album, gen) -> {
-                    gen.writeStartObject();
-                    gen.writeStringField("title", album.getKey());
-                    gen.writeStringField("artist", album.getValue());
-                    gen.writeEndObject();
-                }));
+                if (binary) {
+                    new IterativeStreamingBinarySerializer<>(socket, true, this.albums.entrySet().iterator(), (album, out) -> {
+                        out.writeString(album.getKey());
+                        out.writeSharedString(album.getValue());
+                    }).start(this.taskManager);
+
+                } else {
+                    new IterativeStreamingJsonSerializer<>(socket, true, this.albums.entrySet().iterator(), (album, gen) -> {
+                        gen.writeStartObject();
+                        gen.writeStringField("title", album.getKey());
+                        gen.writeStringField("artist", album.getValue());
+                        gen.writeEndObject();
+                    }).start(this.taskManager);
+                }
                 break;
             case Constants.REQUEST_LIST_SONGS :
-                this.taskManager.submit(new IterativeStreamingJsonSerializer<>(socket, true, this.songs.iterator(), (song, gen) -> {
-                    gen.writeStartObject();
-                    gen.writeStringField("title", song.getTitle());
-                    gen.writeStringField("artist", song.getArtist());
-                    gen.writeStringField("album", song.getAlbumTitle());
-                    gen.writeNumberField("duration", song.getDuration());
-                    gen.writeNumberField("id", song.getId());
-                    gen.writeEndObject();
-                }));
+                if (binary) {
+                    // titles are rarely repeated, artists and albums are, ids are written signed in case they're hashes
+                    new IterativeStreamingBinarySerializer<>(socket, true, this.songs.iterator(), (song, out) -> {
+                        out.writeString(song.getTitle());
+                        out.writeSharedString(song.getArtist());
+                        out.writeSharedString(song.getAlbumTitle());
+                        out.writeVarint(song.getDuration());
+                        out.writeLong(song.getId());
+                    }).start(this.taskManager);
+
+                } else {
+                    new IterativeStreamingJsonSerializer<>(socket, true, this.songs.iterator(), (song, gen) -> {
+                        gen.writeStartObject();
+                        gen.writeStringField("title", song.getTitle());
+                        gen.writeStringField("artist", song.getArtist());
+                        gen.writeStringField("album", song.getAlbumTitle());
+                        gen.writeNumberField("duration", song.getDuration());
+                        gen.writeNumberField("id", song.getId());
+                        gen.writeEndObject();
+                    }).start(this.taskManager);
+                }
                 break;
             case Constants.REQUEST_STREAM_SONG :
                 this.handleStreamSong(socket, request.getProperty("id").getLongValue());
                 break;
             case Constants.REQUEST_SUBSCRIBE :
                 //socket.debug = true;
-                this.taskManager.submit(new ChangeSubscriptionHandler(socket, this));
+                new ChangeSubscriptionHandler(socket, this).start(this.taskManager);
                 System.out.println("[LibraryServer][handleRequest] New subscription");
                 //socket.addDisconnectListener(() -> System.out.println("[LibraryServer] ChangeSubscription disconnected"));
                 break;
+            case Constants.REQUEST_SYNC :
+                new SyncHandler(socket, this).start(this.taskManager);
+                System.out.println("[LibraryServer][handleRequest] New sync");
+                break;
             case "test-file" :
-                this.taskManager.submit(new TestFileStreamer(socket));
+                new TestFileStreamer(socket).start(this.taskManager);
                 break;
-            default : System.err.println("[LibraryServer][handleRequest] Unrecognized request type: " +
-                    request.getProperty(Constants.REQUEST_TYPE_PROPERTY).getStringValue());
+            default :
+                System.err.println("[LibraryServer][handleRequest] Unrecognized request type: " +
+                        request.getProperty(Constants.REQUEST_TYPE_PROPERTY).getStringValue());
+                // an empty response tells the client to fall back to requests this server knows
+                socket.close();
         }
     }
 
-    private void handleStreamSong(Socket socket, long id) {
+    private void handleStreamSong(DuplexStream socket, long id) {
         LocalSong song = null;
         for (LocalSong s : this.songs) {
             if (s.getId() == id){
@@ -153,29 +221,80 @@ public class LibraryServer {
         }
     }
 
+    /**
+     * Gives the handler a snapshot of the library, and queues every change made after it on the handler,
+     * until {@link #unsubscribe(SyncHandler)} is called, once the handler stopped.
+     */
+    void subscribe(SyncHandler handler) {
+        synchronized (this.catalogLock) {
+            ArrayList<Map.Entry<String, String>> albums = new ArrayList<>(this.albums.size());
+            for (Map.Entry<String, String> album : this.albums.entrySet()) {
+                albums.add(new AbstractMap.SimpleImmutableEntry<>(album));
+            }
+            handler.snapshot(new ArrayList<>(this.artists), albums, new ArrayList<>(this.catalog));
+            this.subscribers.add(handler);
+        }
+    }
+
+    void unsubscribe(SyncHandler handler) {
+        synchronized (this.catalogLock) {
+            this.subscribers.remove(handler);
+        }
+    }
+
+    private void publish(JsonField event) {
+        for (SyncHandler handler : this.subscribers) handler.que(event);
+    }
+
     private void onChanged(Change<? extends LocalSong> c) {
-        while (c.next()) {
-            if (c.wasRemoved()) {
-                List<? extends LocalSong> removed = c.getRemoved();
-                for (LocalSong song : removed) {
-                    boolean artist = false;
-                    boolean album = false;
-                    for (LocalSong s2 : this.songs) {
-                        artist |= s2.getArtist().equals(song.getArtist());
-                        album |= s2.getAlbumTitle().equals(song.getAlbumTitle());
-                        if (artist && album) break;
-                    }
+        synchronized (this.catalogLock) {
+            while (c.next()) {
+                // the catalog follows the list's order, so that sync snapshots list songs in the same order
+                if (c.wasPermutated()) {
+                    ArrayList<LocalSong> moved = new ArrayList<>(this.catalog.subList(c.getFrom(), c.getTo()));
+                    for (int i = c.getFrom(); i < c.getTo(); i++) this.catalog.set(c.getPermutation(i), moved.get(i - c.getFrom()));
+                    continue;
+                }
+
+                // a replacement is a removal and an addition, at the same position
+                if (c.wasRemoved()) {
+                    List<? extends LocalSong> removed = c.getRemoved();
+                    this.catalog.subList(c.getFrom(), c.getFrom() + removed.size()).clear();
+                    for (LocalSong song : removed) {
+                        this.publish(ChangeSubscriptionHandler.songRemoved(song));
+
+                        boolean artist = false;
+                        boolean album = false;
+                        for (LocalSong s2 : this.catalog) {
+                            artist |= s2.getArtist().equals(song.getArtist());
+                            album |= s2.getAlbumTitle().equals(song.getAlbumTitle());
+                            if (artist && album) break;
+                        }
 
-                    if (!artist) this.artists.remove(song.getArtist());
-                    if (!album) this.albums.remove(song.getAlbumTitle());
-                    System.out.format("[LibraryServer][onChanged] Song removed \"%s\"\n", song.getTitle());
+                        if (!album && this.albums.remove(song.getAlbumTitle()) != null) {
+                            this.publish(ChangeSubscriptionHandler.albumRemoved(song.getAlbumTitle()));
+                        }
+                        if (!artist && this.artists.remove(song.getArtist())) {
+                            this.publish(ChangeSubscriptionHandler.artistRemoved(song.getArtist()));
+                        }
+                        System.out.format("[LibraryServer][onChanged] Song removed \"%s\"\n", song.getTitle());
+                    }
                 }
-            } else if (c.wasAdded()) {
-                List<? extends LocalSong> added = c.getAddedSubList();
-                for (LocalSong song : added) {
-                    this.albums.put(song.getAlbumTitle(), song.getArtist());
-                    this.artists.add(song.getArtist());
-                    System.out.format("[LibraryServer][onChanged] Song added \"%s\"\n", song.getTitle());
+
+                if (c.wasAdded()) {
+                    List<? extends LocalSong> added = c.getAddedSubList();
+                    for (int i = 0; i < added.size(); i++) {
+                        LocalSong song = added.get(i);
+                        this.catalog.add(c.getFrom() + i, song);
+                        if (this.artists.add(song.getArtist())) {
+                            this.publish(ChangeSubscriptionHandler.artistAdded(song.getArtist()));
+                        }
+                        if (this.albums.put(song.getAlbumTitle(), song.getArtist()) == null) {
+                            this.publish(ChangeSubscriptionHandler.albumAdded(song.getAlbumTitle(), song.getArtist()));
+                        }
+                        this.publish(ChangeSubscriptionHandler.songAdded(song));
+                        System.out.format("[LibraryServer][onChanged] Song added \"%s\"\n", song.getTitle());
+                    }
                 }
             }
         }
@@ -3,7 +3,7 @@ package net.server;
 import net.common.Constants;
 import net.common.StreamGenerator;
 import net.connect.Session;
-import net.lib.Socket;
+import net.lib.DuplexStream;
 import persistence.LocalSong;
 
 import java.io.IOException;
@@ -16,19 +16,21 @@ public class SongStreamHandler implements Runnable {
 
     private byte[] trx;
 
-    private Socket socket;
+    private DuplexStream socket;
     private OutputStream dest;
 
     private LocalSong song;
 
     private Future<InputStream> in;
 
-    public SongStreamHandler(Socket socket, LocalSong song) {
+    public SongStreamHandler(DuplexStream socket, LocalSong song) {
         this.socket = socket;
         this.song = song;
     }
 
     protected void initialize() throws IOException {
+        // audio would rather spend some bandwidth than stall on a retransmission
+        this.socket.setForwardErrorCorrection(true);
         this.dest = this.socket.outputStream();
         this.trx = new byte[Constants.PACKET_SIZE];
         this.in = this.song.getRawStream();
@@ -0,0 +1,115 @@
+package net.server;
+
+import net.common.Constants;
+import net.common.SimpleJsonWriter;
+import net.lib.DuplexStream;
+import persistence.LocalSong;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers a sync request, with the whole library as artist-added, album-added and song-added events, followed
+ * by a synced event, then by the changes made to the library since, as they happen.
+ *
+ * The library is written from a snapshot taken by {@link LibraryServer#subscribe(SyncHandler)}, which also
+ * starts queueing the changes made after it, so none is missed or sent twice.
+ */
+public class SyncHandler extends SimpleJsonWriter {
+
+    private LibraryServer server;
+
+    private Iterator<String> artists;
+    private Iterator<Map.Entry<String, String>> albums;
+    private Iterator<LocalSong> songs;
+    private boolean synced;
+
+    public SyncHandler(DuplexStream socket, LibraryServer server) {
+        super(socket, true);
+        this.server = server;
+        this.synced = false;
+    }
+
+    @Override
+    protected void initialize() throws IOException {
+        super.initialize();
+        this.gen.writeStartArray();
+        this.server.subscribe(this);
+    }
+
+    /**
+     * Sets the library to write before the queued changes. Called by the server, with its catalog locked.
+     */
+    void snapshot(List<String> artists, List<Map.Entry<String, String>> albums, List<LocalSong> songs) {
+        this.artists = artists.iterator();
+        this.albums = albums.iterator();
+        this.songs = songs.iterator();
+    }
+
+    @Override
+    protected void transfer(int maxSize) throws Exception {
+        if (!this.synced) {
+            this.counter.reset();
+            while (this.counter.getCount() < maxSize && !this.synced) {
+                this.gen.writeStartObject();
+                if (this.artists.hasNext()) {
+                    this.gen.writeStringField(Constants.EVENT_TYPE_PROPERTY, Constants.EVENT_ARTIST_ADDED);
+                    this.gen.writeStringField("name", this.artists.next());
+
+                } else if (this.albums.hasNext()) {
+                    Map.Entry<String, String> album = this.albums.next();
+                    this.gen.writeStringField(Constants.EVENT_TYPE_PROPERTY, Constants.EVENT_ALBUM_ADDED);
+                    this.gen.writeStringField("title", album.getKey());
+                    this.gen.writeStringField("artist", album.getValue());
+
+                } else if (this.songs.hasNext()) {
+                    LocalSong song = this.songs.next();
+                    this.gen.writeStringField(Constants.EVENT_TYPE_PROPERTY, Constants.EVENT_SONG_ADDED);
+                    this.gen.writeStringField("title", song.getTitle());
+                    this.gen.writeStringField("artist", song.getArtist());
+                    this.gen.writeStringField("album", song.getAlbumTitle());
+                    this.gen.writeNumberField("duration", song.getDuration());
+                    this.gen.writeNumberField("id", song.getId());
+
+                } else {
+                    this.gen.writeStringField(Constants.EVENT_TYPE_PROPERTY, Constants.EVENT_SYNCED);
+                    this.synced = true;
+                }
+                this.gen.writeEndObject();
+            }
+
+            if (!this.synced) return;
+            this.gen.flush();
+            this.artists = null;
+            this.albums = null;
+            this.songs = null;
+            System.out.println("[SyncHandler][transfer] Library sent, sending changes");
+        }
+
+        // changes made since the snapshot, and as they come
+        super.transfer(maxSize);
+    }
+
+    @Override
+    protected void finished() {
+        try {
+            this.gen.writeEndArray();
+
+        } catch (IOException e) {
+            System.err.println("[SyncHandler][finished] IOException while ending the event array");
+            e.printStackTrace();
+        }
+        super.finished();
+    }
+
+    @Override
+    protected void stopped() {
+        // also when the client closed the stream, which doesn't finish the generator
+        this.server.unsubscribe(this);
+        synchronized (this.queueLock) {
+            this.que.clear();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.server;
 
 import net.common.Constants;
 import net.common.StreamGenerator;
+import net.lib.DuplexStream;
 import net.lib.Socket;
 import persistence.DataManager;
 
@@ -21,9 +22,9 @@ public class TestFileStreamer extends StreamGenerator {
     private BufferedInputStream src;
     private CheckedInputStream check;
 
-    public TestFileStreamer(Socket socket) {
+    public TestFileStreamer(DuplexStream socket) {
         super(socket, true);
-        this.socket.debug = Constants.FINER;
+        if (socket instanceof Socket) ((Socket) socket).debug = Constants.FINER;
         this.testFile = new File(DataManager.rootDirectory.getPath() + "/Media/Artists/Taylor Davis/Enchanted Christmas/Greensleeves.wav");
         //this.testFile = new File(DataManager.rootDirectory.getPath() + "/TestFile.txt");
     }
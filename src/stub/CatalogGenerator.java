@@ -0,0 +1,103 @@
+package stub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Generates a synthetic catalog of {@link SongStub}s, with artists, albums and song titles that look
+ * roughly like a real library. The same seed always generates the same catalog.
+ *
+ * Songs are generated lazily by the iterator, so catalogs of millions of songs can be streamed without
+ * holding them all in memory.
+ */
+public class CatalogGenerator implements Iterable<SongStub> {
+
+    private static final String[] WORDS = {
+            "love", "night", "heart", "fire", "dream", "rain", "light", "summer", "river", "shadow",
+            "golden", "electric", "broken", "silver", "wild", "midnight", "ocean", "echo", "neon", "paper",
+            "city", "road", "ghost", "honey", "thunder", "velvet", "winter", "crystal", "lonely", "young",
+    };
+
+    private final int songCount;
+    private final int songsPerAlbum;
+    private final int albumsPerArtist;
+    private final long seed;
+
+    public CatalogGenerator(int songCount, long seed) {
+        this(songCount, 12, 8, seed);
+    }
+
+    public CatalogGenerator(int songCount, int songsPerAlbum, int albumsPerArtist, long seed) {
+        this.songCount = songCount;
+        this.songsPerAlbum = songsPerAlbum;
+        this.albumsPerArtist = albumsPerArtist;
+        this.seed = seed;
+    }
+
+    public int getSongCount() {
+        return this.songCount;
+    }
+
+    /**
+     * Generates the whole catalog at once.
+     *
+     * @return every song of the catalog
+     */
+    public List<SongStub> generate() {
+        List<SongStub> songs = new ArrayList<>(this.songCount);
+        for (SongStub song : this) songs.add(song);
+        return songs;
+    }
+
+    @Override
+    public Iterator<SongStub> iterator() {
+        return new Iterator<SongStub>() {
+
+            private final Random random = new Random(seed);
+            private final StringBuilder builder = new StringBuilder();
+
+            private int index = 0;
+            private String artist;
+            private String album;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < songCount;
+            }
+
+            @Override
+            public SongStub next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+
+                int track = this.index % songsPerAlbum;
+                if (track == 0) {
+                    if ((this.index / songsPerAlbum) % albumsPerArtist == 0) this.artist = this.name(2, this.index);
+                    this.album = this.name(1 + this.random.nextInt(3), -1);
+                }
+
+                String title = this.name(1 + this.random.nextInt(4), -1);
+                // between 1:30 and 6:30, in microseconds
+                long duration = (90 + this.random.nextInt(300)) * 1000000L;
+                return new SongStub(title, this.artist, this.album, duration, ++this.index);
+            }
+
+            /**
+             * Returns a title cased name made of the given number of words. If unique is not negative,
+             * it is appended, so that names don't repeat however large the catalog gets.
+             */
+            private String name(int words, int unique) {
+                this.builder.setLength(0);
+                for (int i = 0; i < words; i++) {
+                    if (i > 0) this.builder.append(' ');
+                    String word = WORDS[this.random.nextInt(WORDS.length)];
+                    this.builder.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+                }
+                if (unique >= 0) this.builder.append(' ').append(unique);
+                return this.builder.toString();
+            }
+        };
+    }
+}
@@ -16,13 +16,11 @@ public class SongStub implements Song {
     private final String artist;
     private final String albumTitle;
     private final long duration;
+    private final long id;
     private AudioInputStream audioInputStream;
 
     public SongStub(String title, String artist, String albumTitle, long duration, String path) {
-        this.title = title;
-        this.artist = artist;
-        this.albumTitle = albumTitle;
-        this.duration = duration;
+        this(title, artist, albumTitle, duration, 0);
         URL url = this.getClass().getClassLoader().getResource(path);
         try {
             audioInputStream = AudioSystem.getAudioInputStream(url);
@@ -33,6 +31,17 @@ public class SongStub implements Song {
         }
     }
 
+    /**
+     * Creates a SongStub without any audio, for tests and benchmarks that only need the metadata.
+     */
+    public SongStub(String title, String artist, String albumTitle, long duration, long id) {
+        this.title = title;
+        this.artist = artist;
+        this.albumTitle = albumTitle;
+        this.duration = duration;
+        this.id = id;
+    }
+
     @Override
     public String getTitle() {
         return this.title;
@@ -71,7 +80,7 @@ public class SongStub implements Song {
 
     @Override
     public long getId() {
-        return 0;
+        return this.id;
     }
 
     public AudioInputStream getAudioInputStream() {
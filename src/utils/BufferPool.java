@@ -0,0 +1,80 @@
+package utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of equally sized {@link ByteBuffer}s, so that buffers can be reused instead of being allocated
+ * for every use. Buffers are allocated lazily, and at most capacity released buffers are kept, any more
+ * are left to the garbage collector. Buffers are heap buffers, their backing array is always accessible.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+
+    private final ByteBuffer[] free;
+    private int count;
+
+    private long allocated;
+
+    /**
+     * Creates a new BufferPool.
+     *
+     * @param bufferSize the size of the buffers in the pool
+     * @param capacity the maximum number of unused buffers to keep
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+
+        this.free = new ByteBuffer[capacity];
+        this.count = 0;
+
+        this.allocated = 0;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer, taken from the pool if one is available, or newly allocated otherwise.
+     *
+     * @return a buffer of the pool's buffer size
+     */
+    public ByteBuffer acquire() {
+        synchronized (this) {
+            if (this.count > 0) {
+                ByteBuffer buffer = this.free[--this.count];
+                this.free[this.count] = null;
+                buffer.clear();
+                return buffer;
+            }
+
+            this.allocated++;
+        }
+
+        return ByteBuffer.allocate(this.bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it is released.
+     *
+     * @param buffer a buffer that was acquired from this pool
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != this.bufferSize || !buffer.hasArray()) return;
+        if (this.count < this.free.length) this.free[this.count++] = buffer;
+    }
+
+    /**
+     * Returns the number of buffers this pool has had to allocate, because none was available.
+     *
+     * @return the number of allocated buffers
+     */
+    public synchronized long getAllocatedCount() {
+        return this.allocated;
+    }
+
+    public synchronized int getPooledCount() {
+        return this.count;
+    }
+}
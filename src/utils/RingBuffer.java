@@ -3,46 +3,70 @@ package utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single producer, single consumer byte buffer, exposed as a pair of blocking streams.
+ *
+ * The producer and the consumer never share a lock: the producer only advances head, the consumer only
+ * advances tail, and each reads the other's counter to know how much it may copy. Counters grow without
+ * wrapping, and are mapped into the array with a mask, so the array's length is a power of two, and data
+ * is copied with at most two {@link System#arraycopy} calls. A thread only parks when the buffer is
+ * really full or empty, and is only unparked by the other side if it is actually parked.
+ *
+ * Several threads may still write (or read) the same buffer: writes are serialized among themselves,
+ * and so are reads, but a write never waits for a read to finish, or the other way around.
+ */
 public class RingBuffer {
 
-    private final Object lock;
-
     private final int size;
+    private final int mask;
     private final byte[] buffer;
 
-    private final AtomicInteger head;
-    private final AtomicInteger tail;
+    // next position to write, only advanced by the producer
+    private final Counter head;
+    // next position to read, only advanced by the consumer
+    private final Counter tail;
+    // position before which the producer may overwrite data, tail, or the mark while there is one
+    private final Counter release;
 
-    private AtomicInteger tailMark;
+    private long mark;
     private int readLimit;
-    private AtomicInteger readSinceMark;
 
-    private final AtomicBoolean writeOpened;
-    private final AtomicBoolean readOpened;
+    private final Object writeLock;
+    private final Object readLock;
+    private volatile Thread writeWaiter;
+    private volatile Thread readWaiter;
+
+    private volatile boolean writeOpened;
+    private volatile boolean readOpened;
 
     private final int lowWaterMark;
     private final int highWaterMark;
 
     private Runnable onLowMark;
+    private volatile Runnable onData;
+    private volatile Runnable onSpace;
 
     public RingBuffer(int size, int lowWaterMark, int highWaterMark) {
+        if (size <= 0 || size > 1 << 30) throw new IllegalArgumentException("Invalid RingBuffer size " + size);
         this.size = size;
-        this.buffer = new byte[size];
-
-        this.lock = new Object();
+        int length = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+        this.mask = length - 1;
+        this.buffer = new byte[length];
 
-        this.head = new AtomicInteger(0);
-        this.tail = new AtomicInteger(0);
+        this.head = new Counter();
+        this.tail = new Counter();
+        this.release = new Counter();
 
-        this.tailMark = new AtomicInteger(-1);
+        this.mark = -1;
         this.readLimit = 0;
-        this.readSinceMark = new AtomicInteger(0);
 
-        this.writeOpened = new AtomicBoolean(true);
-        this.readOpened = new AtomicBoolean(true);
+        this.writeLock = new Object();
+        this.readLock = new Object();
+
+        this.writeOpened = true;
+        this.readOpened = true;
 
         this.lowWaterMark = lowWaterMark;
         this.highWaterMark = highWaterMark;
@@ -52,26 +76,28 @@ public class RingBuffer {
        this(size, 0, size);
     }
 
+    /**
+     * Returns the number of bytes the buffer can hold.
+     */
     public int size() {
         return this.size;
     }
 
+    /**
+     * Returns the number of bytes that can be read without blocking.
+     */
     public int available() {
-        synchronized (this.lock) {
-            int tail = this.tail.get();
-            int head = this.head.get();
-
-            return head >= tail ? head - tail : head + (size - tail);
-        }
+        // read tail first, so that a concurrent read can only make the result too small, never negative
+        long tail = this.tail.value;
+        return (int) (this.head.value - tail);
     }
 
+    /**
+     * Returns the number of bytes that can be written without blocking. Data before the mark, if there is
+     * one, still takes space.
+     */
     public int capacity() {
-        synchronized (this.lock) {
-            int tail = this.tailMark.get() >= 0 ? tailMark.get() : this.tail.get();
-            int head = this.head.get();
-
-            return head < tail ? tail - head : tail + (size - head);
-        }
+        return this.size - (int) (this.head.value - this.release.value);
     }
 
     public InputStream getInputStream() {
@@ -86,30 +112,82 @@ public class RingBuffer {
        this.onLowMark = listener;
     }
 
+    /**
+     * Sets a listener called when data is written to an empty buffer, and when the buffer is closed, so a
+     * consumer that doesn't block on reads knows when to look again. Writes to a buffer that still holds
+     * data don't call it, the consumer is expected to come back for that data by itself.
+     */
+    public void setDataListener(Runnable listener) {
+        this.onData = listener;
+    }
+
+    /**
+     * Sets a listener called when reads drain the buffer from more than half full to at most half full, and when
+     * the buffer is closed, so a producer that doesn't block on writes can stop once the buffer is full, and
+     * come back when there is room for a good amount of data. It's called on the consumer's thread.
+     */
+    public void setSpaceListener(Runnable listener) {
+        this.onSpace = listener;
+    }
+
     public boolean isWriteOpened() {
-        return this.writeOpened.get();
+        return this.writeOpened;
     }
 
+    /**
+     * Returns false once the consumer closed the buffer, or the producer closed it and all of its data was read.
+     */
     public boolean isReadOpened() {
-        return this.available() > 0 || this.readOpened.get();
+        // writeOpened first, once it's false every write is visible to available()
+        boolean opened = this.writeOpened && this.readOpened;
+        return opened || (this.readOpened && this.available() > 0);
+    }
+
+    private static void unpark(Thread waiter) {
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    private void notifyData() {
+        Runnable listener = this.onData;
+        if (listener != null) listener.run();
+    }
+
+    private void notifySpace() {
+        Runnable listener = this.onSpace;
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * Publishes data written from position h, and calls the data listener if the consumer had read everything
+     * before h. Head is written before tail is read, and the consumer writes tail before reading head, so
+     * either the consumer sees the new data, or the listener is called.
+     */
+    private void published(long h, long head) {
+        this.head.value = head;
+        unpark(this.readWaiter);
+        if (this.onData != null && this.tail.value >= h) this.notifyData();
+    }
+
+    private void park() {
+        LockSupport.park(this);
+        // interrupts were always ignored while waiting, clear it so that park doesn't spin
+        Thread.interrupted();
     }
 
     class BufferProvider extends OutputStream {
 
         @Override
         public void close() {
-            synchronized (lock) {
-                //System.out.println("[RingBuffer][BufferProvider] BufferProvider closed");
-                writeOpened.set(false);
-                lock.notifyAll();
-            }
+            writeOpened = false;
+            unpark(readWaiter);
+            unpark(writeWaiter);
+            notifyData();
+            notifySpace();
         }
 
         @Override
         public void flush() {
-            synchronized (lock) {
-                lock.notifyAll();
-            }
+            unpark(readWaiter);
         }
 
         @Override
@@ -119,48 +197,52 @@ public class RingBuffer {
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            synchronized (lock) {
+            synchronized (writeLock) {
                 int written = 0;
 
                 while (written < len) {
-                    if (!writeOpened.get()) throw new IOException("BufferProvider is closed");
-
-                    int toWrite = Math.min(capacity() - len, len - written);
+                    int free = this.awaitCapacity();
 
-                    for (int i = 0; i < toWrite; i++, written++) {
-                        buffer[head.getAndAccumulate(1, (l, r) -> (l + r) % size)] = b[off + written];
-                    }
+                    int toWrite = Math.min(free, len - written);
+                    long h = head.value;
+                    int index = (int) h & mask;
+                    int first = Math.min(toWrite, buffer.length - index);
+                    System.arraycopy(b, off + written, buffer, index, first);
+                    if (first < toWrite) System.arraycopy(b, off + written + first, buffer, 0, toWrite - first);
 
-                    lock.notifyAll();
-
-                    if (written < len) {
-                        try {
-                            lock.wait();
-                        } catch (InterruptedException e) {}
-                    }
+                    published(h, h + toWrite);
+                    written += toWrite;
                 }
             }
         }
 
         @Override
         public void write(int b) throws IOException {
-            synchronized (lock) {
-                while (true) {
-                    if (!writeOpened.get()) throw new IOException("BufferProvider is closed");
-
-                    if (capacity() > 1) {
-                        buffer[head.getAndAccumulate(1, (l, r) -> (l + r) % size)] = (byte) b;
-                        break;
-
-                    } else {
-                        try {
-                            lock.wait();
-                        } catch (InterruptedException e) {}
-                    }
-                }
+            synchronized (writeLock) {
+                this.awaitCapacity();
+                long h = head.value;
+                buffer[(int) h & mask] = (byte) b;
+                published(h, h + 1);
+            }
+        }
 
-                lock.notifyAll();
+        /**
+         * Blocks until there is space in the buffer.
+         *
+         * @return the number of bytes that can be written
+         * @throws IOException if the buffer is closed
+         */
+        private int awaitCapacity() throws IOException {
+            int free;
+            while ((free = capacity()) == 0) {
+                if (!writeOpened) throw new IOException("BufferProvider is closed");
+                writeWaiter = Thread.currentThread();
+                // check again once registered, the consumer may have made room in between
+                if (capacity() == 0 && writeOpened) park();
+                writeWaiter = null;
             }
+            if (!writeOpened) throw new IOException("BufferProvider is closed");
+            return free;
         }
     }
 
@@ -172,21 +254,20 @@ public class RingBuffer {
 
         @Override
         public void close() {
-            synchronized (lock) {
-                readOpened.set(false);
-                writeOpened.set(false);
-                lock.notifyAll();
-            }
+            readOpened = false;
+            writeOpened = false;
+            unpark(writeWaiter);
+            unpark(readWaiter);
+            notifyData();
+            notifySpace();
         }
 
         @Override
         public void mark(int readLimit) {
-            synchronized (lock) {
-                //System.err.println("Mark set at " + tail.get() + " readLimit = " + readLimit);
-                tailMark.set(tail.get());
+            synchronized (readLock) {
+                mark = tail.value;
                 RingBuffer.this.readLimit = readLimit;
-                readSinceMark.set(0);
-                lock.notifyAll();
+                release.value = mark;
             }
         }
 
@@ -197,29 +278,13 @@ public class RingBuffer {
 
         @Override
         public int read() {
-            synchronized (lock) {
-                if (!readOpened.get()) return -1;
-                while (available() == 0) {
-                    if (!writeOpened.get()) readOpened.set(false);
-                    if (!readOpened.get()) return -1;
-                    try {
-                        lock.wait();
-                    } catch (InterruptedException e) {}
-                }
-
-                byte b = buffer[tail.getAndAccumulate(1, (l, r) -> (l + r) % size)];
+            synchronized (readLock) {
+                if (this.awaitAvailable() == 0) return -1;
 
-                int mark = tailMark.get();
-                if (mark >= 0) {
-                    if (readSinceMark.incrementAndGet() > readLimit) {
-                        System.err.println("Mark read limit exceeded after reading " + readSinceMark.get() + " bytes");
-                        tailMark.set(-1);
-                        readSinceMark.set(0);
-                    }
-                }
-
-                lock.notifyAll();
-                return b;
+                long t = tail.value;
+                byte b = buffer[(int) t & mask];
+                this.consumed(t + 1);
+                return b & 0xFF;
             }
         }
 
@@ -230,53 +295,87 @@ public class RingBuffer {
 
         @Override
         public int read(byte[] b, int off, int len) {
-            synchronized (lock) {
-                if (!readOpened.get()) return -1;
-
-                while (available() == 0) {
-                    if (!writeOpened.get()) readOpened.set(false);
-                    if (!readOpened.get()) return -1;
+            if (len == 0) return 0;
 
-                    try {
-                        lock.wait();
-                    } catch (InterruptedException e) {}
-                }
+            synchronized (readLock) {
+                int available = this.awaitAvailable();
+                if (available == 0) return -1;
 
-                int toRead = Math.min(len, available());
-                for (int i = 0; i < toRead; i++) {
-                    b[off + i] = buffer[tail.getAndAccumulate(1, (l, r) -> (l + r) % size)];
-                    if (tailMark.get() >= 0) {
-                        if (readSinceMark.incrementAndGet() > readLimit) {
-                            System.err.println("Mark read limit exceeded after reading " + readSinceMark.get() + " bytes");
-                            tailMark.set(-1);
-                        }
-                    }
-                }
+                int toRead = Math.min(len, available);
+                long t = tail.value;
+                int index = (int) t & mask;
+                int first = Math.min(toRead, buffer.length - index);
+                System.arraycopy(buffer, index, b, off, first);
+                if (first < toRead) System.arraycopy(buffer, 0, b, off + first, toRead - first);
+                this.consumed(t + toRead);
 
-                lock.notifyAll();
-                if (available() <= lowWaterMark && onLowMark != null) onLowMark.run();
+                if (RingBuffer.this.available() <= lowWaterMark && onLowMark != null) onLowMark.run();
                 return toRead;
             }
         }
 
         @Override
         public void reset() throws IOException {
-            synchronized (lock) {
-                if (tailMark.get() < 0) throw new IOException("No valid mark to reset to");
-                System.err.println("Mark reset after reading " + readSinceMark.get() + " bytes");
-                tail.set(tailMark.get());
-                readSinceMark.set(0);
-                lock.notifyAll();
+            synchronized (readLock) {
+                if (mark < 0) throw new IOException("No valid mark to reset to");
+                tail.value = mark;
             }
         }
-        /*
-        @Override
-        public long skip(long n) {
-            synchronized (lock) {
-                long toSkip = Math.min((long) this.available(), n);
-                int newTail = tail.addAndGet((int) toSkip);
+
+        /**
+         * Blocks until there is data in the buffer.
+         *
+         * @return the number of bytes that can be read, or 0 once the buffer is closed and empty
+         */
+        private int awaitAvailable() {
+            if (!readOpened) return 0;
+
+            int available;
+            while ((available = RingBuffer.this.available()) == 0) {
+                if (!writeOpened) {
+                    // the producer may have written just before closing
+                    if ((available = RingBuffer.this.available()) > 0) break;
+                    readOpened = false;
+                    return 0;
+                }
+                if (!readOpened) return 0;
+
+                readWaiter = Thread.currentThread();
+                // check again once registered, the producer may have written in between
+                if (RingBuffer.this.available() == 0 && writeOpened && readOpened) park();
+                readWaiter = null;
+            }
+            return available;
+        }
+
+        /**
+         * Moves tail to the given position, and releases the space before it, unless it's still marked.
+         */
+        private void consumed(long position) {
+            long previous = tail.value;
+            tail.value = position;
+            if (mark >= 0 && position - mark > readLimit) mark = -1;
+            release.value = mark >= 0 ? mark : position;
+            unpark(writeWaiter);
+
+            if (onSpace != null) {
+                // a producer that stopped on a full buffer sees the space it needs once the listener is called
+                long h = head.value;
+                if (h - previous > size / 2 && h - position <= size / 2) notifySpace();
             }
         }
-        */
+    }
+
+    // padding around each counter, so that the producer and consumer counters don't share a cache line
+    static class CounterPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    static class CounterValue extends CounterPadding {
+        volatile long value;
+    }
+
+    static final class Counter extends CounterValue {
+        long p11, p12, p13, p14, p15, p16, p17;
     }
 }
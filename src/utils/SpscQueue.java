@@ -0,0 +1,82 @@
+package utils;
+
+/**
+ * A bounded, lock-free queue for a single producer thread and a single consumer thread.
+ *
+ * Like {@link RingBuffer}, the producer only advances head, the consumer only advances tail, and slots
+ * are mapped into an array whose length is a power of two. Neither side ever blocks: {@link #offer(Object)}
+ * fails when the queue is full, and {@link #poll()} returns null when it's empty.
+ */
+public class SpscQueue<T> {
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] slots;
+
+    // next slot to fill, only advanced by the producer
+    private final RingBuffer.Counter head;
+    // next slot to take, only advanced by the consumer
+    private final RingBuffer.Counter tail;
+
+    public SpscQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid SpscQueue capacity " + capacity);
+        this.capacity = capacity;
+        int length = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = length - 1;
+        this.slots = new Object[length];
+
+        this.head = new RingBuffer.Counter();
+        this.tail = new RingBuffer.Counter();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of elements in the queue. Only exact when neither side is active.
+     */
+    public int size() {
+        long tail = this.tail.value;
+        return (int) (this.head.value - tail);
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Adds an element at the end of the queue. Must only be called by the producer.
+     *
+     * @param element the element to add, not null
+     * @return false if the queue is full, in which case the element isn't added
+     */
+    public boolean offer(T element) {
+        if (element == null) throw new NullPointerException();
+        long h = this.head.value;
+        if (h - this.tail.value >= this.capacity) return false;
+
+        this.slots[(int) h & this.mask] = element;
+        // publishes the slot, the consumer reads head before the slot
+        this.head.value = h + 1;
+        return true;
+    }
+
+    /**
+     * Removes the element at the front of the queue. Must only be called by the consumer.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long t = this.tail.value;
+        if (t == this.head.value) return null;
+
+        int index = (int) t & this.mask;
+        T element = (T) this.slots[index];
+        this.slots[index] = null;
+        // frees the slot, the producer reads tail before writing it
+        this.tail.value = t + 1;
+        return element;
+    }
+}